@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics;
+
+import org.gbif.metrics.es.AggregationQuery;
+import org.gbif.metrics.es.CountQuery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of the {@link MetricsService}: results that are not cached are loaded
+ * without holding the calling thread.
+ */
+public interface AsyncMetricsService {
+
+  /**
+   * Provides a single count of occurrence records from a list of filters.
+   *
+   * @param countQuery query/filters
+   * @return future of the total number of occurrence records
+   */
+  CompletableFuture<Long> countAsync(CountQuery countQuery);
+
+  /**
+   * Provides a simple service with counts of multiple dimensions/fields.
+   *
+   * @param aggregationQuery query containing the requested aggregation
+   * @return future of a simple map of dimensions/labels and counts
+   */
+  CompletableFuture<Map<String, Long>> countAggregationAsync(AggregationQuery aggregationQuery);
+
+  /**
+   * Provides the counts of several lists of filters at once.
+   *
+   * @param countQueries queries/filters
+   * @return future of the total number of occurrence records of each query, in the same order
+   */
+  CompletableFuture<List<Long>> countBatchAsync(List<CountQuery> countQueries);
+}
@@ -14,14 +14,41 @@
 package org.gbif.metrics;
 
 import org.gbif.metrics.es.AggregationQuery;
+import org.gbif.metrics.es.CacheStats;
 import org.gbif.metrics.es.CountQuery;
+import org.gbif.metrics.es.Parameter;
 
-/** Management operations to flush and refresh cache entries. */
+import java.util.Map;
+
+/** Management operations to flush and refresh cache entries, and statistics of the caches. */
 public interface MetricsCacheService {
 
   /** Flush the entries of all underlying caches. */
   void flush();
 
+  /**
+   * Flush a count query cached result.
+   *
+   * @param countQuery query to be flushed
+   */
+  void flush(CountQuery countQuery);
+
+  /**
+   * Flush an aggregation query cached result.
+   *
+   * @param aggregationQuery query to be flushed
+   */
+  void flush(AggregationQuery aggregationQuery);
+
+  /**
+   * Flush the cached results of all the queries with a parameter, e.g. all the queries of a
+   * dataset.
+   *
+   * @param parameter parameter of the queries to be flushed
+   * @return the number of flushed entries
+   */
+  int flush(Parameter parameter);
+
   /**
    * Evict and refresh a count query cached result.
    *
@@ -35,4 +62,16 @@ public interface MetricsCacheService {
    * @param aggregationQuery query to be refreshed
    */
   void refresh(AggregationQuery aggregationQuery);
+
+  /**
+   * Evict and refresh the cached results of all the queries with a parameter, e.g. all the queries
+   * of a dataset.
+   *
+   * @param parameter parameter of the queries to be refreshed
+   * @return the number of refreshed entries
+   */
+  int refresh(Parameter parameter);
+
+  /** @return the statistics of each underlying cache, by cache name */
+  Map<String, CacheStats> stats();
 }
@@ -21,12 +21,18 @@ import org.gbif.api.vocabulary.Kingdom;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Objects;
+import java.util.LinkedHashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.function.Function;
 
-/** Metrics query to obtain simple dimensions/fields and counts based on a list of parameters. */
+/**
+ * Metrics query to obtain simple dimensions/fields and counts based on a list of parameters.
+ *
+ * <p>Like {@link CountQuery}, instances are immutable cache keys with a canonical key computed on
+ * creation.
+ */
 public class AggregationQuery {
 
   // Transforms a string into a Country.name()
@@ -50,23 +56,24 @@ public class AggregationQuery {
 
   private final Function<String, String> keyLabelTransform;
 
+  // Canonical form of the dimension and parameters, see QueryCodec
+  private final String key;
+
   private AggregationQuery(String dimension, Set<Parameter> parameters) {
-    this.dimension = dimension;
-    this.parameters = parameters;
-    this.keyLabelTransform = Function.identity();
+    this(dimension, parameters, Function.identity());
   }
 
   private AggregationQuery(
       String dimension, Set<Parameter> parameters, Function<String, String> keyLabelTransform) {
+    SortedMap<String, Parameter> sorted = QueryCodec.sort(parameters);
     this.dimension = dimension;
-    this.parameters = parameters;
+    this.parameters = Collections.unmodifiableSet(new LinkedHashSet<>(sorted.values()));
     this.keyLabelTransform = keyLabelTransform;
+    this.key = QueryCodec.aggregationKey(dimension, sorted);
   }
 
   private AggregationQuery(String dimension, Function<String, String> keyLabelTransform) {
-    this.dimension = dimension;
-    parameters = new HashSet<>();
-    this.keyLabelTransform = keyLabelTransform;
+    this(dimension, Collections.emptySet(), keyLabelTransform);
   }
 
   // Factory methods for supported aggregations
@@ -116,6 +123,32 @@ public class AggregationQuery {
     return new AggregationQuery("datasetKey", parameters);
   }
 
+  /**
+   * Rebuilds an aggregation query from its dimension and parameters, restoring the key label
+   * transform that the factory method of that dimension would use.
+   */
+  public static AggregationQuery of(String dimension, Collection<Parameter> parameters) {
+    Set<Parameter> params = new HashSet<>(parameters);
+    switch (dimension) {
+      case "basisOfRecord":
+        return params.isEmpty()
+            ? BASIS_OF_RECORD
+            : new AggregationQuery(dimension, params, BASIS_OF_RECORD.keyLabelTransform);
+      case "kingdom":
+        return params.isEmpty()
+            ? KINGDOM
+            : new AggregationQuery(
+                dimension,
+                params,
+                key -> VocabularyUtils.lookup(key, Kingdom.class).map(Enum::name).orElse(key));
+      case "country":
+      case "publishingCountry":
+        return new AggregationQuery(dimension, params, COUNTRY_LABEL_TRANSFORM);
+      default:
+        return new AggregationQuery(dimension, params);
+    }
+  }
+
   /** @return dimension/field to be queried */
   public String getDimension() {
     return dimension;
@@ -131,6 +164,11 @@ public class AggregationQuery {
     return keyLabelTransform;
   }
 
+  /** @return canonical key of the dimension and parameters */
+  public String getKey() {
+    return key;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -141,12 +179,17 @@ public class AggregationQuery {
     }
     AggregationQuery that = (AggregationQuery) o;
     // Ignore the keyLabelTransform
-    return dimension.equals(that.dimension) && parameters.equals(that.parameters);
+    return key.equals(that.key);
   }
 
   @Override
   public int hashCode() {
-    // Ignore the keyLabelTransform
-    return Objects.hash(dimension, parameters);
+    // Ignore the keyLabelTransform, String caches its own hash
+    return key.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return key;
   }
 }
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable result of an aggregation, stored as the dictionary ids of the bucket labels and a
+ * primitive array of counts, and exposed as a read-only map that keeps the order of the buckets.
+ * Buckets are looked up by label with a binary search over their ids.
+ */
+public final class AggregationResult extends AbstractMap<String, Long> {
+
+  private final LabelDictionary dictionary;
+  private final int[] labelIds;
+  private final long[] counts;
+  // Label id in the high and bucket position in the low 32 bits, sorted by id
+  private final long[] positionsById;
+
+  private AggregationResult(LabelDictionary dictionary, int[] labelIds, long[] counts) {
+    this.dictionary = dictionary;
+    this.labelIds = labelIds;
+    this.counts = counts;
+    positionsById = new long[labelIds.length];
+    for (int i = 0; i < labelIds.length; i++) {
+      positionsById[i] = (long) labelIds[i] << 32 | i;
+    }
+    Arrays.sort(positionsById);
+  }
+
+  /** Creates a builder for the results of a dimension. */
+  public static Builder builder(String dimension, int expectedSize) {
+    return new Builder(LabelDictionary.forDimension(dimension), expectedSize);
+  }
+
+  /** @return the label of the bucket at the given position */
+  public String label(int index) {
+    return dictionary.label(labelIds[index]);
+  }
+
+  /** @return the count of the bucket at the given position */
+  public long count(int index) {
+    return counts[index];
+  }
+
+  @Override
+  public int size() {
+    return counts.length;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public Long get(Object key) {
+    int index = indexOf(key);
+    return index >= 0 ? counts[index] : null;
+  }
+
+  private int indexOf(Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+    int id = dictionary.find((String) key);
+    if (id < 0) {
+      return -1;
+    }
+    // The first entry of the id, its position being 0 or more
+    int entry = Arrays.binarySearch(positionsById, (long) id << 32);
+    if (entry < 0) {
+      entry = -entry - 1;
+    }
+    return entry < positionsById.length && (int) (positionsById[entry] >>> 32) == id
+        ? (int) positionsById[entry]
+        : -1;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Long>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Map.Entry<String, Long>> iterator() {
+        return new Iterator<>() {
+          private int next;
+
+          @Override
+          public boolean hasNext() {
+            return next < counts.length;
+          }
+
+          @Override
+          public Map.Entry<String, Long> next() {
+            if (next >= counts.length) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, Long> entry = new SimpleImmutableEntry<>(label(next), counts[next]);
+            next++;
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return counts.length;
+      }
+    };
+  }
+
+  /** Collects the buckets of an aggregation in order. */
+  public static final class Builder {
+
+    private final LabelDictionary dictionary;
+    private int[] labelIds;
+    private long[] counts;
+    private int size;
+
+    private Builder(LabelDictionary dictionary, int expectedSize) {
+      this.dictionary = dictionary;
+      this.labelIds = new int[Math.max(expectedSize, 1)];
+      this.counts = new long[labelIds.length];
+    }
+
+    public Builder add(String label, long count) {
+      if (size == counts.length) {
+        labelIds = Arrays.copyOf(labelIds, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      labelIds[size] = dictionary.idOf(label);
+      counts[size] = count;
+      size++;
+      return this;
+    }
+
+    public AggregationResult build() {
+      return new AggregationResult(
+          dictionary, Arrays.copyOf(labelIds, size), Arrays.copyOf(counts, size));
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import org.gbif.metrics.AsyncMetricsService;
+import org.gbif.metrics.MetricsService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Answers all the queries from an {@link OccurrenceBitmapIndex} of a local snapshot of the
+ * occurrences, without any Elasticsearch request, as an alternative to the {@link
+ * EsMetricsService}. The snapshot is reloaded when the file changes.
+ */
+public class BitmapMetricsService implements MetricsService, AsyncMetricsService, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BitmapMetricsService.class);
+
+  @Data
+  @NoArgsConstructor
+  public static class BitmapConfig {
+
+    // defaults
+    private static final long RELOAD_INTERVAL_DEFAULT = TimeUnit.HOURS.toMillis(1);
+
+    private boolean enabled;
+    // NDJSON file of the occurrences, see OccurrenceSnapshotLoader
+    private String snapshot;
+    // Milliseconds between two checks of the modification time of the snapshot, never if 0
+    private long reloadInterval = RELOAD_INTERVAL_DEFAULT;
+  }
+
+  private final BitmapConfig config;
+  private final String defaultChecklistKey;
+  private final ScheduledExecutorService scheduler;
+  private final Counter bitmapCounts;
+
+  private volatile OccurrenceBitmapIndex index;
+  private volatile long loadedModifiedTime;
+
+  /** @param defaultChecklistKey checklist of the taxonomic dimensions of the snapshot */
+  public BitmapMetricsService(
+      BitmapConfig config, String defaultChecklistKey, MeterRegistry meterRegistry) {
+    this.config = config;
+    this.defaultChecklistKey = defaultChecklistKey;
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-bitmap-reload");
+              thread.setDaemon(true);
+              return thread;
+            });
+    bitmapCounts = EsMetricsService.countAnswers("bitmap", meterRegistry);
+    Gauge.builder("metrics.bitmap.rows", this, s -> s.index == null ? 0 : s.index.rows())
+        .description("Occurrences of the loaded snapshot")
+        .register(meterRegistry);
+  }
+
+  /** Loads the snapshot, blocking, and then checks it periodically for changes. */
+  public void start() {
+    load();
+    if (config.reloadInterval > 0) {
+      scheduler.scheduleWithFixedDelay(
+          this::reloadIfModified,
+          config.reloadInterval,
+          config.reloadInterval,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void load() {
+    Path snapshot = Paths.get(config.snapshot);
+    long start = System.currentTimeMillis();
+    try {
+      long modifiedTime = Files.getLastModifiedTime(snapshot).toMillis();
+      index = OccurrenceSnapshotLoader.load(snapshot, defaultChecklistKey);
+      loadedModifiedTime = modifiedTime;
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Error loading the occurrence snapshot " + snapshot, ex);
+    }
+    LOG.info(
+        "Loaded {} occurrences from {} in {} ms",
+        index.rows(),
+        snapshot,
+        System.currentTimeMillis() - start);
+  }
+
+  private void reloadIfModified() {
+    try {
+      if (Files.getLastModifiedTime(Paths.get(config.snapshot)).toMillis() != loadedModifiedTime) {
+        load();
+      }
+    } catch (IOException | RuntimeException ex) {
+      // The loaded index is still answering
+      LOG.error("Error reloading the occurrence snapshot {}", config.snapshot, ex);
+    }
+  }
+
+  @Override
+  public Long count(CountQuery countQuery) {
+    bitmapCounts.increment();
+    return index.count(countQuery.getParameters());
+  }
+
+  @Override
+  public Map<String, Long> countAggregation(AggregationQuery aggregationQuery) {
+    AggregationResult result =
+        index.aggregate(aggregationQuery.getDimension(), aggregationQuery.getParameters());
+    AggregationResult.Builder labelled =
+        AggregationResult.builder(aggregationQuery.getDimension(), result.size());
+    for (int i = 0; i < result.size(); i++) {
+      labelled.add(aggregationQuery.getKeyLabelTransform().apply(result.label(i)), result.count(i));
+    }
+    return labelled.build();
+  }
+
+  @Override
+  public CompletableFuture<Long> countAsync(CountQuery countQuery) {
+    return supply(() -> count(countQuery));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Long>> countAggregationAsync(
+      AggregationQuery aggregationQuery) {
+    return supply(() -> countAggregation(aggregationQuery));
+  }
+
+  @Override
+  public CompletableFuture<List<Long>> countBatchAsync(List<CountQuery> countQueries) {
+    return supply(
+        () -> {
+          List<Long> counts = new ArrayList<>(countQueries.size());
+          countQueries.forEach(q -> counts.add(count(q)));
+          return counts;
+        });
+  }
+
+  /** Computes a value at once, the index being in memory. */
+  private static <T> CompletableFuture<T> supply(Supplier<T> value) {
+    try {
+      return CompletableFuture.completedFuture(value.get());
+    } catch (RuntimeException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
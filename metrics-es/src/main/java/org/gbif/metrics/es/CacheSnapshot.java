@@ -0,0 +1,307 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.cache2k.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Periodically persists the contents of the {@link EsMetricsService} caches to a file, so that a
+ * restarted node starts with warm caches instead of sending all its initial traffic to
+ * Elasticsearch.
+ *
+ * <p>The file is read and written as a stream, so its size is not limited, and has the following
+ * layout, all numbers in big endian and all strings as an int length followed by UTF-8 bytes:
+ *
+ * <pre>
+ * int magic, int version, long createdAt
+ * int countEntries, then per entry: string key, long loadedAt, long count
+ * int aggregationEntries, then per entry: string key, long loadedAt, int buckets,
+ *     then per bucket: string label, long count
+ * int yearHistogramEntries, then per entry: string key, long loadedAt, int years,
+ *     then per year with any occurrence: int year, long count
+ * </pre>
+ *
+ * Keys are encoded with {@link QueryCodec}. Entries older than {@link
+ * EsMetricsService.CacheConfig#getExpireAfterWrite()} are discarded when the snapshot is restored.
+ */
+public class CacheSnapshot implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+  private static final int MAGIC = 0x47424D53; // "GBMS"
+  private static final int VERSION = 3;
+
+  @Data
+  @NoArgsConstructor
+  public static class SnapshotConfig {
+    // Location of the snapshot file, snapshots are disabled if not set
+    private String path;
+    // Interval in milliseconds between snapshots, only written on shutdown if 0
+    private long interval;
+  }
+
+  private final EsMetricsService metricsService;
+  private final Path path;
+  private final long interval;
+  private final long expireAfterWrite;
+
+  private ScheduledExecutorService scheduler;
+
+  public CacheSnapshot(
+      EsMetricsService metricsService,
+      SnapshotConfig snapshotConfig,
+      EsMetricsService.CacheConfig cacheConfig) {
+    this.metricsService = metricsService;
+    this.path = snapshotConfig.getPath() != null ? Paths.get(snapshotConfig.getPath()) : null;
+    this.interval = snapshotConfig.getInterval();
+    this.expireAfterWrite = cacheConfig.getExpireAfterWrite();
+  }
+
+  /** @return true if a snapshot path has been configured */
+  public boolean isEnabled() {
+    return path != null;
+  }
+
+  /**
+   * Loads the entries of the last snapshot, if any, into the caches. Failures are logged and leave
+   * the caches empty, a broken snapshot must never prevent the service from starting.
+   */
+  public void restore() {
+    if (!isEnabled() || !Files.exists(path)) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.warn("Ignoring cache snapshot {} with an unknown format", path);
+        return;
+      }
+      long createdAt = in.readLong();
+      long oldestAccepted = start - expireAfterWrite;
+
+      int restoredCounts = 0;
+      int countEntries = in.readInt();
+      for (int i = 0; i < countEntries; i++) {
+        String key = readString(in);
+        long loadedAt = in.readLong();
+        long count = in.readLong();
+        if (loadedAt > oldestAccepted) {
+          metricsService
+              .getCountCache()
+              .put(QueryCodec.decodeCountQuery(key), new CachedValue<>(count, loadedAt));
+          restoredCounts++;
+        }
+      }
+
+      int restoredAggregations = 0;
+      int aggregationEntries = in.readInt();
+      for (int i = 0; i < aggregationEntries; i++) {
+        String key = readString(in);
+        long loadedAt = in.readLong();
+        int buckets = in.readInt();
+        AggregationQuery aggregationQuery = QueryCodec.decodeAggregationQuery(key);
+        AggregationResult.Builder aggregation =
+            AggregationResult.builder(aggregationQuery.getDimension(), buckets);
+        for (int j = 0; j < buckets; j++) {
+          aggregation.add(readString(in), in.readLong());
+        }
+        if (loadedAt > oldestAccepted) {
+          metricsService
+              .getAggregationsCache()
+              .put(aggregationQuery, new CachedValue<>(aggregation.build(), loadedAt));
+          restoredAggregations++;
+        }
+      }
+
+      int restoredYearHistograms = 0;
+      int yearHistogramEntries = in.readInt();
+      for (int i = 0; i < yearHistogramEntries; i++) {
+        String key = readString(in);
+        long loadedAt = in.readLong();
+        int years = in.readInt();
+        Map<Integer, Long> yearCounts = new HashMap<>(years);
+        for (int j = 0; j < years; j++) {
+          yearCounts.put(in.readInt(), in.readLong());
+        }
+        if (loadedAt > oldestAccepted) {
+          metricsService
+              .getYearHistogramCache()
+              .put(
+                  QueryCodec.decodeCountQuery(key),
+                  new CachedValue<>(YearHistogram.of(yearCounts), loadedAt));
+          restoredYearHistograms++;
+        }
+      }
+      LOG.info(
+          "Restored {}/{} counts, {}/{} aggregations and {}/{} year histograms from snapshot {}"
+              + " created at {} in {} ms",
+          restoredCounts,
+          countEntries,
+          restoredAggregations,
+          aggregationEntries,
+          restoredYearHistograms,
+          yearHistogramEntries,
+          path,
+          createdAt,
+          System.currentTimeMillis() - start);
+    } catch (Exception ex) {
+      LOG.warn("Cache snapshot {} could not be restored", path, ex);
+    }
+  }
+
+  /** Starts writing snapshots periodically, if an interval has been configured. */
+  public synchronized void start() {
+    if (!isEnabled() || interval <= 0 || scheduler != null) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-cache-snapshot");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(this::writeQuietly, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes the current content of the caches to a temporary file that then atomically replaces the
+   * previous snapshot.
+   */
+  public void write() throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    int counts = 0;
+    int aggregations = 0;
+    int yearHistograms = 0;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(start);
+
+      Cache<CountQuery, CachedValue<Long>> countCache = metricsService.getCountCache();
+      Map<CountQuery, CachedValue<Long>> countEntries = new LinkedHashMap<>(countCache.asMap());
+      out.writeInt(countEntries.size());
+      for (Map.Entry<CountQuery, CachedValue<Long>> entry : countEntries.entrySet()) {
+        writeString(out, QueryCodec.encode(entry.getKey()));
+        out.writeLong(entry.getValue().getLoadedAt());
+        out.writeLong(entry.getValue().getValue());
+        counts++;
+      }
+
+      Cache<AggregationQuery, CachedValue<AggregationResult>> aggregationsCache =
+          metricsService.getAggregationsCache();
+      Map<AggregationQuery, CachedValue<AggregationResult>> aggregationEntries =
+          new LinkedHashMap<>(aggregationsCache.asMap());
+      out.writeInt(aggregationEntries.size());
+      for (Map.Entry<AggregationQuery, CachedValue<AggregationResult>> entry :
+          aggregationEntries.entrySet()) {
+        writeString(out, QueryCodec.encode(entry.getKey()));
+        out.writeLong(entry.getValue().getLoadedAt());
+        AggregationResult aggregation = entry.getValue().getValue();
+        out.writeInt(aggregation.size());
+        for (int i = 0; i < aggregation.size(); i++) {
+          writeString(out, aggregation.label(i));
+          out.writeLong(aggregation.count(i));
+        }
+        aggregations++;
+      }
+
+      Cache<CountQuery, CachedValue<YearHistogram>> yearHistogramCache =
+          metricsService.getYearHistogramCache();
+      Map<CountQuery, CachedValue<YearHistogram>> yearHistogramEntries =
+          new LinkedHashMap<>(yearHistogramCache.asMap());
+      out.writeInt(yearHistogramEntries.size());
+      for (Map.Entry<CountQuery, CachedValue<YearHistogram>> entry :
+          yearHistogramEntries.entrySet()) {
+        writeString(out, QueryCodec.encode(entry.getKey()));
+        out.writeLong(entry.getValue().getLoadedAt());
+        // The years with any occurrence, from which the histogram is built again
+        AggregationResult years = entry.getValue().getValue().slice(null);
+        out.writeInt(years.size());
+        for (int i = 0; i < years.size(); i++) {
+          out.writeInt(Integer.parseInt(years.label(i)));
+          out.writeLong(years.count(i));
+        }
+        yearHistograms++;
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOG.info(
+        "Wrote {} counts, {} aggregations and {} year histograms to cache snapshot {} in {} ms",
+        counts,
+        aggregations,
+        yearHistograms,
+        path,
+        System.currentTimeMillis() - start);
+  }
+
+  private void writeQuietly() {
+    try {
+      write();
+    } catch (Exception ex) {
+      LOG.error("Error writing cache snapshot {}", path, ex);
+    }
+  }
+
+  /** Stops the periodic snapshots and writes a final one. */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    writeQuietly();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.cache2k.Cache;
+import org.cache2k.operation.CacheControl;
+import org.cache2k.operation.CacheStatistics;
+import org.cache2k.operation.Weigher;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/** Point in time statistics of a cache, for the management API. */
+@Getter
+@AllArgsConstructor
+public final class CacheStats {
+
+  // Entries weighed to estimate the memory of caches bounded by entry count
+  private static final int WEIGHT_SAMPLE_SIZE = 1_000;
+
+  private final long size;
+  // Ratio of gets answered without a load
+  private final double hitRatio;
+  private final long loads;
+  // Load latency in milliseconds by percentile, e.g. p99
+  private final Map<String, Double> loadMillis;
+  // Refreshes waiting for a loader thread
+  private final int refreshQueueDepth;
+  private final long estimatedBytes;
+
+  static <K, V> CacheStats of(
+      Cache<K, V> cache,
+      Weigher<K, V> weigher,
+      boolean weighed,
+      Timer loadTimer,
+      ThreadPoolExecutor refreshExecutor) {
+    CacheControl control = CacheControl.of(cache);
+    CacheStatistics statistics = control.sampleStatistics();
+    double hitRatio =
+        statistics.getGetCount() > 0
+            ? 1 - (double) statistics.getMissCount() / statistics.getGetCount()
+            : 0;
+    Map<String, Double> loadMillis = new LinkedHashMap<>();
+    for (ValueAtPercentile percentile : loadTimer.takeSnapshot().percentileValues()) {
+      loadMillis.put(
+          "p" + Math.round(percentile.percentile() * 100), percentile.value(TimeUnit.MILLISECONDS));
+    }
+    long size = control.getSize();
+    return new CacheStats(
+        size,
+        hitRatio,
+        loadTimer.count(),
+        loadMillis,
+        refreshExecutor.getQueue().size(),
+        weighed ? control.getTotalWeight() : estimateBytes(cache, weigher, size));
+  }
+
+  /** Extrapolates the weight of a sample of the entries to the whole cache. */
+  private static <K, V> long estimateBytes(Cache<K, V> cache, Weigher<K, V> weigher, long size) {
+    long sampled = 0;
+    long bytes = 0;
+    Iterator<Map.Entry<K, V>> entries = cache.asMap().entrySet().iterator();
+    while (sampled < WEIGHT_SAMPLE_SIZE && entries.hasNext()) {
+      Map.Entry<K, V> entry = entries.next();
+      bytes += weigher.weigh(entry.getKey(), entry.getValue());
+      sampled++;
+    }
+    return sampled > 0 ? bytes * size / sampled : 0;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Replays the most requested queries recorded by the {@link HotKeyLog} against the caches of an
+ * {@link EsMetricsService}, so that a freshly started node does not serve its most common requests
+ * at Elasticsearch latency.
+ */
+public class CacheWarmer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheWarmer.class);
+
+  @Data
+  @NoArgsConstructor
+  public static class WarmupConfig {
+
+    // defaults
+    private static final long LOG_INTERVAL_DEFAULT = 300_000;
+    private static final int MAX_KEYS_DEFAULT = 10_000;
+    private static final int MAX_CONCURRENCY_DEFAULT = 4;
+    private static final long DEADLINE_DEFAULT = 120_000;
+
+    // Location of the hot key log, nothing is recorded nor warmed up if not set
+    private String path;
+    // Interval in milliseconds between writes of the hot key log, after which its hits are halved
+    private long logInterval = LOG_INTERVAL_DEFAULT;
+    // Maximum number of keys kept in the log and loaded at startup
+    private int maxKeys = MAX_KEYS_DEFAULT;
+    // Maximum number of concurrent loads during the warm-up
+    private int maxConcurrency = MAX_CONCURRENCY_DEFAULT;
+    // Time in milliseconds after which the warm-up is abandoned
+    private long deadline = DEADLINE_DEFAULT;
+  }
+
+  private final EsMetricsService metricsService;
+  private final WarmupConfig warmupConfig;
+
+  private final AtomicInteger total = new AtomicInteger();
+  private final AtomicInteger loaded = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  public CacheWarmer(
+      EsMetricsService metricsService, WarmupConfig warmupConfig, MeterRegistry meterRegistry) {
+    this.metricsService = metricsService;
+    this.warmupConfig = warmupConfig;
+    Gauge.builder("metrics.cache.warmup.keys", total, AtomicInteger::get)
+        .description("Number of hot keys to be warmed up")
+        .register(meterRegistry);
+    Gauge.builder("metrics.cache.warmup.loaded", loaded, AtomicInteger::get)
+        .description("Number of hot keys already warmed up")
+        .register(meterRegistry);
+    Gauge.builder("metrics.cache.warmup.failed", failed, AtomicInteger::get)
+        .description("Number of hot keys that failed to load")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Loads the hottest keys that are not cached yet, blocking until they are all loaded or the
+   * deadline has passed.
+   */
+  public void warmUp() {
+    HotKeyLog hotKeyLog = metricsService.getHotKeyLog();
+    if (!hotKeyLog.isEnabled()) {
+      return;
+    }
+    List<HotKeyLog.HotKey> hotKeys = hotKeyLog.hottest(warmupConfig.getMaxKeys());
+    if (hotKeys.isEmpty()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    total.set(hotKeys.size());
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            warmupConfig.getMaxConcurrency(),
+            r -> {
+              Thread thread = new Thread(r, "metrics-cache-warmup");
+              thread.setDaemon(true);
+              return thread;
+            });
+    hotKeys.forEach(hotKey -> executor.execute(() -> load(hotKey)));
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(warmupConfig.getDeadline(), TimeUnit.MILLISECONDS)) {
+        LOG.warn("Cache warm-up deadline of {} ms reached", warmupConfig.getDeadline());
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException ex) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    LOG.info(
+        "Cache warm-up loaded {} and failed {} of {} hot keys in {} ms",
+        loaded.get(),
+        failed.get(),
+        total.get(),
+        System.currentTimeMillis() - start);
+  }
+
+  /** Loads a key directly through the caches, so that the warm-up is not recorded as traffic. */
+  private void load(HotKeyLog.HotKey hotKey) {
+    try {
+      if (hotKey.getCountQuery() != null) {
+        metricsService.getCountCache().get(hotKey.getCountQuery());
+      } else {
+        metricsService.aggregation(hotKey.getAggregationQuery());
+      }
+      loaded.incrementAndGet();
+    } catch (RuntimeException ex) {
+      failed.incrementAndGet();
+      LOG.debug("Error warming up hot key", ex);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Collection;
+
+/**
+ * Rough estimates of the heap used by cache entries, in bytes, assuming compressed object pointers.
+ * They only need to be proportional to the real footprint, so that a byte budget can be given to
+ * each cache.
+ */
+final class CacheWeights {
+
+  // cache2k entry plus its slot in the hash table
+  private static final int ENTRY_OVERHEAD = 80;
+  // CachedValue wrapping the result
+  private static final int CACHED_VALUE = 24;
+  // Query object with its parameter set and canonical key string
+  private static final int QUERY_OVERHEAD = 120;
+  // Parameter with its value and the node in the set
+  private static final int PARAMETER = 80;
+  private static final int BOXED_LONG = 16;
+  // AggregationResult and the headers of its three arrays
+  private static final int AGGREGATION_RESULT = 72;
+  // YearHistogram and the headers of its two arrays
+  private static final int YEAR_HISTOGRAM = 48;
+
+  private CacheWeights() {}
+
+  static int weigh(CountQuery key, CachedValue<Long> value) {
+    return ENTRY_OVERHEAD + weighKey(key.getKey(), key.getParameters()) + CACHED_VALUE + BOXED_LONG;
+  }
+
+  static int weigh(AggregationQuery key, CachedValue<AggregationResult> value) {
+    long bytes =
+        ENTRY_OVERHEAD
+            + weighKey(key.getKey(), key.getParameters())
+            + CACHED_VALUE
+            + AGGREGATION_RESULT
+            // label id, count and lookup entry per bucket, the labels themselves are shared by
+            // the results of a dimension and bounded by LabelDictionary.MAX_LABELS
+            + (long) value.getValue().size() * (Integer.BYTES + 2 * Long.BYTES);
+    return (int) Math.min(bytes, Integer.MAX_VALUE);
+  }
+
+  static int weighHistogram(CountQuery key, CachedValue<YearHistogram> value) {
+    return ENTRY_OVERHEAD
+        + weighKey(key.getKey(), key.getParameters())
+        + CACHED_VALUE
+        + YEAR_HISTOGRAM
+        // count and prefix sum per year
+        + value.getValue().span() * 2 * Long.BYTES;
+  }
+
+  private static int weighKey(String key, Collection<Parameter> parameters) {
+    // keys are ASCII and therefore stored with one byte per character
+    return QUERY_OVERHEAD + key.length() + parameters.size() * PARAMETER;
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A cached result together with the time it was loaded from Elasticsearch. The load time drives the
+ * expiry of the entry, so it is preserved across snapshots.
+ */
+@Getter
+@AllArgsConstructor
+final class CachedValue<V> {
+
+  private final V value;
+  private final long loadedAt;
+
+  /** Wraps a value that has just been loaded. */
+  static <V> CachedValue<V> loadedNow(V value) {
+    return new CachedValue<>(value, System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Circuit breaker around the calls to Elasticsearch. It opens after {@link
+ * BreakerConfig#getFailureThreshold()} consecutive failed or slow calls and then rejects all calls
+ * for {@link BreakerConfig#getOpenDuration()}, after which a single trial call decides whether it
+ * closes or opens again. This stops the cache loaders and refreshes from retrying in a storm
+ * against a cluster that is down or overloaded.
+ *
+ * <p>Only the outcome of the calls admitted since the last change of state counts, so a call that
+ * started before the breaker opened cannot close it again when it completes late.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  @Data
+  @NoArgsConstructor
+  public static class BreakerConfig {
+
+    // defaults
+    private static final int FAILURE_THRESHOLD_DEFAULT = 5;
+    private static final long SLOW_CALL_THRESHOLD_DEFAULT = TimeUnit.SECONDS.toMillis(10);
+    private static final long OPEN_DURATION_DEFAULT = TimeUnit.SECONDS.toMillis(30);
+
+    // Consecutive failed or slow calls that open the breaker, disabled if 0
+    private int failureThreshold = FAILURE_THRESHOLD_DEFAULT;
+    // Calls taking longer than this, in milliseconds, count as failures
+    private long slowCallThreshold = SLOW_CALL_THRESHOLD_DEFAULT;
+    // Time in milliseconds the breaker stays open before a trial call
+    private long openDuration = OPEN_DURATION_DEFAULT;
+  }
+
+  /** State of the breaker, the ordinal is exported as a gauge. */
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /** An asynchronous call to Elasticsearch. */
+  @FunctionalInterface
+  interface Call<V> {
+    CompletableFuture<V> call();
+  }
+
+  /** Thrown instead of calling Elasticsearch while the breaker is open. */
+  static class OpenException extends IOException {
+    OpenException() {
+      super("Circuit breaker open, Elasticsearch is not called");
+    }
+  }
+
+  /** State of the breaker and the number of changes of state that led to it. */
+  private static class Phase {
+    private final State state;
+    private final long epoch;
+
+    private Phase(State state, long epoch) {
+      this.state = state;
+      this.epoch = epoch;
+    }
+  }
+
+  private final BreakerConfig config;
+  private final LongSupplier clock;
+  private final AtomicReference<Phase> phase = new AtomicReference<>(new Phase(State.CLOSED, 0));
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final Counter rejected;
+  private volatile long openedAt;
+
+  CircuitBreaker(BreakerConfig config, MeterRegistry meterRegistry) {
+    this(config, System::currentTimeMillis, meterRegistry);
+  }
+
+  /** Creates a breaker reading the time in milliseconds from the given clock. */
+  CircuitBreaker(BreakerConfig config, LongSupplier clock, MeterRegistry meterRegistry) {
+    this.config = config;
+    this.clock = clock;
+    Gauge.builder("metrics.es.breaker.state", phase, p -> p.get().state.ordinal())
+        .description("State of the Elasticsearch circuit breaker: 0 closed, 1 open, 2 half-open")
+        .register(meterRegistry);
+    rejected =
+        Counter.builder("metrics.es.breaker.rejected")
+            .description("Calls to Elasticsearch rejected by the open circuit breaker")
+            .register(meterRegistry);
+  }
+
+  State getState() {
+    return phase.get().state;
+  }
+
+  /**
+   * Executes the call unless the breaker is open, and records its outcome when it completes.
+   *
+   * @return the result of the call, or a future failed with an {@link OpenException}
+   */
+  <V> CompletableFuture<V> call(Call<V> call) {
+    if (config.failureThreshold <= 0) {
+      return call.call();
+    }
+    long epoch;
+    try {
+      epoch = acquire();
+    } catch (OpenException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+    long start = clock.getAsLong();
+    CompletableFuture<V> result;
+    try {
+      result = call.call();
+    } catch (RuntimeException ex) {
+      onFailure(epoch);
+      return CompletableFuture.failedFuture(ex);
+    }
+    return result.whenComplete(
+        (value, ex) -> {
+          if (ex != null || clock.getAsLong() - start > config.slowCallThreshold) {
+            onFailure(epoch);
+          } else {
+            onSuccess(epoch);
+          }
+        });
+  }
+
+  /** @return the epoch the call is admitted in */
+  private long acquire() throws OpenException {
+    Phase current = phase.get();
+    if (current.state == State.CLOSED) {
+      return current.epoch;
+    }
+    // Only one trial call once the open duration has passed
+    if (current.state == State.OPEN && clock.getAsLong() - openedAt >= config.openDuration) {
+      Phase trial = new Phase(State.HALF_OPEN, current.epoch + 1);
+      if (phase.compareAndSet(current, trial)) {
+        return trial.epoch;
+      }
+    }
+    rejected.increment();
+    throw new OpenException();
+  }
+
+  private void onSuccess(long epoch) {
+    Phase current = phase.get();
+    if (current.epoch != epoch) {
+      // Started before the last change of state
+      return;
+    }
+    consecutiveFailures.set(0);
+    if (current.state != State.CLOSED
+        && phase.compareAndSet(current, new Phase(State.CLOSED, epoch + 1))) {
+      LOG.info("Circuit breaker closed");
+    }
+  }
+
+  private void onFailure(long epoch) {
+    Phase current = phase.get();
+    if (current.epoch != epoch) {
+      // Started before the last change of state
+      return;
+    }
+    if (consecutiveFailures.incrementAndGet() >= config.failureThreshold
+        || current.state == State.HALF_OPEN) {
+      openedAt = clock.getAsLong();
+      if (phase.compareAndSet(current, new Phase(State.OPEN, epoch + 1))) {
+        LOG.warn(
+            "Circuit breaker opened after {} failed or slow calls, retrying in {} ms",
+            consecutiveFailures.get(),
+            config.openDuration);
+      }
+    }
+  }
+}
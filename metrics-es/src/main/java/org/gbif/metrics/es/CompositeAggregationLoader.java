@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Loads the aggregations of high-cardinality dimensions by paging through a composite aggregation.
+ * Unlike a terms aggregation, each page uses a bounded amount of memory in Elasticsearch, the
+ * counts are exact and there is no limit to the number of buckets.
+ */
+class CompositeAggregationLoader {
+
+  private static final int PAGE_SIZE = 10_000;
+
+  private final HedgingClient hedgingClient;
+  private final String esIndex;
+  // Budget of all the pages of a load
+  private final long deadline;
+
+  CompositeAggregationLoader(HedgingClient hedgingClient, String esIndex, long deadline) {
+    this.hedgingClient = hedgingClient;
+    this.esIndex = esIndex;
+    this.deadline = deadline;
+  }
+
+  /**
+   * @param query filter of the aggregation
+   * @param field field of the dimension
+   * @return future of the aggregation, ordered by count and then by label descending like the terms
+   *     aggregations, failed with a {@link PartialResultException} of the pages loaded if the
+   *     deadline is reached
+   */
+  CompletableFuture<AggregationResult> load(
+      AggregationQuery aggregationQuery, QueryBuilder query, String field) {
+    long deadlineAt = deadline > 0 ? System.currentTimeMillis() + deadline : 0;
+    return loadPages(aggregationQuery, query, field, null, new Buckets(), deadlineAt)
+        .thenApply(buckets -> buckets.toResult(aggregationQuery.getDimension()));
+  }
+
+  private CompletableFuture<Buckets> loadPages(
+      AggregationQuery aggregationQuery,
+      QueryBuilder query,
+      String field,
+      Map<String, Object> afterKey,
+      Buckets buckets,
+      long deadlineAt) {
+    String dimension = aggregationQuery.getDimension();
+    long remaining = deadlineAt > 0 ? deadlineAt - System.currentTimeMillis() : 0;
+    if (deadlineAt > 0 && remaining <= 0) {
+      return CompletableFuture.failedFuture(
+          new PartialResultException(buckets.toResult(dimension)));
+    }
+    CompositeAggregationBuilder composite =
+        new CompositeAggregationBuilder(
+                dimension,
+                Collections.singletonList(new TermsValuesSourceBuilder(dimension).field(field)))
+            .size(PAGE_SIZE);
+    if (afterKey != null) {
+      composite.aggregateAfter(afterKey);
+    }
+    SearchSourceBuilder source =
+        new SearchSourceBuilder().query(query).size(0).aggregation(composite);
+    if (remaining > 0) {
+      source.timeout(TimeValue.timeValueMillis(remaining));
+    }
+    SearchRequest request = new SearchRequest(esIndex).source(source);
+
+    CompletableFuture<SearchResponse> response =
+        hedgingClient.call(
+            (client, options, listener) -> client.searchAsync(request, options, listener),
+            remaining);
+    return response.thenCompose(
+        r -> {
+          CompositeAggregation page = r.getAggregations().get(dimension);
+          for (CompositeAggregation.Bucket bucket : page.getBuckets()) {
+            buckets.add(
+                aggregationQuery
+                    .getKeyLabelTransform()
+                    .apply(String.valueOf(bucket.getKey().get(dimension))),
+                bucket.getDocCount());
+          }
+          if (r.isTimedOut()) {
+            return CompletableFuture.<Buckets>failedFuture(
+                new PartialResultException(buckets.toResult(dimension)));
+          }
+          if (page.getBuckets().size() < PAGE_SIZE || page.afterKey() == null) {
+            return CompletableFuture.completedFuture(buckets);
+          }
+          return loadPages(aggregationQuery, query, field, page.afterKey(), buckets, deadlineAt);
+        });
+  }
+
+  /** Buckets of the pages loaded so far. */
+  private static class Buckets {
+    private String[] labels = new String[PAGE_SIZE];
+    private long[] counts = new long[PAGE_SIZE];
+    private int size;
+
+    private void add(String label, long count) {
+      if (size == labels.length) {
+        labels = Arrays.copyOf(labels, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      labels[size] = label;
+      counts[size] = count;
+      size++;
+    }
+
+    private AggregationResult toResult(String dimension) {
+      int[] order =
+          IntStream.range(0, size)
+              .boxed()
+              .sorted(
+                  Comparator.<Integer>comparingLong(i -> counts[i])
+                      .thenComparing(i -> labels[i])
+                      .reversed())
+              .mapToInt(Integer::intValue)
+              .toArray();
+      AggregationResult.Builder result = AggregationResult.builder(dimension, size);
+      for (int i : order) {
+        result.add(labels[i], counts[i]);
+      }
+      return result.build();
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed set of row numbers in the layout of Roaring bitmaps: rows are grouped by
+ * their 16 high bits and the low bits of each group are stored in a sorted array while the group
+ * has at most {@value #ARRAY_MAX} rows, or in a 65536-bit bitset otherwise. Sparse values therefore
+ * take two bytes per row and dense ones a bit per row, and intersections run word by word.
+ */
+final class CompressedBitmap {
+
+  // Largest group stored as an array, beyond which a bitset is smaller
+  private static final int ARRAY_MAX = 4096;
+  private static final int BITSET_WORDS = 1024;
+
+  static final CompressedBitmap EMPTY = new CompressedBitmap(new char[0], new Object[0], 0);
+
+  // Sorted 16 high bits of the groups
+  private final char[] keys;
+  // Low bits of the rows of each group, as a sorted char[] or a long[] bitset
+  private final Object[] containers;
+  private final int size;
+
+  private CompressedBitmap(char[] keys, Object[] containers, int size) {
+    this.keys = keys;
+    this.containers = containers;
+    this.size = size;
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /** @return the number of rows */
+  long cardinality() {
+    long cardinality = 0;
+    for (int i = 0; i < size; i++) {
+      cardinality += cardinality(containers[i]);
+    }
+    return cardinality;
+  }
+
+  /** @return the number of rows in both bitmaps, without building their intersection */
+  long andCardinality(CompressedBitmap other) {
+    long cardinality = 0;
+    int i = 0;
+    int j = 0;
+    while (i < size && j < other.size) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        cardinality += andCardinality(containers[i++], other.containers[j++]);
+      }
+    }
+    return cardinality;
+  }
+
+  /** @return the rows in both bitmaps */
+  CompressedBitmap and(CompressedBitmap other) {
+    int capacity = Math.min(size, other.size);
+    char[] newKeys = new char[capacity];
+    Object[] newContainers = new Object[capacity];
+    int newSize = 0;
+    int i = 0;
+    int j = 0;
+    while (i < size && j < other.size) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Object container = and(containers[i], other.containers[j]);
+        if (container != null) {
+          newKeys[newSize] = keys[i];
+          newContainers[newSize++] = container;
+        }
+        i++;
+        j++;
+      }
+    }
+    return new CompressedBitmap(newKeys, newContainers, newSize);
+  }
+
+  /** @return the rows in any of the bitmaps */
+  CompressedBitmap or(CompressedBitmap other) {
+    char[] newKeys = new char[size + other.size];
+    Object[] newContainers = new Object[size + other.size];
+    int newSize = 0;
+    int i = 0;
+    int j = 0;
+    while (i < size || j < other.size) {
+      if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+        newKeys[newSize] = keys[i];
+        newContainers[newSize++] = containers[i++];
+      } else if (i == size || keys[i] > other.keys[j]) {
+        newKeys[newSize] = other.keys[j];
+        newContainers[newSize++] = other.containers[j++];
+      } else {
+        newKeys[newSize] = keys[i];
+        newContainers[newSize++] = or(containers[i++], other.containers[j++]);
+      }
+    }
+    return new CompressedBitmap(newKeys, newContainers, newSize);
+  }
+
+  private static int cardinality(Object container) {
+    if (container instanceof char[]) {
+      return ((char[]) container).length;
+    }
+    int cardinality = 0;
+    for (long word : (long[]) container) {
+      cardinality += Long.bitCount(word);
+    }
+    return cardinality;
+  }
+
+  private static int andCardinality(Object a, Object b) {
+    if (a instanceof long[] && b instanceof long[]) {
+      long[] wordsA = (long[]) a;
+      long[] wordsB = (long[]) b;
+      int cardinality = 0;
+      for (int w = 0; w < BITSET_WORDS; w++) {
+        cardinality += Long.bitCount(wordsA[w] & wordsB[w]);
+      }
+      return cardinality;
+    }
+    if (a instanceof long[]) {
+      return andCardinality(b, a);
+    }
+    char[] values = (char[]) a;
+    int cardinality = 0;
+    if (b instanceof long[]) {
+      for (char value : values) {
+        if (contains((long[]) b, value)) {
+          cardinality++;
+        }
+      }
+      return cardinality;
+    }
+    char[] other = (char[]) b;
+    int i = 0;
+    int j = 0;
+    while (i < values.length && j < other.length) {
+      if (values[i] < other[j]) {
+        i++;
+      } else if (values[i] > other[j]) {
+        j++;
+      } else {
+        cardinality++;
+        i++;
+        j++;
+      }
+    }
+    return cardinality;
+  }
+
+  /** @return the intersection of two containers, null if empty */
+  private static Object and(Object a, Object b) {
+    if (a instanceof long[] && b instanceof long[]) {
+      long[] words = new long[BITSET_WORDS];
+      for (int w = 0; w < BITSET_WORDS; w++) {
+        words[w] = ((long[]) a)[w] & ((long[]) b)[w];
+      }
+      return compact(words);
+    }
+    if (a instanceof long[]) {
+      return and(b, a);
+    }
+    char[] values = (char[]) a;
+    char[] result = new char[values.length];
+    int n = 0;
+    if (b instanceof long[]) {
+      for (char value : values) {
+        if (contains((long[]) b, value)) {
+          result[n++] = value;
+        }
+      }
+    } else {
+      char[] other = (char[]) b;
+      int j = 0;
+      for (char value : values) {
+        while (j < other.length && other[j] < value) {
+          j++;
+        }
+        if (j < other.length && other[j] == value) {
+          result[n++] = value;
+        }
+      }
+    }
+    return n == 0 ? null : Arrays.copyOf(result, n);
+  }
+
+  /** @return the union of two containers */
+  private static Object or(Object a, Object b) {
+    if (a instanceof char[] && b instanceof char[]) {
+      char[] valuesA = (char[]) a;
+      char[] valuesB = (char[]) b;
+      char[] result = new char[valuesA.length + valuesB.length];
+      int n = 0;
+      int i = 0;
+      int j = 0;
+      while (i < valuesA.length || j < valuesB.length) {
+        if (j == valuesB.length || (i < valuesA.length && valuesA[i] < valuesB[j])) {
+          result[n++] = valuesA[i++];
+        } else if (i == valuesA.length || valuesA[i] > valuesB[j]) {
+          result[n++] = valuesB[j++];
+        } else {
+          result[n++] = valuesA[i++];
+          j++;
+        }
+      }
+      return n > ARRAY_MAX ? toBitset(result, n) : Arrays.copyOf(result, n);
+    }
+    long[] words = a instanceof long[] ? ((long[]) a).clone() : toBitset((char[]) a);
+    if (b instanceof long[]) {
+      for (int w = 0; w < BITSET_WORDS; w++) {
+        words[w] |= ((long[]) b)[w];
+      }
+    } else {
+      for (char value : (char[]) b) {
+        words[value >>> 6] |= 1L << value;
+      }
+    }
+    return words;
+  }
+
+  private static boolean contains(long[] words, char value) {
+    return (words[value >>> 6] & (1L << value)) != 0;
+  }
+
+  private static long[] toBitset(char[] values) {
+    return toBitset(values, values.length);
+  }
+
+  private static long[] toBitset(char[] values, int length) {
+    long[] words = new long[BITSET_WORDS];
+    for (int i = 0; i < length; i++) {
+      words[values[i] >>> 6] |= 1L << values[i];
+    }
+    return words;
+  }
+
+  /** @return the bitset, or an array if it has few rows, or null if it has none */
+  private static Object compact(long[] words) {
+    int cardinality = cardinality(words);
+    if (cardinality == 0) {
+      return null;
+    }
+    if (cardinality > ARRAY_MAX) {
+      return words;
+    }
+    char[] values = new char[cardinality];
+    int n = 0;
+    for (int w = 0; w < BITSET_WORDS; w++) {
+      long word = words[w];
+      while (word != 0) {
+        values[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return values;
+  }
+
+  /** Collects rows in increasing order. */
+  static final class Builder {
+    private char[] keys = new char[4];
+    private Object[] containers = new Object[4];
+    private int size;
+    // Low bits of the rows of the current group
+    private char[] values = new char[16];
+    private int length;
+    private int last = -1;
+
+    private Builder() {}
+
+    /** @param row row number, greater than the ones added before */
+    Builder add(int row) {
+      if (row <= last) {
+        throw new IllegalArgumentException("Rows must be added in increasing order: " + row);
+      }
+      if (length > 0 && (row >>> 16) != (last >>> 16)) {
+        flush();
+      }
+      if (length == values.length) {
+        values = Arrays.copyOf(values, length * 2);
+      }
+      values[length++] = (char) row;
+      last = row;
+      return this;
+    }
+
+    /** @return the last row added, or -1 */
+    int last() {
+      return last;
+    }
+
+    private void flush() {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        containers = Arrays.copyOf(containers, size * 2);
+      }
+      keys[size] = (char) (last >>> 16);
+      containers[size++] =
+          length > ARRAY_MAX ? toBitset(values, length) : Arrays.copyOf(values, length);
+      length = 0;
+    }
+
+    CompressedBitmap build() {
+      if (length > 0) {
+        flush();
+      }
+      return new CompressedBitmap(keys, containers, size);
+    }
+  }
+}
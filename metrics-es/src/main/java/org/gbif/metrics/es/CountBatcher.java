@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Collects the count loads that start within a short window, or until a maximum batch size is
+ * reached, and sends them to Elasticsearch as a single multi search. Each load completes on its
+ * own, and a failed or timed out search only fails its own load.
+ *
+ * <p>The multi search is called through the {@link CircuitBreaker} once per batch, so that a failed
+ * batch counts as a single failure and the time spent waiting for the batch to be sent does not
+ * make the call slow.
+ */
+public class CountBatcher implements Closeable {
+
+  @Data
+  @NoArgsConstructor
+  public static class BatchConfig {
+
+    // defaults
+    private static final long WINDOW_DEFAULT = 2;
+    private static final int MAX_BATCH_SIZE_DEFAULT = 50;
+
+    // Milliseconds a load waits for others to be sent with, disabled if 0
+    private long window = WINDOW_DEFAULT;
+    // Loads sent at once without waiting for the end of the window
+    private int maxBatchSize = MAX_BATCH_SIZE_DEFAULT;
+
+    public boolean isEnabled() {
+      return window > 0 && maxBatchSize > 1;
+    }
+  }
+
+  /** Counts several queries with a multi search. */
+  @FunctionalInterface
+  interface MultiCount {
+    CompletableFuture<MultiCountLoader.Counts> countAll(Collection<CountQuery> countQueries);
+  }
+
+  /** A load waiting to be sent. */
+  private static class Pending {
+    private final CountQuery countQuery;
+    private final CompletableFuture<Long> result = new CompletableFuture<>();
+    private final long submittedAt = System.nanoTime();
+
+    private Pending(CountQuery countQuery) {
+      this.countQuery = countQuery;
+    }
+  }
+
+  private final MultiCount multiCount;
+  private final CircuitBreaker circuitBreaker;
+  private final BatchConfig config;
+  private final ScheduledExecutorService scheduler;
+  private final DistributionSummary batchSize;
+  private final Timer waitTime;
+
+  private List<Pending> pending = new ArrayList<>();
+  private ScheduledFuture<?> scheduledSend;
+
+  CountBatcher(
+      MultiCount multiCount,
+      CircuitBreaker circuitBreaker,
+      BatchConfig config,
+      MeterRegistry meterRegistry) {
+    this.multiCount = multiCount;
+    this.circuitBreaker = circuitBreaker;
+    this.config = config;
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-count-batcher");
+              thread.setDaemon(true);
+              return thread;
+            });
+    batchSize =
+        DistributionSummary.builder("metrics.es.batch.size")
+            .description("Count loads sent in a multi search")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    waitTime =
+        Timer.builder("metrics.es.batch.wait")
+            .description("Time count loads wait for their batch to be sent")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+  }
+
+  /** @return future of the count, completed when the batch of the query is answered */
+  CompletableFuture<Long> submit(CountQuery countQuery) {
+    Pending load = new Pending(countQuery);
+    List<Pending> batch = null;
+    synchronized (this) {
+      pending.add(load);
+      if (pending.size() >= config.maxBatchSize) {
+        batch = drain();
+      } else if (pending.size() == 1) {
+        scheduledSend = scheduler.schedule(this::sendPending, config.window, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (batch != null) {
+      send(batch);
+    }
+    return load.result;
+  }
+
+  private void sendPending() {
+    List<Pending> batch;
+    synchronized (this) {
+      batch = drain();
+    }
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  // Must hold the lock
+  private List<Pending> drain() {
+    if (scheduledSend != null) {
+      scheduledSend.cancel(false);
+      scheduledSend = null;
+    }
+    List<Pending> batch = pending;
+    pending = new ArrayList<>();
+    return batch;
+  }
+
+  private void send(List<Pending> batch) {
+    long now = System.nanoTime();
+    batch.forEach(load -> waitTime.record(now - load.submittedAt, TimeUnit.NANOSECONDS));
+    batchSize.record(batch.size());
+
+    Set<CountQuery> queries = new LinkedHashSet<>();
+    batch.forEach(load -> queries.add(load.countQuery));
+    CompletableFuture<MultiCountLoader.Counts> loaded;
+    try {
+      loaded = circuitBreaker.call(() -> multiCount.countAll(queries));
+    } catch (RuntimeException ex) {
+      loaded = CompletableFuture.failedFuture(ex);
+    }
+    loaded.whenComplete(
+        (counts, ex) -> {
+          for (Pending load : batch) {
+            if (ex != null) {
+              load.result.completeExceptionally(ex);
+            } else if (counts.isPartial(load.countQuery)) {
+              load.result.completeExceptionally(
+                  new PartialResultException(counts.get(load.countQuery)));
+            } else if (counts.containsKey(load.countQuery)) {
+              load.result.complete(counts.get(load.countQuery));
+            } else {
+              load.result.completeExceptionally(
+                  new IOException("Error counting " + load.countQuery + " in a batch"));
+            }
+          }
+        });
+  }
+
+  /** Sends the pending loads and stops the scheduler. */
+  @Override
+  public void close() {
+    sendPending();
+    scheduler.shutdown();
+  }
+}
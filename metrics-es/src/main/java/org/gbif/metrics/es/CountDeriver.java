@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import org.gbif.api.vocabulary.Country;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cache2k.Cache;
+
+/**
+ * Answers count queries from cached aggregations without querying Elasticsearch.
+ *
+ * <p>A count query with a parameter on an aggregated dimension, e.g. {@code country=DK}, is one
+ * bucket of the aggregation of that dimension filtered by the remaining parameters, e.g. {@code
+ * AggregationQuery.ofCountriesOfPublishingCountry(null)}. Terms aggregations are only exact when
+ * every shard returned all its terms, so only aggregations with fewer buckets than the shard size,
+ * or of dimensions loaded exactly, are used; in those a missing bucket means a count of zero.
+ * Counts of a year or year range are taken from the cached year histogram of the remaining
+ * parameters.
+ */
+class CountDeriver {
+
+  private final Cache<AggregationQuery, CachedValue<AggregationResult>> aggregationsCache;
+  private final Cache<CountQuery, CachedValue<YearHistogram>> yearHistogramCache;
+  private final int shardSize;
+  // Dimensions whose aggregations are exact whatever their number of buckets
+  private final Set<String> exactDimensions;
+
+  CountDeriver(
+      Cache<AggregationQuery, CachedValue<AggregationResult>> aggregationsCache,
+      Cache<CountQuery, CachedValue<YearHistogram>> yearHistogramCache,
+      int shardSize,
+      Set<String> exactDimensions) {
+    this.aggregationsCache = aggregationsCache;
+    this.yearHistogramCache = yearHistogramCache;
+    this.shardSize = shardSize;
+    this.exactDimensions = exactDimensions;
+  }
+
+  /** @return the derived count or null if no cached aggregation can answer the query */
+  Long derive(CountQuery countQuery) {
+    for (Parameter parameter : countQuery.getParameters()) {
+      if (YearHistogram.isYear(parameter)) {
+        Set<Parameter> context = new HashSet<>(countQuery.getParameters());
+        context.remove(parameter);
+        CachedValue<YearHistogram> histogram = yearHistogramCache.peek(new CountQuery(context));
+        if (histogram != null) {
+          return histogram.getValue().count(parameter);
+        }
+        continue;
+      }
+      String label = bucketLabel(parameter);
+      if (label == null) {
+        continue;
+      }
+      Set<Parameter> remaining = new HashSet<>(countQuery.getParameters());
+      remaining.remove(parameter);
+      CachedValue<AggregationResult> aggregation =
+          aggregationsCache.peek(AggregationQuery.of(parameter.getName(), remaining));
+      if (aggregation != null
+          && (aggregation.getValue().size() < shardSize
+              || exactDimensions.contains(parameter.getName()))) {
+        Long count = aggregation.getValue().get(label);
+        return count != null ? count : 0L;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the label of the bucket that holds the count of a parameter value, in the format
+   *     produced by the key label transform of its aggregation, or null if the dimension is not
+   *     derivable
+   */
+  private static String bucketLabel(Parameter parameter) {
+    switch (parameter.getName()) {
+      case "country":
+      case "publishingCountry":
+        Country country = Country.fromIsoCode(parameter.getValue().toString());
+        return country != null ? country.name() : null;
+      case "basisOfRecord":
+        return ((Enum<?>) parameter.getValue()).name();
+      case "datasetKey":
+        return parameter.getValue().toString();
+      default:
+        return null;
+    }
+  }
+}
@@ -13,30 +13,41 @@
  */
 package org.gbif.metrics.es;
 
-import java.util.HashSet;
-import java.util.Objects;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.SortedMap;
 
 import lombok.Getter;
 
-/** Query to obtain simple occurrence counts based on a list of parameters. */
+/**
+ * Query to obtain simple occurrence counts based on a list of parameters.
+ *
+ * <p>Instances are immutable and used as cache keys: the parameters are sorted and the canonical
+ * key, which also determines equality, and its hash are computed once on creation.
+ */
 @Getter
 public class CountQuery {
 
   private final Set<Parameter> parameters;
 
+  // Canonical form of the parameters, see QueryCodec
+  private final String key;
+
   /**
    * Full constructors.
    *
    * @param parameters list of parameters.
    */
   public CountQuery(Set<Parameter> parameters) {
-    this.parameters = parameters;
+    SortedMap<String, Parameter> sorted = QueryCodec.sort(parameters);
+    this.parameters = Collections.unmodifiableSet(new LinkedHashSet<>(sorted.values()));
+    this.key = QueryCodec.countKey(sorted);
   }
 
   /** Creates an instance with an initial list of empty parameters. */
   public CountQuery() {
-    this.parameters = new HashSet<>();
+    this(Collections.emptySet());
   }
 
   @Override
@@ -48,23 +59,30 @@ public class CountQuery {
       return false;
     }
     CountQuery that = (CountQuery) o;
-    return that.parameters.equals(this.parameters);
+    return that.key.equals(this.key);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(parameters);
+    // String caches its own hash
+    return key.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return key;
   }
 
   /**
-   * Adds a parameter to the list and return this instance to make this a chainable call.
+   * Creates a copy of this query with an additional parameter, this instance is not modified.
    *
    * @param name parameter key/name
    * @param value parameter value
-   * @return current instance
+   * @return a new instance with the parameter added
    */
   public CountQuery withParameter(String name, String value) {
-    parameters.add(new Parameter(name, value));
-    return this;
+    Set<Parameter> newParameters = new LinkedHashSet<>(parameters);
+    newParameters.add(new Parameter(name, value));
+    return new CountQuery(newParameters);
   }
 }
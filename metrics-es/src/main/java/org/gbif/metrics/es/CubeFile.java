@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * File of the {@link RollupTable}s of the cube, opened with memory maps so that the tables are
+ * queried in place, outside the heap, as soon as the file is opened. Layout, big-endian:
+ *
+ * <pre>
+ * header    int magic, int version, long createdAt, int tables,
+ *           long offset and long length of each table
+ * tables    the buffer of each table, aligned to 8 bytes
+ * </pre>
+ */
+final class CubeFile {
+
+  private static final int MAGIC = 0x47435542; // "GCUB"
+  private static final int VERSION = 1;
+
+  private CubeFile() {}
+
+  /**
+   * Writes the tables to a temporary file that then atomically replaces the previous one, which
+   * stays readable through the maps already open.
+   */
+  static void write(Path path, Collection<RollupTable> tables) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    ByteBuffer header = ByteBuffer.allocate(20 + tables.size() * 16);
+    header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+    header.putInt(tables.size());
+    long offset = align(header.capacity());
+    for (RollupTable table : tables) {
+      long length = table.getBuffer().remaining();
+      header.putLong(offset).putLong(length);
+      offset = align(offset + length);
+    }
+    try (FileChannel channel =
+        FileChannel.open(
+            tmp,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      writeFully(channel, header.flip(), 0);
+      int t = 0;
+      for (RollupTable table : tables) {
+        writeFully(channel, table.getBuffer(), header.getLong(20 + t++ * 16));
+      }
+      channel.force(true);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** @return the tables of a file, each one mapped separately */
+  static List<RollupTable> open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer header =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 20));
+      if (header.capacity() < 20 || header.getInt(0) != MAGIC) {
+        throw new IOException("Not a cube file: " + path);
+      }
+      if (header.getInt(4) != VERSION) {
+        throw new IOException("Unsupported version " + header.getInt(4) + " of cube file " + path);
+      }
+      int count = header.getInt(16);
+      MappedByteBuffer directory =
+          channel.map(FileChannel.MapMode.READ_ONLY, 20, (long) count * 16);
+      List<RollupTable> tables = new ArrayList<>(count);
+      for (int t = 0; t < count; t++) {
+        long offset = directory.getLong(t * 16);
+        long length = directory.getLong(t * 16 + 8);
+        tables.add(RollupTable.of(channel.map(FileChannel.MapMode.READ_ONLY, offset, length)));
+      }
+      return tables;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) / 8 * 8;
+  }
+}
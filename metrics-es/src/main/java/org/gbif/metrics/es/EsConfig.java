@@ -34,4 +34,7 @@ public class EsConfig {
   private int socketTimeout = SOCKET_TIMEOUT_DEFAULT;
   private int sniffInterval = SNIFF_INTERVAL_DEFAULT;
   private int sniffAfterFailureDelay = SNIFF_AFTER_FAILURE_DELAY_DEFAULT;
+  private LatencyAwareNodeSelector.SelectorConfig nodeSelector =
+      new LatencyAwareNodeSelector.SelectorConfig();
+  private HedgingClient.HedgeConfig hedge = new HedgingClient.HedgeConfig();
 }
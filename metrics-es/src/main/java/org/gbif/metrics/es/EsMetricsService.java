@@ -13,48 +13,80 @@
  */
 package org.gbif.metrics.es;
 
+import org.gbif.metrics.AsyncMetricsService;
 import org.gbif.metrics.MetricsCacheService;
 import org.gbif.metrics.MetricsService;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
+import org.cache2k.CacheEntry;
+import org.cache2k.event.CacheEntryEvictedListener;
 import org.cache2k.expiry.Expiry;
+import org.cache2k.operation.CacheControl;
+import org.cache2k.operation.Weigher;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 /** MetricsSevice based on Elasticsearch. */
-public class EsMetricsService implements MetricsService, MetricsCacheService {
+public class EsMetricsService
+    implements MetricsService, AsyncMetricsService, MetricsCacheService, Closeable {
 
   private static final Logger LOG = LoggerFactory.getLogger(EsMetricsService.class);
 
   private static final int AGG_SIZE = 30_000;
-  private static final int SHARD_SIZE = 10_000;
+  static final int SHARD_SIZE = 10_000;
+
+  // Partial results only need to outlive the notification of the callers of their load
+  private static final long PARTIAL_RESULT_LIFETIME = 10_000;
+  private static final int PARTIAL_RESULT_CAPACITY = 1_000;
+
+  // Dimensions aggregated by paging through a composite aggregation
+  static final Set<String> HIGH_CARDINALITY_DIMENSIONS = Collections.singleton("datasetKey");
 
   // Map of dimensions/parameter.name to Elasticsearch fields
   private static final Map<String, String> DIMENSION_TO_ES_FIELD;
@@ -77,14 +109,68 @@ public class EsMetricsService implements MetricsService, MetricsCacheService {
   }
 
   // Cache for count queries
-  private final Cache<CountQuery, Long> countCache;
+  private final Cache<CountQuery, CachedValue<Long>> countCache;
 
   // Cache for aggregation queries
-  private final Cache<AggregationQuery, Map<String, Long>> aggregationsCache;
+  private final Cache<AggregationQuery, CachedValue<AggregationResult>> aggregationsCache;
+
+  // Cache of the year histograms, keyed by the parameters other than the year
+  private final Cache<CountQuery, CachedValue<YearHistogram>> yearHistogramCache;
 
   private final String esIndex;
 
-  private final RestHighLevelClient esClient;
+  // Sends the requests of the loaders, hedging the slow ones if enabled
+  private final HedgingClient hedgingClient;
+
+  // Shared by the loaders of all caches because they call the same cluster
+  private final CircuitBreaker circuitBreaker;
+
+  // Milliseconds Elasticsearch is given for each load, none if 0
+  private final long deadline;
+
+  // How long entries live after being loaded, extended while the IndexGenerationWatcher confirms
+  // that the index is unchanged
+  private final long expireAfterWrite;
+  private final long maxEntryLifetime;
+  private volatile long entryLifetime;
+
+  // Partial results of the loads that reached their deadline, by cache name and key. They are
+  // never cached, only kept aside for the callers that were waiting for those loads.
+  private final Cache<List<Object>, PartialResultException> partialResults =
+      new Cache2kBuilder<List<Object>, PartialResultException>() {}.expireAfterWrite(
+              PARTIAL_RESULT_LIFETIME, TimeUnit.MILLISECONDS)
+          .entryCapacity(PARTIAL_RESULT_CAPACITY)
+          .build();
+
+  // Statistics and refresh executors of the caches, by cache name
+  private final Map<String, Supplier<CacheStats>> cacheStats = new LinkedHashMap<>();
+  private final List<ThreadPoolExecutor> refreshExecutors = new ArrayList<>();
+
+  // Most requested queries, replayed by the CacheWarmer at startup
+  private final HotKeyLog hotKeyLog;
+
+  // Counts queries, the misses of count batches with a single multi search
+  private final MultiCountLoader multiCountLoader;
+
+  // Sends the count loads that start together as one multi search, null if disabled
+  private final CountBatcher countBatcher;
+
+  // Loads the aggregations of the inventory endpoints with one search
+  private final InventoryPrefetcher inventoryPrefetcher;
+
+  // Loads the aggregations of the high-cardinality dimensions page by page
+  private final CompositeAggregationLoader compositeAggregationLoader;
+
+  // Loads the other terms aggregations with filtered responses parsed as a stream
+  private final LeanAggregationLoader leanAggregationLoader;
+
+  // Answers count queries from cached aggregations
+  private final CountDeriver countDeriver;
+  private final Counter derivedCounts;
+  private final Counter cachedCounts;
+
+  // Receives the latency of the loads answered by Elasticsearch
+  private volatile LoadListener loadListener = (cache, key, millis) -> {};
 
   private static Optional<Parameter> getChecklistKeyParameter(Collection<Parameter> parameters) {
     return parameters.stream()
@@ -92,6 +178,11 @@ public class EsMetricsService implements MetricsService, MetricsCacheService {
         .findFirst();
   }
 
+  /** @return Elasticsearch field of a dimension other than the taxonomic ones */
+  static String esField(String dimension) {
+    return DIMENSION_TO_ES_FIELD.get(dimension);
+  }
+
   private String getDimensionToEsField(AggregationQuery aggregationQuery) {
     Optional<Parameter> checklistKeyParam =
         getChecklistKeyParameter(aggregationQuery.getParameters());
@@ -124,101 +215,442 @@ public class EsMetricsService implements MetricsService, MetricsCacheService {
   @Data
   @NoArgsConstructor
   public static class CacheConfig {
+
+    // defaults
+    private static final long MAX_STALENESS_DEFAULT = TimeUnit.HOURS.toMillis(1);
+    private static final long DEADLINE_DEFAULT = TimeUnit.MINUTES.toMillis(1);
+
     private long expireAfterWrite;
     private long entryCapacity;
+    // Maximum estimated heap bytes of each cache, used instead of the entryCapacity if set
+    private long maximumBytes;
     private boolean refreshAhead;
+    private CacheSnapshot.SnapshotConfig snapshot = new CacheSnapshot.SnapshotConfig();
+    private CacheWarmer.WarmupConfig warmup = new CacheWarmer.WarmupConfig();
+    private IndexGenerationWatcher.GenerationConfig generation =
+        new IndexGenerationWatcher.GenerationConfig();
+    // How long past its expiry a value is still served while it cannot be reloaded
+    private long maxStaleness = MAX_STALENESS_DEFAULT;
+    // Milliseconds Elasticsearch is given for a load, as the timeout of its searches, after which
+    // the results found so far are returned as partial and never cached. Disabled if 0
+    private long deadline = DEADLINE_DEFAULT;
+    private CircuitBreaker.BreakerConfig breaker = new CircuitBreaker.BreakerConfig();
+    private CountBatcher.BatchConfig batch = new CountBatcher.BatchConfig();
+    private InventoryPrefetcher.PrefetchConfig prefetch = new InventoryPrefetcher.PrefetchConfig();
+    private RollupCubeMetricsService.CubeConfig cube = new RollupCubeMetricsService.CubeConfig();
+    private QueryPlanner.PlannerConfig planner = new QueryPlanner.PlannerConfig();
+
+    /**
+     * @return the longest time entries live after being loaded, extended if the index generation is
+     *     watched because entries are then refreshed when the index changes
+     */
+    long getMaxEntryLifetime() {
+      return generation.isEnabled()
+          ? Math.max(expireAfterWrite, generation.getMaxExpireAfterWrite())
+          : expireAfterWrite;
+    }
   }
 
   public EsMetricsService(
       String esIndex,
       CacheConfig cacheConfig,
-      RestHighLevelClient esClient,
-      String defaultChecklistKey) {
+      HedgingClient hedgingClient,
+      String defaultChecklistKey,
+      MeterRegistry meterRegistry) {
     this.esIndex = esIndex;
-    this.esClient = esClient;
+    this.hedgingClient = hedgingClient;
     this.defaultChecklistKey = defaultChecklistKey;
+    circuitBreaker = new CircuitBreaker(cacheConfig.breaker, meterRegistry);
+    deadline = cacheConfig.deadline;
+    expireAfterWrite = cacheConfig.expireAfterWrite;
+    maxEntryLifetime = cacheConfig.getMaxEntryLifetime();
+    entryLifetime = expireAfterWrite;
+    multiCountLoader =
+        new MultiCountLoader(hedgingClient, esIndex, this::buildCountQuery, deadline);
+    countBatcher =
+        cacheConfig.batch.isEnabled()
+            ? new CountBatcher(
+                multiCountLoader::countAll, circuitBreaker, cacheConfig.batch, meterRegistry)
+            : null;
     countCache =
-        new Cache2kBuilder<CountQuery, Long>() {}.loader(this::loadCount)
-            .expireAfterWrite(cacheConfig.expireAfterWrite, TimeUnit.MILLISECONDS)
-            .refreshAhead(cacheConfig.refreshAhead)
-            .entryCapacity(cacheConfig.entryCapacity)
-            .build();
+        buildCache(
+            new Cache2kBuilder<CountQuery, CachedValue<Long>>() {},
+            this::loadCount,
+            cacheConfig,
+            CacheWeights::weigh,
+            "count",
+            meterRegistry);
 
     aggregationsCache =
-        new Cache2kBuilder<AggregationQuery, Map<String, Long>>() {}.loader(this::loadAggregation)
-            .expireAfterWrite(cacheConfig.expireAfterWrite, TimeUnit.MILLISECONDS)
-            .refreshAhead(cacheConfig.refreshAhead)
-            .entryCapacity(cacheConfig.entryCapacity)
-            .build();
+        buildCache(
+            new Cache2kBuilder<AggregationQuery, CachedValue<AggregationResult>>() {},
+            q -> circuitBreaker.call(() -> loadAggregation(q)),
+            cacheConfig,
+            CacheWeights::weigh,
+            "aggregations",
+            meterRegistry);
+
+    yearHistogramCache =
+        buildCache(
+            new Cache2kBuilder<CountQuery, CachedValue<YearHistogram>>() {},
+            q -> circuitBreaker.call(() -> loadYearHistogram(q)),
+            cacheConfig,
+            CacheWeights::weighHistogram,
+            "years",
+            meterRegistry);
+
+    hotKeyLog = new HotKeyLog(cacheConfig.warmup);
+    hotKeyLog.start();
+
+    inventoryPrefetcher =
+        new InventoryPrefetcher(
+            request ->
+                hedgingClient.call(
+                    (client, options, listener) -> client.searchAsync(request, options, listener),
+                    deadline),
+            esIndex,
+            cacheConfig.prefetch,
+            this::buildTermsAggregation,
+            buildYearHistogram(),
+            deadline,
+            this::putInventory);
+    compositeAggregationLoader = new CompositeAggregationLoader(hedgingClient, esIndex, deadline);
+    leanAggregationLoader = new LeanAggregationLoader(hedgingClient, esIndex, deadline);
+    countDeriver =
+        new CountDeriver(
+            aggregationsCache, yearHistogramCache, SHARD_SIZE, HIGH_CARDINALITY_DIMENSIONS);
+    derivedCounts = countAnswers("derived", meterRegistry);
+    cachedCounts = countAnswers("count", meterRegistry);
+  }
+
+  static Counter countAnswers(String source, MeterRegistry meterRegistry) {
+    return Counter.builder("metrics.count.answers")
+        .tag("source", source)
+        .description("Count queries answered by the count cache, aggregations or rollup cube")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Applies the common configuration to a cache builder, with a {@link ResilientLoader} around the
+   * loader and a refresh executor whose queue can be monitored, and registers the metrics and
+   * statistics of the cache, tagged with its name.
+   */
+  private <K, V> Cache<K, CachedValue<V>> buildCache(
+      Cache2kBuilder<K, CachedValue<V>> builder,
+      ResilientLoader.Loader<K, V> loader,
+      CacheConfig cacheConfig,
+      Weigher<K, CachedValue<V>> weigher,
+      String name,
+      MeterRegistry meterRegistry) {
+    LongAdder evictions = new LongAdder();
+    long retryInterval = cacheConfig.breaker.getOpenDuration();
+    ResilientLoader<K, V> resilientLoader =
+        new ResilientLoader<>(
+            loader,
+            (key, partial) -> partialResults.put(Arrays.asList(name, key), partial),
+            (key, millis) -> loadListener.loaded(name, key, millis),
+            this::getEntryLifetime,
+            cacheConfig,
+            name,
+            meterRegistry);
+    ThreadPoolExecutor refreshExecutor = buildRefreshExecutor(name);
+    refreshExecutors.add(refreshExecutor);
+    // Entries expire relative to their load time, which is older than the insertion time for
+    // entries restored from a snapshot. Stale values kept after a failed load are retried later.
+    builder
+        .loader(resilientLoader)
+        .refreshExecutor(refreshExecutor)
+        .expiryPolicy(
+            (key, value, startTime, currentEntry) -> {
+              long expiry = value.getLoadedAt() + entryLifetime;
+              return expiry > startTime ? expiry : startTime + retryInterval;
+            })
+        .expireAfterWrite(maxEntryLifetime, TimeUnit.MILLISECONDS)
+        .keepDataAfterExpired(true)
+        .refreshAhead(cacheConfig.refreshAhead)
+        .addListener(
+            (CacheEntryEvictedListener<K, CachedValue<V>>) (cache, entry) -> evictions.increment());
+    if (cacheConfig.maximumBytes > 0) {
+      builder.weigher(weigher).maximumWeight(cacheConfig.maximumBytes);
+    } else {
+      builder.entryCapacity(cacheConfig.entryCapacity);
+    }
+    Cache<K, CachedValue<V>> cache = builder.build();
+
+    Gauge.builder("metrics.cache.size", cache, c -> CacheControl.of(c).getSize())
+        .tag("cache", name)
+        .description("Number of entries in the cache")
+        .register(meterRegistry);
+    if (cacheConfig.maximumBytes > 0) {
+      Gauge.builder(
+              "metrics.cache.estimated.bytes", cache, c -> CacheControl.of(c).getTotalWeight())
+          .tag("cache", name)
+          .description("Estimated heap used by the entries of the cache")
+          .baseUnit("bytes")
+          .register(meterRegistry);
+    }
+    FunctionCounter.builder("metrics.cache.evictions", evictions, LongAdder::sum)
+        .tag("cache", name)
+        .description("Number of entries evicted to respect the cache capacity")
+        .register(meterRegistry);
+    Gauge.builder("metrics.cache.refresh.queue", refreshExecutor, e -> e.getQueue().size())
+        .tag("cache", name)
+        .description("Refreshes waiting for a loader thread")
+        .register(meterRegistry);
+
+    boolean weighed = cacheConfig.maximumBytes > 0;
+    cacheStats.put(
+        name,
+        () ->
+            CacheStats.of(
+                cache, weigher, weighed, resilientLoader.getLoadTimer(), refreshExecutor));
+    return cache;
+  }
+
+  /** Executor for refreshes, sized like the default loader executor of cache2k. */
+  private static ThreadPoolExecutor buildRefreshExecutor(String name) {
+    int threads = Runtime.getRuntime().availableProcessors() * 2;
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            1,
+            TimeUnit.MINUTES,
+            new LinkedBlockingQueue<>(),
+            r -> {
+              Thread thread = new Thread(r, "metrics-cache-refresh-" + name);
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  Cache<CountQuery, CachedValue<Long>> getCountCache() {
+    return countCache;
+  }
+
+  Cache<AggregationQuery, CachedValue<AggregationResult>> getAggregationsCache() {
+    return aggregationsCache;
+  }
+
+  Cache<CountQuery, CachedValue<YearHistogram>> getYearHistogramCache() {
+    return yearHistogramCache;
+  }
+
+  HotKeyLog getHotKeyLog() {
+    return hotKeyLog;
   }
 
-  /** Loader function for the count queries cache. */
-  private Long loadCount(CountQuery countQuery) {
-    try {
-      return esClient.count(buildCountRequest(countQuery), RequestOptions.DEFAULT).getCount();
-    } catch (IOException ex) {
-      LOG.error("Error executing CountQuery {}", countQuery, ex);
-      throw new RuntimeException(ex);
+  /** @return how long the entries loaded now live */
+  long getEntryLifetime() {
+    return entryLifetime;
+  }
+
+  /**
+   * Sets whether the generation of the index is currently watched. While it is, entries loaded from
+   * then on live for the maximum lifetime. When it no longer is, e.g. after failed polls, the
+   * lifetime is shortened back to the configured expireAfterWrite, also for the entries already
+   * cached, and the entries that outlived it are expired at random times within the given window.
+   */
+  void setGenerationWatched(boolean watched, long spreadMillis) {
+    long lifetime = watched ? maxEntryLifetime : expireAfterWrite;
+    if (lifetime == entryLifetime) {
+      return;
+    }
+    entryLifetime = lifetime;
+    if (!watched) {
+      LOG.info("Shortening the lifetime of all cached entries to {} ms", lifetime);
+      shortenLifetime(countCache, lifetime, spreadMillis);
+      shortenLifetime(aggregationsCache, lifetime, spreadMillis);
+      shortenLifetime(yearHistogramCache, lifetime, spreadMillis);
+    }
+  }
+
+  private static <K> void shortenLifetime(
+      Cache<K, ? extends CachedValue<?>> cache, long lifetime, long spreadMillis) {
+    long now = System.currentTimeMillis();
+    for (K key : cache.asMap().keySet()) {
+      cache.invoke(
+          key,
+          e -> {
+            if (e.exists()) {
+              long expiry = e.getValue().getLoadedAt() + lifetime;
+              if (expiry <= now) {
+                expiry = now + ThreadLocalRandom.current().nextLong(Math.max(spreadMillis, 1));
+              }
+              if (expiry < e.getExpiryTime()) {
+                e.setExpiryTime(expiry);
+              }
+            }
+            return null;
+          });
     }
   }
 
+  /** @return true if the count is cached, even if expired and served stale */
+  boolean isCached(CountQuery countQuery) {
+    return countCache.peek(countQuery) != null;
+  }
+
+  /** @return true if the aggregation, or the year histogram it is a slice of, is cached */
+  boolean isCached(AggregationQuery aggregationQuery) {
+    return isYearAggregation(aggregationQuery)
+        ? yearHistogramCache.peek(yearContext(aggregationQuery)) != null
+        : aggregationsCache.peek(aggregationQuery) != null;
+  }
+
+  /** @return the number of values of a dimension if its unfiltered aggregation is cached */
+  Integer cardinality(String dimension) {
+    CachedValue<AggregationResult> aggregation =
+        aggregationsCache.peek(AggregationQuery.of(dimension, Collections.emptySet()));
+    return aggregation == null ? null : aggregation.getValue().size();
+  }
+
+  /** @return the number of refreshes running or waiting for a thread */
+  int pendingRefreshes() {
+    return refreshExecutors.stream().mapToInt(e -> e.getQueue().size() + e.getActiveCount()).sum();
+  }
+
+  /**
+   * Loader function for the count queries cache. Batched loads go through the circuit breaker once
+   * per batch.
+   */
+  private CompletableFuture<Long> loadCount(CountQuery countQuery) {
+    if (countBatcher != null) {
+      return countBatcher.submit(countQuery);
+    }
+    return circuitBreaker.call(() -> multiCountLoader.count(countQuery));
+  }
+
   /** Loader function for the aggregation queries cache. */
-  private Map<String, Long> loadAggregation(AggregationQuery aggregationQuery) {
-    try {
-      SearchResponse response =
-          esClient.search(buildCountsAggregateRequest(aggregationQuery), RequestOptions.DEFAULT);
-      List<? extends Terms.Bucket> buckets =
-          ((Terms) response.getAggregations().get(aggregationQuery.getDimension())).getBuckets();
-      Map<String, Long> aggregation = new LinkedHashMap<>(buckets.size());
-      // Results added in reverse order because the ES API returns them like that
-      for (int i = buckets.size() - 1; i >= 0; i--) {
-        Terms.Bucket bucket = buckets.get(i);
-        aggregation.put(
-            aggregationQuery.getKeyLabelTransform().apply(bucket.getKeyAsString()),
-            bucket.getDocCount());
-      }
-      return aggregation;
-    } catch (IOException ex) {
-      LOG.error("Error executing AggregationQuery {}", aggregationQuery, ex);
-      throw new RuntimeException(ex);
+  private CompletableFuture<AggregationResult> loadAggregation(AggregationQuery aggregationQuery) {
+    if (inventoryPrefetcher.covers(aggregationQuery)) {
+      return inventoryPrefetcher
+          .fetch()
+          .thenApply(
+              r ->
+                  PartialResultException.requireComplete(
+                      toAggregationResult(aggregationQuery, r), r.isTimedOut()));
+    }
+    if (HIGH_CARDINALITY_DIMENSIONS.contains(aggregationQuery.getDimension())) {
+      return compositeAggregationLoader.load(
+          aggregationQuery,
+          buildAggregationQuery(aggregationQuery),
+          getDimensionToEsField(aggregationQuery));
     }
+    return leanAggregationLoader.load(
+        aggregationQuery, buildCountsAggregateSource(aggregationQuery));
   }
 
-  /** Builds an Elasticsearch {@link CountRequest} from a {@link CountQuery}. */
-  private CountRequest buildCountRequest(CountQuery countQuery) {
+  private static AggregationResult toAggregationResult(
+      AggregationQuery aggregationQuery, SearchResponse response) {
+    List<? extends Terms.Bucket> buckets =
+        ((Terms) response.getAggregations().get(aggregationQuery.getDimension())).getBuckets();
+    AggregationResult.Builder aggregation =
+        AggregationResult.builder(aggregationQuery.getDimension(), buckets.size());
+    // Results added in reverse order because the ES API returns them like that
+    for (int i = buckets.size() - 1; i >= 0; i--) {
+      Terms.Bucket bucket = buckets.get(i);
+      aggregation.add(
+          aggregationQuery.getKeyLabelTransform().apply(bucket.getKeyAsString()),
+          bucket.getDocCount());
+    }
+    return aggregation.build();
+  }
+
+  /** Loader function for the year histograms cache. */
+  private CompletableFuture<YearHistogram> loadYearHistogram(CountQuery context) {
+    if (inventoryPrefetcher.covers(context)) {
+      return inventoryPrefetcher
+          .fetch()
+          .thenApply(
+              r -> PartialResultException.requireComplete(toYearHistogram(r), r.isTimedOut()));
+    }
+    SearchRequest request = buildYearHistogramRequest(context);
+    return hedgingClient
+        .<SearchResponse>call(
+            (client, options, listener) -> client.searchAsync(request, options, listener), deadline)
+        .thenApply(r -> PartialResultException.requireComplete(toYearHistogram(r), r.isTimedOut()));
+  }
+
+  private static YearHistogram toYearHistogram(SearchResponse response) {
+    Map<Integer, Long> yearCounts = new HashMap<>();
+    for (Histogram.Bucket bucket :
+        ((Histogram) response.getAggregations().get(YearHistogram.YEAR)).getBuckets()) {
+      yearCounts.put(((Number) bucket.getKey()).intValue(), bucket.getDocCount());
+    }
+    return YearHistogram.of(yearCounts);
+  }
+
+  /** Puts all the inventory aggregations of a new combined response in the caches. */
+  void putInventory(SearchResponse response) {
+    InventoryPrefetcher.AGGREGATIONS.forEach(
+        q -> aggregationsCache.put(q, CachedValue.loadedNow(toAggregationResult(q, response))));
+    yearHistogramCache.put(
+        InventoryPrefetcher.YEAR_CONTEXT, CachedValue.loadedNow(toYearHistogram(response)));
+  }
+
+  /** Builds the Elasticsearch query of the filters of a {@link CountQuery}. */
+  private QueryBuilder buildCountQuery(CountQuery countQuery) {
     BoolQueryBuilder bool = QueryBuilders.boolQuery();
     countQuery.getParameters().forEach(p -> bool.filter().add(buildQuery(p, countQuery)));
-    CountRequest countRequest = new CountRequest();
-    countRequest.query(bool);
-    countRequest.indices(esIndex);
-    return countRequest;
+    return bool;
   }
 
-  /**
-   * Builds a {@link SearchRequest} with the aggregation parameters from a {@link AggregationQuery}.
-   */
-  private SearchRequest buildCountsAggregateRequest(AggregationQuery aggregationQuery) {
-    TermsAggregationBuilder aggregation =
-        AggregationBuilders.terms(aggregationQuery.getDimension())
-            .order(BucketOrder.count(true)) // Order by count
-            .field(getDimensionToEsField(aggregationQuery))
-            .size(AGG_SIZE)
-            .shardSize(SHARD_SIZE);
+  /** Builds the search source with the aggregation parameters from a {@link AggregationQuery}. */
+  private SearchSourceBuilder buildCountsAggregateSource(AggregationQuery aggregationQuery) {
+    SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    searchSourceBuilder.query(buildAggregationQuery(aggregationQuery));
+    searchSourceBuilder.size(0);
+    searchSourceBuilder.aggregation(buildTermsAggregation(aggregationQuery));
+    return searchSourceBuilder;
+  }
+
+  /** Builds the Elasticsearch query of the filters of an {@link AggregationQuery}. */
+  private QueryBuilder buildAggregationQuery(AggregationQuery aggregationQuery) {
     BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
     aggregationQuery
         .getParameters()
         .forEach(parameter -> boolQueryBuilder.filter(buildQuery(parameter, aggregationQuery)));
+    return boolQueryBuilder.filter().isEmpty() ? QueryBuilders.matchAllQuery() : boolQueryBuilder;
+  }
+
+  /** Builds the terms aggregation of an {@link AggregationQuery}, named as its dimension. */
+  private TermsAggregationBuilder buildTermsAggregation(AggregationQuery aggregationQuery) {
+    return AggregationBuilders.terms(aggregationQuery.getDimension())
+        .order(BucketOrder.count(true)) // Order by count
+        .field(getDimensionToEsField(aggregationQuery))
+        .size(AGG_SIZE)
+        .shardSize(SHARD_SIZE);
+  }
+
+  /** Builds a {@link SearchRequest} with a histogram of all the years of a filter context. */
+  private SearchRequest buildYearHistogramRequest(CountQuery context) {
+    BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+    context.getParameters().forEach(p -> boolQueryBuilder.filter(buildQuery(p, context)));
     SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
     searchSourceBuilder.query(
         boolQueryBuilder.filter().isEmpty() ? QueryBuilders.matchAllQuery() : boolQueryBuilder);
     searchSourceBuilder.size(0);
-    searchSourceBuilder.aggregation(aggregation);
+    searchSourceBuilder.aggregation(buildYearHistogram());
+    if (deadline > 0) {
+      searchSourceBuilder.timeout(TimeValue.timeValueMillis(deadline));
+    }
     SearchRequest searchRequest = new SearchRequest();
     searchRequest.source(searchSourceBuilder);
     searchRequest.indices(esIndex);
     return searchRequest;
   }
 
+  /** Builds the histogram aggregation of all the years, named as the year dimension. */
+  private static HistogramAggregationBuilder buildYearHistogram() {
+    return AggregationBuilders.histogram(YearHistogram.YEAR)
+        .field(DIMENSION_TO_ES_FIELD.get(YearHistogram.YEAR))
+        .interval(1)
+        .minDocCount(1);
+  }
+
   /** Consolidated query builder that uses the provided context parameters to resolve ES fields. */
   private QueryBuilder buildQuery(Parameter parameter, Collection<Parameter> ctxParameters) {
     if (parameter.getValue() instanceof YearRange) {
@@ -251,6 +683,121 @@ public class EsMetricsService implements MetricsService, MetricsCacheService {
   public void flush() {
     countCache.removeAll();
     aggregationsCache.removeAll();
+    yearHistogramCache.removeAll();
+  }
+
+  @Override
+  public void flush(CountQuery countQuery) {
+    LOG.info("Flushing count query {}", countQuery);
+    countCache.remove(countQuery);
+  }
+
+  @Override
+  public void flush(AggregationQuery aggregationQuery) {
+    LOG.info("Flushing aggregation query {}", aggregationQuery);
+    if (isYearAggregation(aggregationQuery)) {
+      yearHistogramCache.remove(yearContext(aggregationQuery));
+    } else {
+      aggregationsCache.remove(aggregationQuery);
+    }
+  }
+
+  @Override
+  public int flush(Parameter parameter) {
+    int flushed =
+        removeMatching(countCache, q -> q.getParameters().contains(parameter))
+            + removeMatching(aggregationsCache, q -> q.getParameters().contains(parameter))
+            + removeMatching(yearHistogramCache, q -> q.getParameters().contains(parameter));
+    LOG.info("Flushed {} entries of queries with {}", flushed, parameter);
+    return flushed;
+  }
+
+  @Override
+  public int refresh(Parameter parameter) {
+    int refreshed =
+        refreshMatching(countCache, q -> q.getParameters().contains(parameter))
+            + refreshMatching(aggregationsCache, q -> q.getParameters().contains(parameter))
+            + refreshMatching(yearHistogramCache, q -> q.getParameters().contains(parameter));
+    LOG.info("Expiring and refreshing {} entries of queries with {}", refreshed, parameter);
+    return refreshed;
+  }
+
+  /**
+   * Evicts and refreshes the cached results that the changes of some datasets make stale, scanning
+   * each cache once: the results of the queries of those datasets, and of the queries of no dataset
+   * whose dimensions, parameters and aggregated dimension, are all dimensions of a changed rollup,
+   * e.g. the unfiltered aggregations or the counts by country. The queries of other datasets are
+   * left to expire as usual, and so are the queries of no dataset outside the rollups.
+   *
+   * @param datasetKeys keys of the changed datasets
+   * @param rollups dimensions of each rollup the changes were applied to
+   * @return the number of refreshed entries
+   */
+  public int refreshDatasets(Collection<String> datasetKeys, Collection<Set<String>> rollups) {
+    Set<Parameter> changed =
+        datasetKeys.stream().map(k -> new Parameter("datasetKey", k)).collect(Collectors.toSet());
+    int refreshed =
+        refreshMatching(countCache, q -> isStale(q.getParameters(), null, changed, rollups))
+            + refreshMatching(
+                aggregationsCache,
+                q -> isStale(q.getParameters(), q.getDimension(), changed, rollups))
+            + refreshMatching(
+                yearHistogramCache,
+                q -> isStale(q.getParameters(), YearHistogram.YEAR, changed, rollups));
+    LOG.info(
+        "Expiring and refreshing {} entries of {} changed datasets", refreshed, changed.size());
+    return refreshed;
+  }
+
+  /**
+   * @param dimension aggregated dimension of the query, null for a count
+   * @return true if the result of a query changes with the changed datasets, see {@link
+   *     #refreshDatasets(Collection, Collection)}
+   */
+  private static boolean isStale(
+      Collection<Parameter> parameters,
+      String dimension,
+      Set<Parameter> changed,
+      Collection<Set<String>> rollups) {
+    Set<String> dimensions = new HashSet<>();
+    if (dimension != null) {
+      dimensions.add(dimension);
+    }
+    for (Parameter parameter : parameters) {
+      if ("datasetKey".equals(parameter.getName())) {
+        return changed.contains(parameter);
+      }
+      dimensions.add(parameter.getName());
+    }
+    return rollups.stream().anyMatch(r -> r.containsAll(dimensions));
+  }
+
+  private static <K> int removeMatching(Cache<K, ?> cache, Predicate<K> matches) {
+    int removed = 0;
+    for (K key : cache.asMap().keySet()) {
+      if (matches.test(key) && cache.containsAndRemove(key)) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  private static <K> int refreshMatching(Cache<K, ?> cache, Predicate<K> matches) {
+    int refreshed = 0;
+    for (K key : cache.asMap().keySet()) {
+      if (matches.test(key)) {
+        cache.invoke(key, e -> e.setExpiryTime(Expiry.REFRESH));
+        refreshed++;
+      }
+    }
+    return refreshed;
+  }
+
+  @Override
+  public Map<String, CacheStats> stats() {
+    Map<String, CacheStats> stats = new LinkedHashMap<>();
+    cacheStats.forEach((name, supplier) -> stats.put(name, supplier.get()));
+    return stats;
   }
 
   @Override
@@ -262,16 +809,262 @@ public class EsMetricsService implements MetricsService, MetricsCacheService {
   @Override
   public void refresh(AggregationQuery aggregationQuery) {
     LOG.info("Expiring and refreshing aggregation query {}", aggregationQuery);
-    aggregationsCache.invoke(aggregationQuery, e -> e.setExpiryTime(Expiry.REFRESH));
+    if (isYearAggregation(aggregationQuery)) {
+      yearHistogramCache.invoke(
+          yearContext(aggregationQuery), e -> e.setExpiryTime(Expiry.REFRESH));
+    } else {
+      aggregationsCache.invoke(aggregationQuery, e -> e.setExpiryTime(Expiry.REFRESH));
+    }
+  }
+
+  /**
+   * Expires all cached entries at random times within the given window, so that they are refreshed,
+   * or reloaded on their next access, gradually.
+   */
+  void refreshAll(long spreadMillis) {
+    LOG.info("Refreshing all cached entries within {} ms", spreadMillis);
+    expireSpread(countCache, spreadMillis);
+    expireSpread(aggregationsCache, spreadMillis);
+    expireSpread(yearHistogramCache, spreadMillis);
+  }
+
+  private static <K> void expireSpread(Cache<K, ?> cache, long spreadMillis) {
+    long now = System.currentTimeMillis();
+    for (K key : cache.asMap().keySet()) {
+      cache.expireAt(key, now + ThreadLocalRandom.current().nextLong(Math.max(spreadMillis, 1)));
+    }
   }
 
   @Override
   public Long count(CountQuery countQuery) {
-    return countCache.get(countQuery);
+    hotKeyLog.record(countQuery);
+    Long derived = derive(countQuery);
+    if (derived != null) {
+      return derived;
+    }
+    cachedCounts.increment();
+    return countCache.get(countQuery).getValue();
+  }
+
+  @Override
+  public CompletableFuture<Long> countAsync(CountQuery countQuery) {
+    hotKeyLog.record(countQuery);
+    Long derived = derive(countQuery);
+    if (derived != null) {
+      return CompletableFuture.completedFuture(derived);
+    }
+    cachedCounts.increment();
+    return getAsync(countCache, "count", countQuery).thenApply(CachedValue::getValue);
+  }
+
+  @Override
+  public CompletableFuture<List<Long>> countBatchAsync(List<CountQuery> countQueries) {
+    List<CompletableFuture<Long>> results = new ArrayList<>(countQueries.size());
+    Set<CountQuery> misses = new LinkedHashSet<>();
+    for (CountQuery countQuery : countQueries) {
+      hotKeyLog.record(countQuery);
+      Long derived = derive(countQuery);
+      if (derived != null) {
+        results.add(CompletableFuture.completedFuture(derived));
+        continue;
+      }
+      cachedCounts.increment();
+      CachedValue<Long> cached = countCache.peek(countQuery);
+      if (cached != null) {
+        results.add(CompletableFuture.completedFuture(cached.getValue()));
+      } else {
+        misses.add(countQuery);
+        results.add(null);
+      }
+    }
+
+    if (!misses.isEmpty()) {
+      // Queries missing from a failed multi search are loaded one by one, with the usual
+      // fallback to stale values
+      CompletableFuture<MultiCountLoader.Counts> loaded =
+          circuitBreaker
+              .call(() -> multiCountLoader.countAll(misses))
+              .exceptionally(
+                  ex -> {
+                    LOG.error("Error executing a multi search of {} counts", misses.size(), ex);
+                    return new MultiCountLoader.Counts();
+                  })
+              .thenApply(
+                  counts -> {
+                    counts.forEach(
+                        (q, c) -> {
+                          if (!counts.isPartial(q)) {
+                            countCache.put(q, CachedValue.loadedNow(c));
+                          }
+                        });
+                    return counts;
+                  });
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i) == null) {
+          CountQuery countQuery = countQueries.get(i);
+          results.set(
+              i,
+              loaded.thenCompose(
+                  counts -> {
+                    if (counts.isPartial(countQuery)) {
+                      return CompletableFuture.<Long>failedFuture(
+                          new PartialResultException(counts.get(countQuery)));
+                    }
+                    return counts.containsKey(countQuery)
+                        ? CompletableFuture.completedFuture(counts.get(countQuery))
+                        : getAsync(countCache, "count", countQuery)
+                            .thenApply(CachedValue::getValue);
+                  }));
+        }
+      }
+    }
+
+    // A batch with partial counts is partial as a whole
+    return CompletableFuture.allOf(
+            results.stream().map(r -> r.handle((c, ex) -> c)).toArray(CompletableFuture<?>[]::new))
+        .thenApply(
+            v -> {
+              List<Long> counts = new ArrayList<>(results.size());
+              boolean partial = false;
+              for (CompletableFuture<Long> result : results) {
+                try {
+                  counts.add(result.join());
+                } catch (CompletionException ex) {
+                  if (!(ex.getCause() instanceof PartialResultException)) {
+                    throw ex;
+                  }
+                  partial = true;
+                  counts.add((Long) ((PartialResultException) ex.getCause()).getPartialResult());
+                }
+              }
+              return PartialResultException.requireComplete(counts, partial);
+            });
+  }
+
+  /** @return the count derived from the cached aggregations, if it is not cached already */
+  Long derive(CountQuery countQuery) {
+    if (countCache.containsKey(countQuery)) {
+      return null;
+    }
+    Long derived = countDeriver.derive(countQuery);
+    if (derived != null) {
+      derivedCounts.increment();
+    }
+    return derived;
   }
 
   @Override
   public Map<String, Long> countAggregation(AggregationQuery aggregationQuery) {
-    return aggregationsCache.get(aggregationQuery);
+    hotKeyLog.record(aggregationQuery);
+    return aggregation(aggregationQuery);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Long>> countAggregationAsync(
+      AggregationQuery aggregationQuery) {
+    hotKeyLog.record(aggregationQuery);
+    if (isYearAggregation(aggregationQuery)) {
+      Parameter year = yearParameter(aggregationQuery);
+      return getAsync(yearHistogramCache, "years", yearContext(aggregationQuery))
+          .handle(
+              (histogram, ex) -> {
+                if (ex == null) {
+                  return histogram.getValue().slice(year);
+                }
+                // The slice of a partial histogram is partial too
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                if (cause instanceof PartialResultException) {
+                  PartialResultException partial = (PartialResultException) cause;
+                  cause = partial.<YearHistogram, AggregationResult>map(h -> h.slice(year));
+                }
+                throw new CompletionException(cause);
+              });
+    }
+    return getAsync(aggregationsCache, "aggregations", aggregationQuery)
+        .thenApply(CachedValue::getValue);
+  }
+
+  /**
+   * Gets an aggregation through the caches. Year aggregations of any range are slices of the year
+   * histogram of their other parameters.
+   */
+  AggregationResult aggregation(AggregationQuery aggregationQuery) {
+    if (isYearAggregation(aggregationQuery)) {
+      return yearHistogramCache
+          .get(yearContext(aggregationQuery))
+          .getValue()
+          .slice(yearParameter(aggregationQuery));
+    }
+    return aggregationsCache.get(aggregationQuery).getValue();
+  }
+
+  /**
+   * Gets a value without blocking: a cached value is returned at once, otherwise it is loaded
+   * asynchronously and the future completes when the load does. A load that reached its deadline
+   * fails with the {@link PartialResultException} of its partial result.
+   */
+  private <K, V> CompletableFuture<V> getAsync(Cache<K, V> cache, String name, K key) {
+    V value = cache.peek(key);
+    if (value != null) {
+      return CompletableFuture.completedFuture(value);
+    }
+    return cache
+        .loadAll(Collections.singleton(key))
+        .handle(
+            (v, ex) -> {
+              CacheEntry<K, V> entry = ex == null ? cache.peekEntry(key) : null;
+              if (entry != null && entry.getExceptionInfo() == null) {
+                return entry.getValue();
+              }
+              PartialResultException partial = partialResults.peek(Arrays.asList(name, key));
+              throw new CompletionException(
+                  partial != null ? partial : new IOException("Error loading " + key, ex));
+            });
+  }
+
+  private static boolean isYearAggregation(AggregationQuery aggregationQuery) {
+    return YearHistogram.YEAR.equals(aggregationQuery.getDimension());
+  }
+
+  /** @return the year or year range of an aggregation, or null for all the years */
+  private static Parameter yearParameter(AggregationQuery aggregationQuery) {
+    return aggregationQuery.getParameters().stream()
+        .filter(YearHistogram::isYear)
+        .findFirst()
+        .orElse(null);
+  }
+
+  /** @return the parameters of an aggregation other than the year, which select its histogram */
+  static CountQuery yearContext(AggregationQuery aggregationQuery) {
+    Set<Parameter> context =
+        aggregationQuery.getParameters().stream()
+            .filter(p -> !YearHistogram.isYear(p))
+            .collect(Collectors.toSet());
+    return new CountQuery(context);
+  }
+
+  /** Receives the latency of the loads answered by Elasticsearch. */
+  @FunctionalInterface
+  interface LoadListener {
+    /**
+     * @param cache name of the cache of the load: count, aggregations or years
+     * @param key key of the load, a {@link CountQuery} or an {@link AggregationQuery}
+     * @param millis latency of the load
+     */
+    void loaded(String cache, Object key, long millis);
+  }
+
+  void setLoadListener(LoadListener loadListener) {
+    this.loadListener = loadListener;
+  }
+
+  /** Writes the hot key log a last time and stops the background threads. */
+  @Override
+  public void close() {
+    hotKeyLog.close();
+    if (countBatcher != null) {
+      countBatcher.close();
+    }
+    refreshExecutors.forEach(ThreadPoolExecutor::shutdown);
   }
 }
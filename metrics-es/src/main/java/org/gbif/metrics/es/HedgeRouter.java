@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.RequestOptions;
+
+/**
+ * Sends the hedged requests of the {@link HedgingClient} to another host than their original
+ * request. The original requests carry a header naming their call, and this router, intercepting
+ * the requests of the client of the original requests, notes the host each of them was sent to. The
+ * client of the hedged requests selects its nodes with {@link #avoidingOriginal(NodeSelector)},
+ * which leaves out the host of the original request. Clients select the nodes of a request in the
+ * thread that sends it, so the host to leave out is handed over in a thread local.
+ */
+public class HedgeRouter implements HttpRequestInterceptor {
+
+  // Header naming the call of an original request
+  static final String CALL_HEADER = "X-Metrics-Call";
+
+  // Host of a call whose original request was not sent yet
+  private static final HttpHost UNSENT = new HttpHost("unsent");
+
+  private final AtomicLong calls = new AtomicLong();
+  // Hosts of the original requests of the calls in progress, by call
+  private final Map<String, HttpHost> hosts = new ConcurrentHashMap<>();
+  private final ThreadLocal<HttpHost> excluded = new ThreadLocal<>();
+
+  /**
+   * @return the selector of the client of the hedged requests: the nodes of the given selector but
+   *     the host of the original request
+   */
+  public NodeSelector avoidingOriginal(NodeSelector nodeSelector) {
+    return new NodeSelector() {
+      @Override
+      public void select(Iterable<Node> nodes) {
+        HttpHost host = excluded.get();
+        if (host != null) {
+          for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            if (host.equals(iterator.next().getHost())) {
+              iterator.remove();
+            }
+          }
+        }
+        nodeSelector.select(nodes);
+      }
+
+      @Override
+      public String toString() {
+        return "AVOIDING_ORIGINAL_" + nodeSelector;
+      }
+    };
+  }
+
+  /** @return the name of a new call, to be forgotten once done */
+  String register() {
+    String call = Long.toString(calls.incrementAndGet());
+    hosts.put(call, UNSENT);
+    return call;
+  }
+
+  /** @return the options of the original request of a call */
+  static RequestOptions originalOptions(String call) {
+    return RequestOptions.DEFAULT.toBuilder().addHeader(CALL_HEADER, call).build();
+  }
+
+  /** @return the host the original request of a call was sent to, null if not sent yet */
+  HttpHost hostOf(String call) {
+    HttpHost host = hosts.get(call);
+    return host == UNSENT ? null : host;
+  }
+
+  void forget(String call) {
+    hosts.remove(call);
+  }
+
+  /** Sends the hedged request of a call, with the host of the original request left out. */
+  void sendAvoiding(HttpHost host, Runnable send) {
+    excluded.set(host);
+    try {
+      send.run();
+    } finally {
+      excluded.remove();
+    }
+  }
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    Header call = request.getFirstHeader(CALL_HEADER);
+    HttpHost host = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+    if (call != null && host != null) {
+      // Retries on another host replace the host, forgotten calls stay forgotten
+      hosts.replace(call.getValue(), host);
+    }
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Sends the Elasticsearch requests of the cache loads, hedging them if enabled: a request that has
+ * not returned after a percentile of the recent latencies is sent again through a second client,
+ * the first response is taken and the other request is cancelled. A budget caps the ratio of hedged
+ * requests, so that an overloaded cluster is not loaded further.
+ *
+ * <p>The second client knows the same nodes as the first one, and its {@link HedgeRouter} leaves
+ * out the host of the original request, so that the hedge is sent to another node. A request is not
+ * hedged before its host is known.
+ *
+ * <p>Requests still running at their deadline are cancelled, which also stops the search in
+ * Elasticsearch.
+ */
+public class HedgingClient implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HedgingClient.class);
+
+  @Data
+  @NoArgsConstructor
+  public static class HedgeConfig {
+
+    // defaults
+    private static final double PERCENTILE_DEFAULT = 0.95;
+    private static final long MIN_DELAY_DEFAULT = 50;
+    private static final double BUDGET_DEFAULT = 0.05;
+
+    // Whether slow requests are sent again to another node, needs at least two nodes
+    private boolean enabled;
+    // Percentile of the recent latencies after which a request is sent again
+    private double percentile = PERCENTILE_DEFAULT;
+    // Minimum time in milliseconds before a request is sent again
+    private long minDelay = MIN_DELAY_DEFAULT;
+    // Maximum ratio of hedged requests to requests
+    private double budget = BUDGET_DEFAULT;
+  }
+
+  /**
+   * Sends a request with a client and the given request options, i.e. one of the async methods of
+   * the client.
+   */
+  @FunctionalInterface
+  public interface Call<T> {
+    Cancellable send(
+        RestHighLevelClient client, RequestOptions options, ActionListener<T> listener);
+  }
+
+  // Recent latencies the delay is computed from, and how often it is recomputed
+  private static final int LATENCY_SAMPLES = 1024;
+  private static final int RECOMPUTE_INTERVAL = 128;
+
+  // Milliseconds between the deadline of a request and its cancellation
+  private static final long CANCEL_GRACE = 1_000;
+
+  // Hedges that can be saved up while the latencies are low
+  private static final double MAX_BUDGET_TOKENS = 10;
+
+  private final RestHighLevelClient esClient;
+  private final RestHighLevelClient hedgeClient;
+  private final HedgeRouter router;
+  private final HedgeConfig config;
+  private final boolean enabled;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final Counter sent;
+  private final Counter won;
+
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+  private long recorded;
+  private double budgetTokens;
+  // Not hedging until enough latencies are recorded
+  private volatile long delay = Long.MAX_VALUE;
+
+  /**
+   * @param esClient client the requests are sent with
+   * @param hedgeClient client the hedged requests are sent with, closed with this client, or null
+   *     if not hedging
+   * @param router router intercepting the requests of the first client and selecting the nodes of
+   *     the second one, or null if not hedging
+   */
+  public HedgingClient(
+      RestHighLevelClient esClient,
+      RestHighLevelClient hedgeClient,
+      HedgeRouter router,
+      HedgeConfig config,
+      MeterRegistry meterRegistry) {
+    this.esClient = esClient;
+    this.hedgeClient = hedgeClient;
+    this.router = router;
+    this.config = config;
+    enabled = config.isEnabled() && hedgeClient != null && router != null;
+    scheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Thread thread = new Thread(r, "metrics-es-timer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.setRemoveOnCancelPolicy(true);
+    sent =
+        Counter.builder("metrics.es.hedge.sent")
+            .description("Requests sent again to another host")
+            .register(meterRegistry);
+    won =
+        Counter.builder("metrics.es.hedge.won")
+            .description("Hedged requests answered before the original request")
+            .register(meterRegistry);
+    Gauge.builder("metrics.es.hedge.delay", this, c -> c.delay == Long.MAX_VALUE ? 0 : c.delay)
+        .description("Milliseconds after which a request is sent again")
+        .register(meterRegistry);
+  }
+
+  /**
+   * @param deadline milliseconds Elasticsearch is given to answer, the request is cancelled and the
+   *     future fails with a {@link TimeoutException} shortly after, never if 0
+   * @return the future of the first response to the request, hedged if enabled
+   */
+  public <T> CompletableFuture<T> call(Call<T> call, long deadline) {
+    CompletableFuture<T> result = send(call);
+    if (deadline > 0) {
+      // Leaves Elasticsearch the time to return the partial results of a search that timed out
+      long timeout = deadline + CANCEL_GRACE;
+      ScheduledFuture<?> expiry =
+          scheduler.schedule(
+              () ->
+                  result.completeExceptionally(
+                      new TimeoutException(
+                          "No response from Elasticsearch within " + timeout + " ms")),
+              timeout,
+              TimeUnit.MILLISECONDS);
+      result.whenComplete((r, ex) -> expiry.cancel(false));
+    }
+    return result;
+  }
+
+  private <T> CompletableFuture<T> send(Call<T> call) {
+    // The nodes of the client change as they are sniffed
+    if (!enabled || hedgeClient.getLowLevelClient().getNodes().size() < 2) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      Cancellable request = call.send(esClient, RequestOptions.DEFAULT, listenerOf(result));
+      result.whenComplete((r, ex) -> request.cancel());
+      return result;
+    }
+    addBudget();
+    Hedged<T> hedged = new Hedged<>();
+    String id = router.register();
+    Cancellable first =
+        call.send(esClient, HedgeRouter.originalOptions(id), hedged.listener(false));
+    hedged.result.whenComplete(
+        (r, ex) -> {
+          first.cancel();
+          router.forget(id);
+        });
+    long hedgeDelay = delay;
+    if (hedgeDelay == Long.MAX_VALUE) {
+      return hedged.result;
+    }
+    ScheduledFuture<?> scheduledHedge =
+        scheduler.schedule(
+            () -> {
+              // Not sent yet, e.g. waiting for a connection, a hedge could take the same host
+              HttpHost host = router.hostOf(id);
+              if (hedged.result.isDone() || host == null || !takeBudget()) {
+                return;
+              }
+              sent.increment();
+              hedged.pending.incrementAndGet();
+              router.sendAvoiding(
+                  host,
+                  () -> {
+                    Cancellable second =
+                        call.send(hedgeClient, RequestOptions.DEFAULT, hedged.listener(true));
+                    hedged.result.whenComplete((r, ex) -> second.cancel());
+                  });
+            },
+            hedgeDelay,
+            TimeUnit.MILLISECONDS);
+    hedged.result.whenComplete((r, ex) -> scheduledHedge.cancel(false));
+    return hedged.result;
+  }
+
+  /** Both requests of a call, failed only if all the requests sent failed. */
+  private class Hedged<T> {
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicBoolean answered = new AtomicBoolean();
+    private final long start = System.nanoTime();
+
+    private ActionListener<T> listener(boolean hedge) {
+      return ActionListener.wrap(
+          response -> {
+            // Recorded before the result completes, for the calls that follow
+            if (answered.compareAndSet(false, true)) {
+              recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+              if (hedge) {
+                won.increment();
+              }
+              result.complete(response);
+            }
+          },
+          ex -> {
+            if (pending.decrementAndGet() == 0) {
+              result.completeExceptionally(ex);
+            }
+          });
+    }
+  }
+
+  /** @return a listener of an asynchronous Elasticsearch request that completes the future */
+  private static <T> ActionListener<T> listenerOf(CompletableFuture<T> future) {
+    return new ActionListener<T>() {
+      @Override
+      public void onResponse(T response) {
+        future.complete(response);
+      }
+
+      @Override
+      public void onFailure(Exception ex) {
+        future.completeExceptionally(ex);
+      }
+    };
+  }
+
+  private synchronized void recordLatency(long millis) {
+    latencies[(int) (recorded++ % LATENCY_SAMPLES)] = millis;
+    if (recorded % RECOMPUTE_INTERVAL == 0) {
+      long[] sorted = Arrays.copyOf(latencies, (int) Math.min(recorded, LATENCY_SAMPLES));
+      Arrays.sort(sorted);
+      long percentile = sorted[(int) (config.percentile * (sorted.length - 1))];
+      delay = Math.max(config.minDelay, percentile);
+    }
+  }
+
+  private synchronized void addBudget() {
+    budgetTokens = Math.min(MAX_BUDGET_TOKENS, budgetTokens + config.budget);
+  }
+
+  private synchronized boolean takeBudget() {
+    if (budgetTokens < 1) {
+      return false;
+    }
+    budgetTokens--;
+    return true;
+  }
+
+  /** Stops the timers and closes the client of the hedged requests. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    if (hedgeClient != null) {
+      try {
+        hedgeClient.close();
+      } catch (IOException ex) {
+        LOG.warn("Couldn't close ES client", ex);
+      }
+    }
+  }
+}
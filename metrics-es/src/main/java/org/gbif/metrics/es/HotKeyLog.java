@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Bounded log of the most requested count and aggregation queries.
+ *
+ * <p>Request counters are kept per query. Once the number of tracked queries exceeds twice the
+ * capacity, the least requested ones are dropped by the background thread of the log, so the log
+ * approximates the heavy hitters while using bounded memory without slowing down the requests. The
+ * log is written periodically to a local file as tab separated {@code hits, type, key} lines and
+ * reloaded on start. Hits are halved after each write and when reloaded, so that old traffic fades
+ * and queries that become popular later can outrank it.
+ */
+public class HotKeyLog implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HotKeyLog.class);
+
+  private static final String COUNT_TYPE = "count";
+  private static final String AGGREGATION_TYPE = "aggregation";
+
+  /** A recorded query and the number of times it has been requested. */
+  @Getter
+  @AllArgsConstructor
+  static final class HotKey {
+    // Only one of the queries is set
+    private final CountQuery countQuery;
+    private final AggregationQuery aggregationQuery;
+    private final long hits;
+  }
+
+  private final ConcurrentMap<CountQuery, LongAdder> countKeys = new ConcurrentHashMap<>();
+  private final ConcurrentMap<AggregationQuery, LongAdder> aggregationKeys =
+      new ConcurrentHashMap<>();
+
+  private final Path path;
+  private final int capacity;
+  private final long interval;
+  private final AtomicBoolean prunePending = new AtomicBoolean();
+
+  private volatile ScheduledExecutorService scheduler;
+
+  public HotKeyLog(CacheWarmer.WarmupConfig warmupConfig) {
+    this.path = warmupConfig.getPath() != null ? Paths.get(warmupConfig.getPath()) : null;
+    this.capacity = warmupConfig.getMaxKeys();
+    this.interval = warmupConfig.getLogInterval();
+  }
+
+  /** @return true if a log file has been configured, queries are not recorded otherwise */
+  public boolean isEnabled() {
+    return path != null;
+  }
+
+  void record(CountQuery countQuery) {
+    if (isEnabled()) {
+      record(countKeys, countQuery);
+    }
+  }
+
+  void record(AggregationQuery aggregationQuery) {
+    if (isEnabled()) {
+      record(aggregationKeys, aggregationQuery);
+    }
+  }
+
+  private <K> void record(ConcurrentMap<K, LongAdder> keys, K key) {
+    keys.computeIfAbsent(key, k -> new LongAdder()).increment();
+    ScheduledExecutorService currentScheduler = scheduler;
+    if (keys.size() > 2 * capacity
+        && currentScheduler != null
+        && prunePending.compareAndSet(false, true)) {
+      try {
+        currentScheduler.execute(
+            () -> {
+              prunePending.set(false);
+              prune();
+            });
+      } catch (RejectedExecutionException ex) {
+        // Closing
+        prunePending.set(false);
+      }
+    }
+  }
+
+  /** Drops all but the {@code capacity} most requested keys of each type. */
+  void prune() {
+    prune(countKeys);
+    prune(aggregationKeys);
+  }
+
+  private <K> void prune(ConcurrentMap<K, LongAdder> keys) {
+    if (keys.size() <= capacity) {
+      return;
+    }
+    List<Map.Entry<K, Long>> sorted = sortByHits(keys);
+    sorted.subList(capacity, sorted.size()).forEach(e -> keys.remove(e.getKey()));
+  }
+
+  /** Halves the hits of all the keys, dropping the keys left without hits. */
+  void decay() {
+    decay(countKeys);
+    decay(aggregationKeys);
+  }
+
+  private static <K> void decay(ConcurrentMap<K, LongAdder> keys) {
+    keys.values().forEach(hits -> hits.add(-((hits.sum() + 1) / 2)));
+    keys.values().removeIf(hits -> hits.sum() <= 0);
+  }
+
+  /** @return the number of keys tracked */
+  int size() {
+    return countKeys.size() + aggregationKeys.size();
+  }
+
+  private static <K> List<Map.Entry<K, Long>> sortByHits(Map<K, LongAdder> keys) {
+    return keys.entrySet().stream()
+        .map(e -> Map.entry(e.getKey(), e.getValue().sum()))
+        .sorted(Map.Entry.<K, Long>comparingByValue().reversed())
+        .collect(Collectors.toList());
+  }
+
+  /** @return up to limit queries, most requested first */
+  List<HotKey> hottest(int limit) {
+    List<HotKey> hotKeys = new ArrayList<>();
+    sortByHits(countKeys).forEach(e -> hotKeys.add(new HotKey(e.getKey(), null, e.getValue())));
+    sortByHits(aggregationKeys)
+        .forEach(e -> hotKeys.add(new HotKey(null, e.getKey(), e.getValue())));
+    hotKeys.sort(Comparator.comparingLong(HotKey::getHits).reversed());
+    return hotKeys.subList(0, Math.min(limit, hotKeys.size()));
+  }
+
+  /**
+   * Reloads the previous log, if any, and starts the thread that prunes the log and writes it
+   * periodically.
+   */
+  public synchronized void start() {
+    if (!isEnabled() || scheduler != null) {
+      return;
+    }
+    read();
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-hot-key-log");
+              thread.setDaemon(true);
+              return thread;
+            });
+    if (interval > 0) {
+      scheduler.scheduleWithFixedDelay(
+          () -> {
+            writeQuietly();
+            decay();
+            prune();
+          },
+          interval,
+          interval,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void read() {
+    if (!Files.exists(path)) {
+      return;
+    }
+    int lines = 0;
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 3);
+        try {
+          long hits = Long.parseLong(fields[0]) / 2;
+          if (COUNT_TYPE.equals(fields[1])) {
+            load(countKeys, QueryCodec.decodeCountQuery(fields[2]), hits);
+          } else if (AGGREGATION_TYPE.equals(fields[1])) {
+            load(aggregationKeys, QueryCodec.decodeAggregationQuery(fields[2]), hits);
+          }
+          lines++;
+        } catch (RuntimeException ex) {
+          LOG.debug("Ignoring invalid hot key log line {}", line, ex);
+        }
+      }
+      LOG.info("Loaded {} hot keys from {}", lines, path);
+    } catch (IOException ex) {
+      LOG.warn("Hot key log {} could not be read", path, ex);
+    }
+  }
+
+  private static <K> void load(ConcurrentMap<K, LongAdder> keys, K key, long hits) {
+    keys.computeIfAbsent(key, k -> new LongAdder()).add(hits);
+  }
+
+  /** Writes the most requested keys to a temporary file that atomically replaces the log. */
+  public void write() throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      write(writer, countKeys, COUNT_TYPE, QueryCodec::encode);
+      write(writer, aggregationKeys, AGGREGATION_TYPE, QueryCodec::encode);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private <K> void write(
+      BufferedWriter writer, Map<K, LongAdder> keys, String type, Function<K, String> encoder)
+      throws IOException {
+    List<Map.Entry<K, Long>> sorted = sortByHits(keys);
+    for (Map.Entry<K, Long> entry : sorted.subList(0, Math.min(capacity, sorted.size()))) {
+      writer.write(entry.getValue() + "\t" + type + "\t" + encoder.apply(entry.getKey()));
+      writer.newLine();
+    }
+  }
+
+  private void writeQuietly() {
+    try {
+      write();
+    } catch (Exception ex) {
+      LOG.error("Error writing hot key log {}", path, ex);
+    }
+  }
+
+  /** Stops the periodic writes and writes the log a last time. */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    writeQuietly();
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Watches the generation of the occurrence index, i.e. the concrete indices behind the configured
+ * index or alias and their UUIDs. Counts only change when the index is rewritten or the alias is
+ * swapped, so while the generation is unchanged the cached entries can live up to {@link
+ * GenerationConfig#getMaxExpireAfterWrite()}. When it changes, all cached entries are expired at
+ * random times within {@link GenerationConfig#getRefreshSpread()}, which refreshes them gradually
+ * instead of all at once.
+ *
+ * <p>Entries only live longer than the configured expireAfterWrite once a poll has succeeded. After
+ * {@link GenerationConfig#getMaxPollFailures()} consecutive failed polls they are shortened back to
+ * it, until a poll succeeds again, so that a broken watcher never serves old counts.
+ */
+public class IndexGenerationWatcher implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(IndexGenerationWatcher.class);
+
+  private static final String INDEX_UUID_SETTING = "index.uuid";
+
+  @Data
+  @NoArgsConstructor
+  public static class GenerationConfig {
+
+    // defaults
+    private static final long MAX_EXPIRE_AFTER_WRITE_DEFAULT = TimeUnit.DAYS.toMillis(7);
+    private static final long REFRESH_SPREAD_DEFAULT = TimeUnit.MINUTES.toMillis(15);
+    private static final int MAX_POLL_FAILURES_DEFAULT = 3;
+
+    // Interval in milliseconds between checks of the index generation, disabled if 0
+    private long pollInterval;
+    // Lifetime of the cache entries while the index generation is unchanged
+    private long maxExpireAfterWrite = MAX_EXPIRE_AFTER_WRITE_DEFAULT;
+    // Window in milliseconds over which cached entries are refreshed after a change
+    private long refreshSpread = REFRESH_SPREAD_DEFAULT;
+    // Consecutive failed polls after which entries live for the expireAfterWrite again
+    private int maxPollFailures = MAX_POLL_FAILURES_DEFAULT;
+
+    public boolean isEnabled() {
+      return pollInterval > 0;
+    }
+  }
+
+  /** Reads the current generation of the index. */
+  @FunctionalInterface
+  interface GenerationReader {
+    String read() throws IOException;
+  }
+
+  private final GenerationReader generationReader;
+  private final String esIndex;
+  private final EsMetricsService metricsService;
+  private final GenerationConfig generationConfig;
+  private final Counter changes;
+
+  private volatile String generation;
+  private int consecutiveFailures;
+  private ScheduledExecutorService scheduler;
+
+  public IndexGenerationWatcher(
+      RestHighLevelClient esClient,
+      String esIndex,
+      EsMetricsService metricsService,
+      GenerationConfig generationConfig,
+      MeterRegistry meterRegistry) {
+    this(
+        () -> readGeneration(esClient, esIndex),
+        esIndex,
+        metricsService,
+        generationConfig,
+        meterRegistry);
+  }
+
+  IndexGenerationWatcher(
+      GenerationReader generationReader,
+      String esIndex,
+      EsMetricsService metricsService,
+      GenerationConfig generationConfig,
+      MeterRegistry meterRegistry) {
+    this.generationReader = generationReader;
+    this.esIndex = esIndex;
+    this.metricsService = metricsService;
+    this.generationConfig = generationConfig;
+    this.changes =
+        Counter.builder("metrics.cache.generation.changes")
+            .description("Number of detected changes of the occurrence index generation")
+            .register(meterRegistry);
+  }
+
+  /** @return the last observed generation, null if it hasn't been read yet */
+  public String getGeneration() {
+    return generation;
+  }
+
+  /** Reads the current generation and starts polling for changes. */
+  public synchronized void start() {
+    if (!generationConfig.isEnabled() || scheduler != null) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-index-generation");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        this::check, 0, generationConfig.getPollInterval(), TimeUnit.MILLISECONDS);
+  }
+
+  void check() {
+    String current;
+    try {
+      current = generationReader.read();
+    } catch (Exception ex) {
+      // Keep the current entries, the next poll will try again
+      LOG.warn("Error reading the generation of index {}", esIndex, ex);
+      if (++consecutiveFailures >= generationConfig.getMaxPollFailures()) {
+        metricsService.setGenerationWatched(false, generationConfig.getRefreshSpread());
+      }
+      return;
+    }
+    consecutiveFailures = 0;
+    String previous = generation;
+    generation = current;
+    if (previous != null && !previous.equals(current)) {
+      LOG.info("Index {} changed from [{}] to [{}]", esIndex, previous, current);
+      changes.increment();
+      metricsService.refreshAll(generationConfig.getRefreshSpread());
+    }
+    metricsService.setGenerationWatched(true, generationConfig.getRefreshSpread());
+  }
+
+  /** @return the sorted concrete index names and UUIDs behind the configured index or alias */
+  private static String readGeneration(RestHighLevelClient esClient, String esIndex)
+      throws IOException {
+    GetSettingsResponse response =
+        esClient
+            .indices()
+            .getSettings(
+                new GetSettingsRequest().indices(esIndex).names(INDEX_UUID_SETTING),
+                RequestOptions.DEFAULT);
+    SortedSet<String> indices = new TreeSet<>();
+    Iterator<String> names = response.getIndexToSettings().keysIt();
+    while (names.hasNext()) {
+      String name = names.next();
+      indices.add(name + ':' + response.getSetting(name, INDEX_UUID_SETTING));
+    }
+    return String.join(",", indices);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+}
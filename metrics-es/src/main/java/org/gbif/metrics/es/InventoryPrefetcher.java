@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Computes the aggregations of the inventory endpoints, which are over all the occurrences, with a
+ * single search that has all of them as sibling aggregations, instead of one search per
+ * aggregation. The response is shared by the loads and refreshes of all those aggregations that
+ * start within {@link PrefetchConfig#getReuseWindow()}, and only one search runs at a time.
+ *
+ * <p>Each new complete response is also handed to a callback, on another thread than the one
+ * completing the loads waiting for it, so that it can put all the aggregations in the caches
+ * without waiting for those loads.
+ */
+public class InventoryPrefetcher {
+
+  @Data
+  @NoArgsConstructor
+  public static class PrefetchConfig {
+
+    // defaults
+    private static final long REUSE_WINDOW_DEFAULT = TimeUnit.MINUTES.toMillis(1);
+
+    private boolean enabled;
+    // Milliseconds a combined response answers the loads of the other aggregations
+    private long reuseWindow = REUSE_WINDOW_DEFAULT;
+  }
+
+  /** Sends a search to Elasticsearch. */
+  @FunctionalInterface
+  interface Search {
+    CompletableFuture<SearchResponse> search(SearchRequest request);
+  }
+
+  /** Aggregations of all the occurrences, computed together. */
+  static final Set<AggregationQuery> AGGREGATIONS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  AggregationQuery.ofBasisOfRecord(),
+                  AggregationQuery.ofCountriesOfPublishingCountry(null),
+                  AggregationQuery.ofPublishingCountriesOfCountry(null),
+                  AggregationQuery.ofKingdom(null))));
+
+  /** Filter context of the year histogram of all the occurrences, computed with them. */
+  static final CountQuery YEAR_CONTEXT = new CountQuery();
+
+  private final Search search;
+  private final String esIndex;
+  private final PrefetchConfig config;
+  private final SearchSourceBuilder source;
+  private final long deadline;
+  private final Consumer<SearchResponse> onFetched;
+
+  private CompletableFuture<SearchResponse> current;
+  private long startedAt;
+
+  /**
+   * @param termsAggregation builds the terms aggregation of an aggregation query
+   * @param yearHistogram aggregation of the year histogram
+   * @param deadline milliseconds Elasticsearch is given to compute the aggregations, none if 0
+   * @param onFetched called with each new combined response that did not time out
+   */
+  InventoryPrefetcher(
+      Search search,
+      String esIndex,
+      PrefetchConfig config,
+      Function<AggregationQuery, AggregationBuilder> termsAggregation,
+      AggregationBuilder yearHistogram,
+      long deadline,
+      Consumer<SearchResponse> onFetched) {
+    this.search = search;
+    this.esIndex = esIndex;
+    this.config = config;
+    this.deadline = deadline;
+    this.onFetched = onFetched;
+    source = new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()).size(0);
+    AGGREGATIONS.forEach(a -> source.aggregation(termsAggregation.apply(a)));
+    source.aggregation(yearHistogram);
+    if (deadline > 0) {
+      source.timeout(TimeValue.timeValueMillis(deadline));
+    }
+  }
+
+  boolean covers(AggregationQuery aggregationQuery) {
+    return config.enabled && AGGREGATIONS.contains(aggregationQuery);
+  }
+
+  boolean covers(CountQuery yearContext) {
+    return config.enabled && YEAR_CONTEXT.equals(yearContext);
+  }
+
+  /**
+   * @return the combined response, shared with other loads if it is recent or in flight, unless it
+   *     timed out
+   */
+  synchronized CompletableFuture<SearchResponse> fetch() {
+    long now = System.currentTimeMillis();
+    if (current == null
+        || current.isCompletedExceptionally()
+        || now - startedAt > config.reuseWindow
+        || (current.isDone() && current.join().isTimedOut())) {
+      startedAt = now;
+      current = search.search(new SearchRequest(esIndex).source(source));
+      current.thenAcceptAsync(
+          r -> {
+            // Partial aggregations are only returned to the loads waiting for them
+            if (!r.isTimedOut()) {
+              onFetched.accept(r);
+            }
+          });
+    }
+    return current;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append-only dictionary of the bucket labels of one dimension, shared by all the cached
+ * aggregations of that dimension so that every label is stored once and results only hold ids.
+ *
+ * <p>Labels are never removed, so once a dictionary holds {@link #MAX_LABELS} labels the new
+ * results of its dimension start a new one. Each result keeps a reference to its own dictionary, so
+ * a replaced dictionary is collected once the results built with it have been evicted or reloaded,
+ * and the memory of the labels stays bounded even if the values of a dimension change.
+ */
+final class LabelDictionary {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  // Labels of a dictionary after which a new one is started, a result being built still adds its
+  // labels to the dictionary it started with
+  static final int MAX_LABELS = 1 << 18;
+
+  // One dictionary per dimension, country and publishingCountry share their labels
+  private static final ConcurrentMap<String, LabelDictionary> DICTIONARIES =
+      new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+  // Replaced by a larger copy when full, labels are written before their id is published
+  private volatile String[] labels = new String[INITIAL_CAPACITY];
+
+  private LabelDictionary() {}
+
+  static LabelDictionary forDimension(String dimension) {
+    String name = "publishingCountry".equals(dimension) ? "country" : dimension;
+    LabelDictionary dictionary = DICTIONARIES.computeIfAbsent(name, k -> new LabelDictionary());
+    if (dictionary.size() < MAX_LABELS) {
+      return dictionary;
+    }
+    return DICTIONARIES.compute(
+        name, (k, current) -> current.size() < MAX_LABELS ? current : new LabelDictionary());
+  }
+
+  /** @return the id of the label, adding it to the dictionary if needed */
+  int idOf(String label) {
+    Integer id = ids.get(label);
+    return id != null ? id : add(label);
+  }
+
+  /** @return the id of the label or -1 if it is not in the dictionary */
+  int find(String label) {
+    Integer id = ids.get(label);
+    return id != null ? id : -1;
+  }
+
+  String label(int id) {
+    return labels[id];
+  }
+
+  int size() {
+    return ids.size();
+  }
+
+  private synchronized int add(String label) {
+    Integer existing = ids.get(label);
+    if (existing != null) {
+      return existing;
+    }
+    int id = ids.size();
+    String[] current = labels;
+    if (id == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+    }
+    current[id] = label;
+    labels = current;
+    ids.put(label, id);
+    return id;
+  }
+}
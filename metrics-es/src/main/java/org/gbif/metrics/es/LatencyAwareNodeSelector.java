@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Selects the Elasticsearch nodes that currently answer fastest. The latency of each node is
+ * tracked as an exponentially weighted moving average, weighted by the requests in flight to it,
+ * and only the nodes within a tolerance of the best one are left to the round robin of the client.
+ * Every few requests all the nodes are left, so that the latencies of the slower ones are kept up
+ * to date. Dedicated master nodes are always skipped.
+ */
+public class LatencyAwareNodeSelector
+    implements NodeSelector, HttpRequestInterceptor, HttpResponseInterceptor {
+
+  @Data
+  @NoArgsConstructor
+  public static class SelectorConfig {
+
+    // defaults
+    private static final double ALPHA_DEFAULT = 0.3;
+    private static final double TOLERANCE_DEFAULT = 1.5;
+    private static final int PROBE_INTERVAL_DEFAULT = 20;
+
+    // Whether the nodes are selected by latency, otherwise all of them are used in turn
+    private boolean enabled;
+    // Weight of the latest response in the moving average of the latency
+    private double alpha = ALPHA_DEFAULT;
+    // Nodes slower than the fastest one by up to this factor are selected too
+    private double tolerance = TOLERANCE_DEFAULT;
+    // Every how many requests all the nodes are selected to probe the slower ones, never if 0
+    private int probeInterval = PROBE_INTERVAL_DEFAULT;
+  }
+
+  private static final String START_ATTRIBUTE = "org.gbif.metrics.es.start";
+
+  private final SelectorConfig config;
+  private final LongSupplier nanoClock;
+  private final MeterRegistry meterRegistry;
+  private final Map<HttpHost, NodeStats> stats = new ConcurrentHashMap<>();
+  private final AtomicLong selections = new AtomicLong();
+
+  // Requests without a response, e.g. cancelled, are forgotten after this time
+  private final long maxInFlightNanos;
+
+  /** Latency and requests in flight of a node. */
+  private static class NodeStats {
+    private final Map<HttpContext, Long> inFlight = new ConcurrentHashMap<>();
+    // Milliseconds, negative until the first response
+    private volatile double latency = -1;
+  }
+
+  /**
+   * @param maxInFlight milliseconds after which a request without a response is no longer counted
+   *     as in flight, i.e. the socket timeout
+   */
+  public LatencyAwareNodeSelector(
+      SelectorConfig config, long maxInFlight, MeterRegistry meterRegistry) {
+    this(config, maxInFlight, System::nanoTime, meterRegistry);
+  }
+
+  /** Creates a selector timing the requests with the given clock, in nanoseconds. */
+  LatencyAwareNodeSelector(
+      SelectorConfig config,
+      long maxInFlight,
+      LongSupplier nanoClock,
+      MeterRegistry meterRegistry) {
+    this.config = config;
+    this.nanoClock = nanoClock;
+    this.maxInFlightNanos = TimeUnit.MILLISECONDS.toNanos(maxInFlight);
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Tracks the requests sent by the HTTP client of an Elasticsearch client, whose nodes are
+   * selected by this selector, or by a selector delegating to it.
+   */
+  public HttpAsyncClientBuilder track(HttpAsyncClientBuilder httpClientBuilder) {
+    return httpClientBuilder
+        .addInterceptorFirst((HttpRequestInterceptor) this)
+        .addInterceptorLast((HttpResponseInterceptor) this);
+  }
+
+  @Override
+  public void select(Iterable<Node> nodes) {
+    SKIP_DEDICATED_MASTERS.select(nodes);
+    if (config.probeInterval > 0 && selections.incrementAndGet() % config.probeInterval == 0) {
+      return;
+    }
+
+    // Nodes without a response yet are kept, that is how they are probed
+    double best = Double.MAX_VALUE;
+    List<Double> scores = new ArrayList<>();
+    for (Node node : nodes) {
+      double score = score(node.getHost());
+      scores.add(score);
+      if (score >= 0) {
+        best = Math.min(best, score);
+      }
+    }
+    if (best == Double.MAX_VALUE) {
+      return;
+    }
+
+    Iterator<Node> iterator = nodes.iterator();
+    Iterator<Double> scoreIterator = scores.iterator();
+    while (iterator.hasNext()) {
+      iterator.next();
+      if (scoreIterator.next() > best * config.tolerance) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /** @return latency weighted by the requests in flight, or negative if unknown */
+  private double score(HttpHost host) {
+    NodeStats nodeStats = stats.get(host);
+    if (nodeStats == null || nodeStats.latency < 0) {
+      return -1;
+    }
+    long now = nanoClock.getAsLong();
+    nodeStats.inFlight.values().removeIf(start -> now - start > maxInFlightNanos);
+    return nodeStats.latency * (1 + nodeStats.inFlight.size());
+  }
+
+  @Override
+  public void process(HttpRequest request, HttpContext context) {
+    HttpHost host = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+    if (host != null) {
+      long start = nanoClock.getAsLong();
+      context.setAttribute(START_ATTRIBUTE, start);
+      statsOf(host).inFlight.put(context, start);
+    }
+  }
+
+  @Override
+  public void process(HttpResponse response, HttpContext context) {
+    HttpHost host = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+    Long start = (Long) context.getAttribute(START_ATTRIBUTE);
+    if (host == null || start == null) {
+      return;
+    }
+    NodeStats nodeStats = statsOf(host);
+    nodeStats.inFlight.remove(context);
+    double millis = (nanoClock.getAsLong() - start) / 1_000_000d;
+    synchronized (nodeStats) {
+      nodeStats.latency =
+          nodeStats.latency < 0
+              ? millis
+              : config.alpha * millis + (1 - config.alpha) * nodeStats.latency;
+    }
+  }
+
+  private NodeStats statsOf(HttpHost host) {
+    return stats.computeIfAbsent(
+        host,
+        h -> {
+          NodeStats nodeStats = new NodeStats();
+          Gauge.builder("metrics.es.node.latency", nodeStats, s -> Math.max(s.latency, 0))
+              .description("Moving average of the response time of a node in milliseconds")
+              .tag("node", h.toHostString())
+              .register(meterRegistry);
+          return nodeStats;
+        });
+  }
+
+  @Override
+  public String toString() {
+    return "LATENCY_AWARE";
+  }
+}
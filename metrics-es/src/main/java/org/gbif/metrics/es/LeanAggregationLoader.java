@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Loads terms aggregations with the low-level REST client. The response is filtered to the keys and
+ * counts of the buckets with {@code filter_path} and parsed with a streaming parser straight into
+ * an {@link AggregationResult}, without the object graph of a {@code SearchResponse}.
+ */
+class LeanAggregationLoader {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final HedgingClient hedgingClient;
+  private final String esIndex;
+  private final long deadline;
+
+  LeanAggregationLoader(HedgingClient hedgingClient, String esIndex, long deadline) {
+    this.hedgingClient = hedgingClient;
+    this.esIndex = esIndex;
+    this.deadline = deadline;
+  }
+
+  /**
+   * @param source search with a single terms aggregation named as the dimension of the query and
+   *     ordered by ascending count
+   * @return future of the aggregation, ordered by descending count, failed with a {@link
+   *     PartialResultException} if the search timed out
+   */
+  CompletableFuture<AggregationResult> load(
+      AggregationQuery aggregationQuery, SearchSourceBuilder source) {
+    String buckets = "aggregations." + aggregationQuery.getDimension() + ".buckets.";
+    String filterPath = "timed_out," + buckets + "key," + buckets + "doc_count";
+    if (deadline > 0) {
+      source.timeout(TimeValue.timeValueMillis(deadline));
+    }
+    String json = Strings.toString(source);
+
+    return hedgingClient
+        .<Response>call(
+            (client, options, listener) -> {
+              // One request per send, as the options of a hedged request differ
+              Request request = new Request("POST", "/" + esIndex + "/_search");
+              request.addParameter("filter_path", filterPath);
+              request.setJsonEntity(json);
+              request.setOptions(options);
+              return client
+                  .getLowLevelClient()
+                  .performRequestAsync(
+                      request,
+                      new ResponseListener() {
+                        @Override
+                        public void onSuccess(Response response) {
+                          listener.onResponse(response);
+                        }
+
+                        @Override
+                        public void onFailure(Exception ex) {
+                          listener.onFailure(ex);
+                        }
+                      });
+            },
+            deadline)
+        .thenApply(
+            response -> {
+              try (InputStream content = response.getEntity().getContent()) {
+                return parse(aggregationQuery, content);
+              } catch (IOException ex) {
+                throw new CompletionException(ex);
+              }
+            });
+  }
+
+  /**
+   * Parses the buckets of a filtered response, in which they are the only arrays.
+   *
+   * @throws PartialResultException with the parsed aggregation if the search timed out
+   */
+  static AggregationResult parse(AggregationQuery aggregationQuery, InputStream content)
+      throws IOException {
+    String[] labels = new String[64];
+    long[] counts = new long[64];
+    int size = 0;
+    boolean timedOut = false;
+    try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+      JsonToken token;
+      while ((token = parser.nextToken()) != null) {
+        if (token == JsonToken.VALUE_TRUE && "timed_out".equals(parser.getCurrentName())) {
+          timedOut = true;
+        }
+        // The context of a start token is already the one of the object it opens
+        if (token != JsonToken.START_OBJECT || !parser.getParsingContext().getParent().inArray()) {
+          continue;
+        }
+        // A bucket
+        String key = null;
+        long count = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          parser.nextToken();
+          if ("key".equals(field)) {
+            key = parser.getText();
+          } else if ("doc_count".equals(field)) {
+            count = parser.getLongValue();
+          } else {
+            parser.skipChildren();
+          }
+        }
+        if (size == labels.length) {
+          labels = Arrays.copyOf(labels, size * 2);
+          counts = Arrays.copyOf(counts, size * 2);
+        }
+        labels[size] = aggregationQuery.getKeyLabelTransform().apply(key);
+        counts[size] = count;
+        size++;
+      }
+    }
+
+    AggregationResult.Builder result =
+        AggregationResult.builder(aggregationQuery.getDimension(), size);
+    // Buckets added in reverse order because they are requested by ascending count
+    for (int i = size - 1; i >= 0; i--) {
+      result.add(labels[i], counts[i]);
+    }
+    if (timedOut) {
+      throw new PartialResultException(result.build());
+    }
+    return result.build();
+  }
+}
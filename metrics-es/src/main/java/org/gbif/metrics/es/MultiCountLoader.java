@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts queries with searches of size 0 that track the exact total hits, several of them at once
+ * with a single Elasticsearch multi search. Unlike the count API, searches accept a timeout.
+ */
+class MultiCountLoader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MultiCountLoader.class);
+
+  /** Counts of a multi search, some of them partial if their search timed out. */
+  static class Counts extends HashMap<CountQuery, Long> {
+    private final Set<CountQuery> partial = new HashSet<>();
+
+    boolean isPartial(CountQuery countQuery) {
+      return partial.contains(countQuery);
+    }
+
+    /** Adds the count of a search that timed out. */
+    void putPartial(CountQuery countQuery, long count) {
+      put(countQuery, count);
+      partial.add(countQuery);
+    }
+  }
+
+  private final HedgingClient hedgingClient;
+  private final String esIndex;
+  private final Function<CountQuery, QueryBuilder> queryBuilder;
+  private final long deadline;
+
+  MultiCountLoader(
+      HedgingClient hedgingClient,
+      String esIndex,
+      Function<CountQuery, QueryBuilder> queryBuilder,
+      long deadline) {
+    this.hedgingClient = hedgingClient;
+    this.esIndex = esIndex;
+    this.queryBuilder = queryBuilder;
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return future of the count of a query, failed with a {@link PartialResultException} if the
+   *     search timed out
+   */
+  CompletableFuture<Long> count(CountQuery countQuery) {
+    SearchRequest request = buildSearchRequest(countQuery);
+    return hedgingClient
+        .<SearchResponse>call(
+            (client, options, listener) -> client.searchAsync(request, options, listener), deadline)
+        .thenApply(
+            r ->
+                PartialResultException.requireComplete(
+                    r.getHits().getTotalHits().value, r.isTimedOut()));
+  }
+
+  /**
+   * @return future of the counts of the queries, without the queries whose search failed, or failed
+   *     if the whole multi search failed
+   */
+  CompletableFuture<Counts> countAll(Collection<CountQuery> countQueries) {
+    List<CountQuery> queries = new ArrayList<>(countQueries);
+    MultiSearchRequest request = new MultiSearchRequest();
+    queries.forEach(q -> request.add(buildSearchRequest(q)));
+    return hedgingClient
+        .<MultiSearchResponse>call(
+            (client, options, listener) -> client.msearchAsync(request, options, listener),
+            deadline)
+        .thenApply(r -> toCounts(queries, r));
+  }
+
+  private SearchRequest buildSearchRequest(CountQuery countQuery) {
+    SearchSourceBuilder source =
+        new SearchSourceBuilder()
+            .query(queryBuilder.apply(countQuery))
+            .size(0)
+            .trackTotalHits(true);
+    if (deadline > 0) {
+      source.timeout(TimeValue.timeValueMillis(deadline));
+    }
+    return new SearchRequest(esIndex).source(source);
+  }
+
+  private static Counts toCounts(List<CountQuery> queries, MultiSearchResponse response) {
+    Counts counts = new Counts();
+    MultiSearchResponse.Item[] items = response.getResponses();
+    for (int i = 0; i < items.length; i++) {
+      if (items[i].isFailure()) {
+        LOG.error("Error counting {} in a multi search", queries.get(i), items[i].getFailure());
+      } else {
+        long count = items[i].getResponse().getHits().getTotalHits().value;
+        if (items[i].getResponse().isTimedOut()) {
+          counts.putPartial(queries.get(i), count);
+        } else {
+          counts.put(queries.get(i), count);
+        }
+      }
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bitmap index of a snapshot of the occurrences: one {@link CompressedBitmap} of the rows of each
+ * value of each dimension. The count of a query is the cardinality of the intersection of the
+ * bitmaps of its parameters, and an aggregation intersects that with each value of the dimension.
+ */
+final class OccurrenceBitmapIndex {
+
+  // Bitmaps by dimension and value, values as in the Elasticsearch documents
+  private final Map<String, Map<String, CompressedBitmap>> bitmaps;
+  private final int rows;
+  // Checklist of the taxonomic dimensions
+  private final String checklistKey;
+
+  private OccurrenceBitmapIndex(
+      Map<String, Map<String, CompressedBitmap>> bitmaps, int rows, String checklistKey) {
+    this.bitmaps = bitmaps;
+    this.rows = rows;
+    this.checklistKey = checklistKey;
+  }
+
+  static Builder builder(String checklistKey) {
+    return new Builder(checklistKey);
+  }
+
+  /** @return the number of occurrences */
+  int rows() {
+    return rows;
+  }
+
+  /** @return the count of the occurrences matching all the parameters */
+  long count(Collection<Parameter> parameters) {
+    CompressedBitmap filter = filter(parameters);
+    return filter == null ? rows : filter.cardinality();
+  }
+
+  /**
+   * @return the counts of the values of a dimension among the occurrences matching all the
+   *     parameters, without the values with no occurrence, ordered by count descending and then by
+   *     value ascending like the terms aggregations
+   */
+  AggregationResult aggregate(String dimension, Collection<Parameter> parameters) {
+    CompressedBitmap filter = filter(parameters);
+    List<String> values = new ArrayList<>();
+    Map<String, Long> counts = new HashMap<>();
+    bitmaps
+        .getOrDefault(dimension, Map.of())
+        .forEach(
+            (value, bitmap) -> {
+              long count = filter == null ? bitmap.cardinality() : bitmap.andCardinality(filter);
+              if (count > 0) {
+                values.add(value);
+                counts.put(value, count);
+              }
+            });
+    values.sort(
+        Comparator.<String>comparingLong(counts::get)
+            .reversed()
+            .thenComparing(Comparator.naturalOrder()));
+    AggregationResult.Builder result = AggregationResult.builder(dimension, values.size());
+    values.forEach(value -> result.add(value, counts.get(value)));
+    return result.build();
+  }
+
+  /** @return the rows matching all the parameters, or null for all the rows */
+  private CompressedBitmap filter(Collection<Parameter> parameters) {
+    List<CompressedBitmap> filters = new ArrayList<>();
+    for (Parameter parameter : parameters) {
+      if ("checklistKey".equals(parameter.getName())) {
+        if (!checklistKey.equals(String.valueOf(parameter.getValue()))) {
+          throw new UnsupportedQueryException(
+              "Only the checklist " + checklistKey + " is indexed, not " + parameter.getValue());
+        }
+      } else {
+        filters.add(bitmap(parameter));
+      }
+    }
+    // Smallest first, so that the intermediate intersections are small
+    filters.sort(Comparator.comparingLong(CompressedBitmap::cardinality));
+    CompressedBitmap filter = null;
+    for (CompressedBitmap bitmap : filters) {
+      filter = filter == null ? bitmap : filter.and(bitmap);
+    }
+    return filter;
+  }
+
+  private CompressedBitmap bitmap(Parameter parameter) {
+    Map<String, CompressedBitmap> values = bitmaps.getOrDefault(parameter.getName(), Map.of());
+    if (!(parameter.getValue() instanceof YearRange)) {
+      return values.getOrDefault(String.valueOf(parameter.getValue()), CompressedBitmap.EMPTY);
+    }
+    YearRange range = (YearRange) parameter.getValue();
+    CompressedBitmap union = CompressedBitmap.EMPTY;
+    for (Map.Entry<String, CompressedBitmap> year : values.entrySet()) {
+      int value = Integer.parseInt(year.getKey());
+      if (value >= range.getStartYear() && value <= range.getEndYear()) {
+        union = union.or(year.getValue());
+      }
+    }
+    return union;
+  }
+
+  /** Indexes occurrences one after another. */
+  static final class Builder {
+    private final String checklistKey;
+    private final Map<String, Map<String, CompressedBitmap.Builder>> builders = new HashMap<>();
+    private int rows;
+
+    private Builder(String checklistKey) {
+      this.checklistKey = checklistKey;
+    }
+
+    /**
+     * Adds an occurrence.
+     *
+     * @param values values of each dimension of the occurrence, several for the multi-valued ones
+     *     like issue or taxonKey
+     */
+    Builder add(Map<String, ? extends Collection<String>> values) {
+      int row = rows++;
+      values.forEach(
+          (dimension, dimensionValues) -> {
+            Map<String, CompressedBitmap.Builder> dimensionBuilders =
+                builders.computeIfAbsent(dimension, d -> new HashMap<>());
+            for (String value : dimensionValues) {
+              CompressedBitmap.Builder builder =
+                  dimensionBuilders.computeIfAbsent(value, v -> CompressedBitmap.builder());
+              // A value repeated in the same occurrence is indexed once
+              if (builder.last() != row) {
+                builder.add(row);
+              }
+            }
+          });
+      return this;
+    }
+
+    int rows() {
+      return rows;
+    }
+
+    OccurrenceBitmapIndex build() {
+      Map<String, Map<String, CompressedBitmap>> bitmaps = new HashMap<>();
+      builders.forEach(
+          (dimension, dimensionBuilders) -> {
+            Map<String, CompressedBitmap> values = new HashMap<>(dimensionBuilders.size() * 2);
+            dimensionBuilders.forEach((value, builder) -> values.put(value, builder.build()));
+            bitmaps.put(dimension, values);
+          });
+      return new OccurrenceBitmapIndex(bitmaps, rows, checklistKey);
+    }
+  }
+}
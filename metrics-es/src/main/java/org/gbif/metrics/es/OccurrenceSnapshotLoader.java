@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a snapshot of the occurrences into an {@link OccurrenceBitmapIndex}. The snapshot is a
+ * newline-delimited JSON file, gzipped if its name ends in {@code .gz}, with one object per
+ * occurrence whose fields are the dimensions, named as the query parameters, and whose values are
+ * those of the Elasticsearch documents, e.g.
+ *
+ * <pre>{@code
+ * {"basisOfRecord":"PRESERVED_SPECIMEN","country":"DK","year":1998,"issue":["ZERO_COORDINATE"]}
+ * }</pre>
+ *
+ * The values of a multi-valued dimension are an array, other fields are ignored.
+ */
+final class OccurrenceSnapshotLoader {
+
+  /** Dimensions indexed, the taxonomic ones of the checklist of the snapshot. */
+  static final Set<String> DIMENSIONS =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "basisOfRecord",
+                  "country",
+                  "publishingCountry",
+                  "datasetKey",
+                  "isGeoreferenced",
+                  "issue",
+                  "typeStatus",
+                  "protocol",
+                  "year",
+                  "taxonKey",
+                  "kingdom")));
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private OccurrenceSnapshotLoader() {}
+
+  /** @param checklistKey checklist of the taxonKey and kingdom values of the snapshot */
+  static OccurrenceBitmapIndex load(Path snapshot, String checklistKey) throws IOException {
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshot))) {
+      return snapshot.toString().endsWith(".gz")
+          ? read(new GZIPInputStream(in), checklistKey)
+          : read(in, checklistKey);
+    }
+  }
+
+  static OccurrenceBitmapIndex read(InputStream content, String checklistKey) throws IOException {
+    OccurrenceBitmapIndex.Builder index = OccurrenceBitmapIndex.builder(checklistKey);
+    try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+      Map<String, List<String>> values = new HashMap<>();
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        values.clear();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          JsonToken token = parser.nextToken();
+          if (!DIMENSIONS.contains(field) || token == JsonToken.VALUE_NULL) {
+            parser.skipChildren();
+          } else if (token == JsonToken.START_ARRAY) {
+            List<String> array = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              array.add(parser.getText());
+            }
+            values.put(field, array);
+          } else {
+            values.put(field, Collections.singletonList(parser.getText()));
+          }
+        }
+        index.add(values);
+      }
+    }
+    return index.build();
+  }
+}
@@ -105,7 +105,9 @@ public class Parameter {
       case RANGE:
         try {
           if (value.contains(",")) {
-            return new YearRange(value);
+            YearRange range = new YearRange(value);
+            // A single year range is the same as the year itself
+            return range.getStartYear() == range.getEndYear() ? range.getStartYear() : range;
           } else {
             return Integer.parseInt(value.trim());
           }
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * A load that reached its deadline in Elasticsearch, which returned the results collected so far.
+ * Partial results are never cached, they are only returned to the callers of the load.
+ */
+public class PartialResultException extends IOException {
+
+  private final transient Object partialResult;
+
+  public PartialResultException(Object partialResult) {
+    super("Elasticsearch timed out, the results are partial");
+    this.partialResult = partialResult;
+  }
+
+  /** @return the results collected before the deadline */
+  public Object getPartialResult() {
+    return partialResult;
+  }
+
+  /** @return an exception with a result computed from the partial result of this one */
+  @SuppressWarnings("unchecked")
+  <T, R> PartialResultException map(Function<T, R> mapper) {
+    return new PartialResultException(mapper.apply((T) partialResult));
+  }
+
+  /**
+   * @return the result of a search if it did not time out
+   * @throws CompletionException of a {@link PartialResultException} if it did
+   */
+  static <T> T requireComplete(T result, boolean timedOut) {
+    if (timedOut) {
+      throw new CompletionException(new PartialResultException(result));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Encodes queries as stable strings that can be written to disk and parsed back, e.g. {@code
+ * country=DK&year=2000} for a {@link CountQuery} and {@code datasetKey?country=DK} for an {@link
+ * AggregationQuery}. Parameters are sorted by their encoded form, so the encoding is also the
+ * canonical key of a query.
+ */
+final class QueryCodec {
+
+  private static final char DIMENSION_SEPARATOR = '?';
+
+  private QueryCodec() {}
+
+  static String encode(CountQuery countQuery) {
+    return countQuery.getKey();
+  }
+
+  static String encode(AggregationQuery aggregationQuery) {
+    return aggregationQuery.getKey();
+  }
+
+  /** @return the parameters keyed and sorted by their encoded form */
+  static SortedMap<String, Parameter> sort(Collection<Parameter> parameters) {
+    SortedMap<String, Parameter> sorted = new TreeMap<>();
+    for (Parameter parameter : parameters) {
+      sorted.put(
+          encode(parameter.getName()) + '=' + encode(parameter.getValue().toString()), parameter);
+    }
+    return sorted;
+  }
+
+  /** @return the canonical key of a count query with the given sorted parameters */
+  static String countKey(SortedMap<String, Parameter> sortedParameters) {
+    return String.join("&", sortedParameters.keySet());
+  }
+
+  /** @return the canonical key of an aggregation query with the given sorted parameters */
+  static String aggregationKey(String dimension, SortedMap<String, Parameter> sortedParameters) {
+    return dimension + DIMENSION_SEPARATOR + countKey(sortedParameters);
+  }
+
+  static CountQuery decodeCountQuery(String encoded) {
+    return new CountQuery(decodeParameters(encoded));
+  }
+
+  static AggregationQuery decodeAggregationQuery(String encoded) {
+    int separator = encoded.indexOf(DIMENSION_SEPARATOR);
+    if (separator < 0) {
+      throw new IllegalArgumentException("Invalid aggregation query: " + encoded);
+    }
+    return AggregationQuery.of(
+        encoded.substring(0, separator), decodeParameters(encoded.substring(separator + 1)));
+  }
+
+  private static Set<Parameter> decodeParameters(String encoded) {
+    Set<Parameter> parameters = new HashSet<>();
+    if (encoded.isEmpty()) {
+      return parameters;
+    }
+    for (String param : encoded.split("&")) {
+      int separator = param.indexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Invalid parameter: " + param);
+      }
+      parameters.add(
+          new Parameter(
+              decode(param.substring(0, separator)), decode(param.substring(separator + 1))));
+    }
+    return parameters;
+  }
+
+  private static String encode(String value) {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8);
+  }
+
+  private static String decode(String value) {
+    return URLDecoder.decode(value, StandardCharsets.UTF_8);
+  }
+}
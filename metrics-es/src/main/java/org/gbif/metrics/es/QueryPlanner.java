@@ -0,0 +1,359 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import org.gbif.metrics.AsyncMetricsService;
+import org.gbif.metrics.MetricsService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.cache2k.io.CacheLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Chooses how each query is answered: from the cache, from a precomputed rollup table, derived from
+ * a cached broader result, or loaded from Elasticsearch. The in-memory plans are tried in order of
+ * their cost, all of them far cheaper than a load, and the cost of a load is estimated from the
+ * recently observed latency of loads of the same shape or, before any, from the cardinality of the
+ * aggregated dimension. Latencies are reported by the cache loaders, so only the loads
+ * Elasticsearch answered count, not the values found cached or stale in the meantime. Loads
+ * estimated to be expensive are throttled: only a few run at once, and none while the caches are
+ * refreshing many entries, the others being rejected with a {@link QueryRejectedException}. Each
+ * plan is counted with its reason.
+ */
+public class QueryPlanner implements MetricsService, AsyncMetricsService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QueryPlanner.class);
+
+  @Data
+  @NoArgsConstructor
+  public static class PlannerConfig {
+
+    // defaults
+    private static final long EXPENSIVE_LOAD_DEFAULT = 10_000;
+    private static final int MAX_EXPENSIVE_LOADS_DEFAULT = 4;
+    private static final int REFRESH_STORM_DEFAULT = 100;
+    private static final double ALPHA_DEFAULT = 0.2;
+
+    // Throttle the expensive loads, otherwise they are only counted
+    private boolean throttle;
+    // Estimated milliseconds from which a load is expensive
+    private long expensiveLoad = EXPENSIVE_LOAD_DEFAULT;
+    // Expensive loads running at once, beyond which they are rejected
+    private int maxExpensiveLoads = MAX_EXPENSIVE_LOADS_DEFAULT;
+    // Pending cache refreshes from which expensive loads are rejected
+    private int refreshStorm = REFRESH_STORM_DEFAULT;
+    // Weight of the latest latency in the average latency of the loads of a shape
+    private double alpha = ALPHA_DEFAULT;
+  }
+
+  /** Sources of an answer. */
+  enum Plan {
+    CACHE_HIT,
+    PRECOMPUTED,
+    DERIVED,
+    ELASTICSEARCH,
+    REJECTED
+  }
+
+  /** A plan, why it was chosen and its estimated cost in milliseconds. */
+  @AllArgsConstructor
+  private static class Decision {
+    private final Plan plan;
+    private final String reason;
+    private final double cost;
+  }
+
+  // Estimated milliseconds of a load never observed, per each shard size of buckets
+  private static final double BASE_LOAD_MILLIS = 200;
+  // Assumed number of values of a high-cardinality dimension never aggregated
+  private static final int UNKNOWN_HIGH_CARDINALITY = 100_000;
+  private static final long RETRY_AFTER_SECONDS = 30;
+
+  private final EsMetricsService metricsService;
+  private final RollupCubeMetricsService cubeService;
+  private final PlannerConfig config;
+  private final MeterRegistry meterRegistry;
+  private final Semaphore expensiveLoads;
+
+  // Average latency of the loads by shape, see shape()
+  private final Map<String, Double> latencies = new ConcurrentHashMap<>();
+  // Counters of the plans by plan and reason
+  private final Map<List<Object>, Counter> plans = new ConcurrentHashMap<>();
+
+  public QueryPlanner(
+      EsMetricsService metricsService,
+      RollupCubeMetricsService cubeService,
+      PlannerConfig config,
+      MeterRegistry meterRegistry) {
+    this.metricsService = metricsService;
+    this.cubeService = cubeService;
+    this.config = config;
+    this.meterRegistry = meterRegistry;
+    expensiveLoads = new Semaphore(config.maxExpensiveLoads);
+    metricsService.setLoadListener(this::loaded);
+  }
+
+  /**
+   * @return how an aggregation query is answered: from the cache, by slicing a cached year
+   *     histogram, or by a load
+   */
+  private Decision plan(AggregationQuery aggregationQuery) {
+    if (metricsService.isCached(aggregationQuery)) {
+      return YearHistogram.YEAR.equals(aggregationQuery.getDimension())
+          ? new Decision(Plan.DERIVED, "cached year histogram", 0)
+          : new Decision(Plan.CACHE_HIT, "cached", 0);
+    }
+    return loadDecision(shape(aggregationQuery), cardinality(aggregationQuery.getDimension()));
+  }
+
+  private Decision loadDecision(String shape, int cardinality) {
+    Double observed = latencies.get(shape);
+    double cost =
+        observed != null
+            ? observed
+            : BASE_LOAD_MILLIS * (1 + (double) cardinality / EsMetricsService.SHARD_SIZE);
+    if (cost < config.expensiveLoad) {
+      return new Decision(Plan.ELASTICSEARCH, "cache miss", cost);
+    }
+    if (config.throttle && metricsService.pendingRefreshes() >= config.refreshStorm) {
+      return new Decision(Plan.REJECTED, "refresh storm", cost);
+    }
+    return new Decision(Plan.ELASTICSEARCH, "expensive cache miss", cost);
+  }
+
+  @Override
+  public Long count(CountQuery countQuery) {
+    return join(countAsync(countQuery));
+  }
+
+  @Override
+  public CompletableFuture<Long> countAsync(CountQuery countQuery) {
+    if (metricsService.isCached(countQuery)) {
+      record(new Decision(Plan.CACHE_HIT, "cached", 0), countQuery);
+      return metricsService.countAsync(countQuery);
+    }
+    Long count = answerInMemory(countQuery);
+    if (count != null) {
+      return CompletableFuture.completedFuture(count);
+    }
+    Decision decision = loadDecision("count", 0);
+    record(decision, countQuery);
+    return decision.plan == Plan.REJECTED
+        ? rejected(decision)
+        : load(decision, countQuery, () -> metricsService.countAsync(countQuery));
+  }
+
+  /**
+   * @return the count of a query from a precomputed rollup table or derived from a cached
+   *     aggregation, the rollup first because a lookup in a table is cheaper than a derivation, or
+   *     null if neither can answer it
+   */
+  private Long answerInMemory(CountQuery countQuery) {
+    Long count = cubeService.cubeCount(countQuery);
+    if (count != null) {
+      record(new Decision(Plan.PRECOMPUTED, "rollup", 0), countQuery);
+      return count;
+    }
+    count = metricsService.derive(countQuery);
+    if (count != null) {
+      // Derived counts are hot keys like the ones answered by the caches
+      metricsService.getHotKeyLog().record(countQuery);
+      record(new Decision(Plan.DERIVED, "cached aggregation", 0), countQuery);
+    }
+    return count;
+  }
+
+  @Override
+  public CompletableFuture<List<Long>> countBatchAsync(List<CountQuery> countQueries) {
+    List<CountQuery> misses = new ArrayList<>();
+    List<Long> counts = new ArrayList<>(countQueries.size());
+    for (CountQuery countQuery : countQueries) {
+      Long count = null;
+      if (metricsService.isCached(countQuery)) {
+        record(new Decision(Plan.CACHE_HIT, "cached", 0), countQuery);
+      } else {
+        count = answerInMemory(countQuery);
+        if (count == null) {
+          // Loaded together with a multi search, never expensive as a whole
+          record(new Decision(Plan.ELASTICSEARCH, "batched cache miss", 0), countQuery);
+        }
+      }
+      counts.add(count);
+      if (count == null) {
+        misses.add(countQuery);
+      }
+    }
+    if (misses.isEmpty()) {
+      return CompletableFuture.completedFuture(counts);
+    }
+    return metricsService
+        .countBatchAsync(misses)
+        .thenApply(
+            loaded -> {
+              int next = 0;
+              for (int i = 0; i < counts.size(); i++) {
+                if (counts.get(i) == null) {
+                  counts.set(i, loaded.get(next++));
+                }
+              }
+              return counts;
+            });
+  }
+
+  @Override
+  public Map<String, Long> countAggregation(AggregationQuery aggregationQuery) {
+    return join(countAggregationAsync(aggregationQuery));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Long>> countAggregationAsync(
+      AggregationQuery aggregationQuery) {
+    Decision decision = plan(aggregationQuery);
+    record(decision, aggregationQuery);
+    switch (decision.plan) {
+      case ELASTICSEARCH:
+        return load(
+            decision,
+            aggregationQuery,
+            () -> metricsService.countAggregationAsync(aggregationQuery));
+      case REJECTED:
+        return rejected(decision);
+      default:
+        return metricsService.countAggregationAsync(aggregationQuery);
+    }
+  }
+
+  /**
+   * Waits for an answer, failing like the synchronous methods of {@link EsMetricsService}: with the
+   * unchecked exception of the answer, such as a {@link QueryRejectedException}, or with a {@link
+   * CacheLoaderException} wrapping the checked one, such as a {@link PartialResultException}.
+   */
+  private static <T> T join(CompletableFuture<T> answer) {
+    try {
+      return answer.join();
+    } catch (CompletionException ex) {
+      Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new CacheLoaderException(cause);
+    }
+  }
+
+  /**
+   * Loads a value from Elasticsearch, through the caches. An expensive load needs a permit when
+   * throttling, released once the load completes.
+   */
+  private <T> CompletableFuture<T> load(
+      Decision decision, Object query, Supplier<CompletableFuture<T>> load) {
+    boolean expensive = decision.cost >= config.expensiveLoad;
+    if (!expensive || !config.throttle) {
+      return get(load);
+    }
+    if (!expensiveLoads.tryAcquire()) {
+      Decision rejected = new Decision(Plan.REJECTED, "too many expensive loads", decision.cost);
+      record(rejected, query);
+      return rejected(rejected);
+    }
+    return get(load).whenComplete((v, ex) -> expensiveLoads.release());
+  }
+
+  private static <T> CompletableFuture<T> get(Supplier<CompletableFuture<T>> load) {
+    try {
+      return load.get();
+    } catch (RuntimeException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  /** Records the latency of a load answered by Elasticsearch, as reported by a cache loader. */
+  void loaded(String cache, Object key, long millis) {
+    String shape;
+    switch (cache) {
+      case "count":
+        shape = "count";
+        break;
+      case "aggregations":
+        shape = shape((AggregationQuery) key);
+        break;
+      default:
+        // Year histograms, keyed by the other parameters of their aggregations
+        shape = shape(YearHistogram.YEAR, ((CountQuery) key).getParameters());
+    }
+    latencies.merge(shape, (double) millis, (old, last) -> old + config.alpha * (last - old));
+  }
+
+  private static <T> CompletableFuture<T> rejected(Decision decision) {
+    return CompletableFuture.failedFuture(
+        new QueryRejectedException(decision.reason, RETRY_AFTER_SECONDS));
+  }
+
+  private void record(Decision decision, Object query) {
+    plans
+        .computeIfAbsent(
+            Arrays.asList(decision.plan, decision.reason),
+            k ->
+                Counter.builder("metrics.plan")
+                    .tag("plan", decision.plan.name().toLowerCase(Locale.ROOT))
+                    .tag("reason", decision.reason)
+                    .description("Queries by the source chosen to answer them and the reason")
+                    .register(meterRegistry))
+        .increment();
+    LOG.debug("Plan {} ({}, {} ms) for {}", decision.plan, decision.reason, decision.cost, query);
+  }
+
+  /**
+   * @return the shape of an aggregation for its latency: its dimension, and whether it is filtered,
+   *     which changes its cost by orders of magnitude. A year aggregation is a slice of the
+   *     histogram of its other parameters, whose load does not depend on the years.
+   */
+  private static String shape(AggregationQuery aggregationQuery) {
+    return YearHistogram.YEAR.equals(aggregationQuery.getDimension())
+        ? shape(YearHistogram.YEAR, EsMetricsService.yearContext(aggregationQuery).getParameters())
+        : shape(aggregationQuery.getDimension(), aggregationQuery.getParameters());
+  }
+
+  private static String shape(String dimension, Collection<Parameter> parameters) {
+    return dimension + (parameters.isEmpty() ? "" : ":filtered");
+  }
+
+  /** @return the number of values of a dimension, as known from its cached aggregation */
+  private int cardinality(String dimension) {
+    Integer cardinality = metricsService.cardinality(dimension);
+    if (cardinality != null) {
+      return cardinality;
+    }
+    return EsMetricsService.HIGH_CARDINALITY_DIMENSIONS.contains(dimension)
+        ? UNKNOWN_HIGH_CARDINALITY
+        : 0;
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+/**
+ * A query that would have to be loaded from Elasticsearch at a high estimated cost while
+ * Elasticsearch is already busy, rejected instead of adding to the load.
+ */
+public class QueryRejectedException extends RuntimeException {
+
+  // Seconds after which the query is likely to be accepted
+  private final long retryAfter;
+
+  public QueryRejectedException(String reason, long retryAfter) {
+    super("Query rejected: " + reason);
+    this.retryAfter = retryAfter;
+  }
+
+  /** @return seconds after which the query is likely to be accepted */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+
+import org.cache2k.CacheEntry;
+import org.cache2k.io.AsyncCacheLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+
+/**
+ * Asynchronous cache loader that calls Elasticsearch, through the {@link CircuitBreaker} of the
+ * loader, and, when the call fails, keeps serving the value already in the cache for up to {@link
+ * EsMetricsService.CacheConfig#getMaxStaleness()} past its expiry. Stale values keep their load
+ * time, so they are retried on access or refresh until a load succeeds.
+ *
+ * <p>Loads do not hold any thread while Elasticsearch answers, they complete on the I/O threads of
+ * the client.
+ *
+ * <p>A load that reached its deadline fails even though Elasticsearch returned partial results, so
+ * that they are never cached. The partial results are handed to a callback instead.
+ *
+ * <p>The latency of each load answered by Elasticsearch, fully or partially, is handed to another
+ * callback, unlike the failed loads and the stale values served.
+ */
+class ResilientLoader<K, V> implements AsyncCacheLoader<K, CachedValue<V>> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResilientLoader.class);
+
+  /** Loads a value from Elasticsearch asynchronously, through the circuit breaker. */
+  @FunctionalInterface
+  interface Loader<K, V> {
+    CompletableFuture<V> load(K key);
+  }
+
+  private final Loader<K, V> loader;
+  private final BiConsumer<K, PartialResultException> onPartialResult;
+  private final ObjLongConsumer<K> onLoaded;
+  private final LongSupplier lifetime;
+  private final long maxStaleness;
+  private final Counter staleServed;
+  // Latency of the successful loads
+  @Getter private final Timer loadTimer;
+
+  ResilientLoader(
+      Loader<K, V> loader,
+      BiConsumer<K, PartialResultException> onPartialResult,
+      ObjLongConsumer<K> onLoaded,
+      LongSupplier lifetime,
+      EsMetricsService.CacheConfig cacheConfig,
+      String name,
+      MeterRegistry meterRegistry) {
+    this.loader = loader;
+    this.onPartialResult = onPartialResult;
+    this.onLoaded = onLoaded;
+    this.lifetime = lifetime;
+    maxStaleness = cacheConfig.getMaxStaleness();
+    staleServed =
+        Counter.builder("metrics.cache.stale.served")
+            .tag("cache", name)
+            .description("Expired values served because they could not be reloaded")
+            .register(meterRegistry);
+    loadTimer =
+        Timer.builder("metrics.cache.load")
+            .tag("cache", name)
+            .description("Latency of the loads from Elasticsearch")
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .register(meterRegistry);
+  }
+
+  @Override
+  public void load(K key, Context<K, CachedValue<V>> context, Callback<CachedValue<V>> callback) {
+    long start = System.nanoTime();
+    CompletableFuture<V> loaded;
+    try {
+      loaded = loader.load(key);
+    } catch (RuntimeException ex) {
+      loaded = CompletableFuture.failedFuture(ex);
+    }
+    loaded.whenComplete(
+        (value, ex) -> {
+          long latency = System.nanoTime() - start;
+          Throwable cause = ex != null ? unwrap(ex) : null;
+          if (cause == null || cause instanceof PartialResultException) {
+            onLoaded.accept(key, TimeUnit.NANOSECONDS.toMillis(latency));
+          }
+          if (ex == null) {
+            loadTimer.record(latency, TimeUnit.NANOSECONDS);
+            callback.onLoadSuccess(CachedValue.loadedNow(value));
+          } else {
+            onFailure(key, context, callback, cause);
+          }
+        });
+  }
+
+  private void onFailure(
+      K key, Context<K, CachedValue<V>> context, Callback<CachedValue<V>> callback, Throwable ex) {
+    CacheEntry<K, CachedValue<V>> currentEntry = context.getCurrentEntry();
+    CachedValue<V> stale =
+        currentEntry != null && currentEntry.getExceptionInfo() == null
+            ? currentEntry.getValue()
+            : null;
+    if (stale != null
+        && context.getStartTime() - stale.getLoadedAt() - lifetime.getAsLong() <= maxStaleness) {
+      LOG.warn("Serving stale value of {}: {}", key, ex.getMessage());
+      staleServed.increment();
+      callback.onLoadSuccess(stale);
+      return;
+    }
+    if (ex instanceof PartialResultException) {
+      // Not cached, handed over to the callers of the load
+      LOG.warn("Partial result loading {}: {}", key, ex.getMessage());
+      onPartialResult.accept(key, (PartialResultException) ex);
+    } else if (ex instanceof CircuitBreaker.OpenException) {
+      LOG.warn("Error loading {}: {}", key, ex.getMessage());
+    } else {
+      LOG.error("Error loading {}", key, ex);
+    }
+    callback.onLoadFailure(ex);
+  }
+
+  private static Throwable unwrap(Throwable ex) {
+    return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+  }
+}
@@ -0,0 +1,630 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import org.gbif.api.model.metrics.cube.Dimension;
+import org.gbif.api.model.metrics.cube.OccurrenceCube;
+import org.gbif.api.model.metrics.cube.Rollup;
+import org.gbif.metrics.AsyncMetricsService;
+import org.gbif.metrics.MetricsService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Answers the count queries of the published rollups, {@link OccurrenceCube#ROLLUPS}, from an
+ * in-memory {@link RollupTable} per rollup, and delegates any other query to the {@link
+ * EsMetricsService}. The tables are materialized in the background with composite aggregations and
+ * replaced one by one on each pass, so until the first pass completes queries are delegated. If a
+ * {@link CubeConfig#getFile() file} is set, each pass is saved to it as a {@link CubeFile} that is
+ * opened on start, so the tables are available at once and then live outside the heap.
+ *
+ * <p>In {@link CubeConfig#isIncremental() incremental} mode each rollup without a datasetKey
+ * dimension is kept with its contributions: the table of the same dimensions plus datasetKey, whose
+ * rows add up to the rows of the rollup. A pass first compares a fingerprint of each dataset, its
+ * count and latest modification, with the previous pass, and only aggregates the datasets that
+ * changed. Their new contributions replace the old ones, and are added to the rollups while the old
+ * ones are subtracted, and the cached results they contribute to are refreshed, see {@link
+ * EsMetricsService#refreshDatasets}. Full passes only run after a restart, when too many datasets
+ * changed or once the {@link CubeConfig#getFullRebuildInterval()} has passed.
+ */
+public class RollupCubeMetricsService implements MetricsService, AsyncMetricsService, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RollupCubeMetricsService.class);
+
+  @Data
+  @NoArgsConstructor
+  public static class CubeConfig {
+
+    // defaults
+    private static final long INTERVAL_DEFAULT = TimeUnit.HOURS.toMillis(6);
+    private static final int MAX_ROWS_DEFAULT = 2_000_000;
+    private static final String MODIFIED_FIELD_DEFAULT = "lastInterpreted";
+    private static final int MAX_CHANGED_DATASETS_DEFAULT = 1_000;
+    private static final long FULL_REBUILD_INTERVAL_DEFAULT = TimeUnit.DAYS.toMillis(7);
+    private static final long PAGE_TIMEOUT_DEFAULT = TimeUnit.MINUTES.toMillis(5);
+    private static final int PAGE_SIZE_DEFAULT = 10_000;
+
+    private boolean enabled;
+    // Milliseconds between the starts of two materializations of all the rollups
+    private long interval = INTERVAL_DEFAULT;
+    // Rollups with any of these dimensions are not materialized, because of their cardinality
+    private List<String> excludedDimensions = Collections.singletonList("taxonKey");
+    // Rollups with more combinations of values are not materialized
+    private int maxRows = MAX_ROWS_DEFAULT;
+    // Cube file the tables are saved to and restored from, not saved if empty
+    private String file;
+    // Maintain the rollups from the changes of each dataset between full passes
+    private boolean incremental;
+    // Date field of the documents whose maximum, with the count, fingerprints a dataset
+    private String modifiedField = MODIFIED_FIELD_DEFAULT;
+    // Changed datasets beyond which a pass is a full one
+    private int maxChangedDatasets = MAX_CHANGED_DATASETS_DEFAULT;
+    // Milliseconds after which an incremental pass is replaced by a full one
+    private long fullRebuildInterval = FULL_REBUILD_INTERVAL_DEFAULT;
+    // Milliseconds Elasticsearch is given for each page of a rollup, after which the pass stops
+    private long pageTimeout = PAGE_TIMEOUT_DEFAULT;
+    // Buckets of each page of the composite aggregations
+    private int pageSize = PAGE_SIZE_DEFAULT;
+  }
+
+  private static final String DATASET_KEY = "datasetKey";
+
+  private final EsMetricsService metricsService;
+  private final InventoryPrefetcher.Search search;
+  private final String esIndex;
+  private final CubeConfig config;
+  private final ScheduledExecutorService scheduler;
+  private final Counter cubeCounts;
+
+  // Tables by the sorted names of their dimensions
+  private final Map<Set<String>, RollupTable> tables = new ConcurrentHashMap<>();
+
+  // Fingerprints of the datasets when the tables were built, null if unknown
+  private Map<String, Long> fingerprints;
+  private long lastFullPass;
+
+  public RollupCubeMetricsService(
+      EsMetricsService metricsService,
+      HedgingClient hedgingClient,
+      String esIndex,
+      CubeConfig config,
+      MeterRegistry meterRegistry) {
+    this(
+        metricsService,
+        request ->
+            hedgingClient.call(
+                (client, options, listener) -> client.searchAsync(request, options, listener),
+                config.pageTimeout),
+        esIndex,
+        config,
+        meterRegistry);
+  }
+
+  /** @param search sends the searches of the composite aggregations */
+  RollupCubeMetricsService(
+      EsMetricsService metricsService,
+      InventoryPrefetcher.Search search,
+      String esIndex,
+      CubeConfig config,
+      MeterRegistry meterRegistry) {
+    this.metricsService = metricsService;
+    this.search = search;
+    this.esIndex = esIndex;
+    this.config = config;
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "metrics-rollup-cube");
+              thread.setDaemon(true);
+              return thread;
+            });
+    cubeCounts = EsMetricsService.countAnswers("cube", meterRegistry);
+    Gauge.builder(
+            "metrics.cube.rows", tables, t -> t.values().stream().mapToInt(RollupTable::size).sum())
+        .description("Combinations of values of the materialized rollups")
+        .register(meterRegistry);
+    Gauge.builder("metrics.cube.tables", tables, Map::size)
+        .description("Rollups materialized")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Opens the cube file, if any, and starts materializing the rollups periodically, the first time
+   * once the tables of the file are as old as the interval.
+   */
+  public void start() {
+    if (!config.enabled) {
+      return;
+    }
+    long delay = 0;
+    Path file = cubeFile();
+    if (file != null && Files.exists(file)) {
+      try {
+        open(file);
+        long age = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+        delay = Math.max(0, config.interval - age);
+        LOG.info("Opened {} rollups from cube file {}", tables.size(), file);
+      } catch (IOException | RuntimeException ex) {
+        // A broken file must never prevent the service from starting
+        LOG.warn("Ignoring cube file {}", file, ex);
+      }
+    }
+    scheduler.scheduleAtFixedRate(
+        this::materializeAll, delay, config.interval, TimeUnit.MILLISECONDS);
+  }
+
+  private Path cubeFile() {
+    return config.file == null || config.file.isEmpty() ? null : Paths.get(config.file);
+  }
+
+  private void open(Path file) throws IOException {
+    for (RollupTable table : CubeFile.open(file)) {
+      tables.put(new TreeSet<>(Arrays.asList(table.getDimensions())), table);
+    }
+  }
+
+  /** Runs a pass, materializing or updating all the rollups. */
+  void materializeAll() {
+    long start = System.currentTimeMillis();
+    Map<String, Long> currentFingerprints = null;
+    Set<String> changed = null;
+    if (config.incremental) {
+      try {
+        currentFingerprints = fingerprints();
+        if (fingerprints != null && start - lastFullPass < config.fullRebuildInterval) {
+          changed = changedDatasets(fingerprints, currentFingerprints);
+          if (changed.size() > config.maxChangedDatasets) {
+            changed = null;
+          }
+        }
+      } catch (RuntimeException ex) {
+        if (isTimeout(ex)) {
+          // A full pass would time out too
+          LOG.error("Timeout fingerprinting the datasets, skipping the pass", ex);
+          return;
+        }
+        LOG.error("Error fingerprinting the datasets, running a full pass", ex);
+      }
+    }
+    if (changed != null && changed.isEmpty()) {
+      LOG.info("No dataset changed since the last pass");
+      return;
+    }
+
+    // Tables of this pass, null for the ones with too many rows
+    Map<Set<String>, RollupTable> built = new HashMap<>();
+    Map<Set<String>, RollupTable> changedContributions = new HashMap<>();
+    boolean failed = false;
+    for (Rollup rollup : OccurrenceCube.ROLLUPS) {
+      Set<String> dimensions =
+          rollup.getDimensions().stream().map(Dimension::getKey).collect(Collectors.toSet());
+      // The total count has no dimension to aggregate and is cached anyway
+      if (dimensions.isEmpty()
+          || dimensions.stream().anyMatch(config.excludedDimensions::contains)) {
+        continue;
+      }
+      try {
+        if (changed == null || !update(dimensions, changed, built, changedContributions)) {
+          // Contributions are only materialized in full passes, they are updated otherwise
+          rebuild(dimensions, built, changed == null);
+        }
+      } catch (RuntimeException ex) {
+        failed = true;
+        if (isTimeout(ex)) {
+          // The other rollups keep their tables of the previous pass
+          LOG.error("Timeout materializing the rollup {}, stopping the pass", dimensions, ex);
+          break;
+        }
+        LOG.error("Error materializing the rollup {}", dimensions, ex);
+      }
+    }
+    built.forEach(
+        (dimensions, table) -> {
+          if (table != null) {
+            tables.put(dimensions, table);
+          } else {
+            tables.remove(dimensions);
+          }
+        });
+    // Contributions are only known to match the fingerprints if every table was built
+    fingerprints = failed ? null : currentFingerprints;
+    if (changed == null) {
+      lastFullPass = start;
+      LOG.info(
+          "Materialized {} rollups in {} ms", tables.size(), System.currentTimeMillis() - start);
+    } else {
+      // The cached entries the changed datasets contribute to are refreshed like the rollups
+      metricsService.refreshDatasets(changed, built.keySet());
+      LOG.info(
+          "Updated {} rollups for {} changed datasets in {} ms",
+          tables.size(),
+          changed.size(),
+          System.currentTimeMillis() - start);
+    }
+
+    Path file = cubeFile();
+    if (file != null) {
+      try {
+        CubeFile.write(file, new ArrayList<>(tables.values()));
+        // Replaces the heap tables with the mapped ones
+        open(file);
+      } catch (IOException | RuntimeException ex) {
+        LOG.error("Error writing the cube file {}", file, ex);
+      }
+    }
+  }
+
+  /**
+   * Materializes a rollup from all the occurrences. In incremental mode, a rollup without a
+   * datasetKey dimension is summed up from its contributions, which are materialized instead if
+   * requested.
+   */
+  private void rebuild(
+      Set<String> dimensions, Map<Set<String>, RollupTable> built, boolean withContributions) {
+    if (built.containsKey(dimensions)) {
+      return;
+    }
+    if (config.incremental
+        && withContributions
+        && !dimensions.contains(DATASET_KEY)
+        && !config.excludedDimensions.contains(DATASET_KEY)) {
+      Set<String> withDataset = withDataset(dimensions);
+      if (!built.containsKey(withDataset)) {
+        built.put(withDataset, materialize(withDataset, QueryBuilders.matchAllQuery()));
+      }
+      RollupTable contributions = built.get(withDataset);
+      if (contributions != null) {
+        RollupTable.Builder table = RollupTable.builder(new ArrayList<>(dimensions));
+        int datasetIndex = Arrays.binarySearch(contributions.getDimensions(), DATASET_KEY);
+        contributions.forEach((values, count) -> table.add(without(values, datasetIndex), count));
+        built.put(dimensions, table.build());
+        return;
+      }
+    }
+    built.put(dimensions, materialize(dimensions, QueryBuilders.matchAllQuery()));
+  }
+
+  /**
+   * Updates a rollup and its contributions with the new contributions of the changed datasets.
+   *
+   * @return false if the rollup has no contributions to update and has to be rebuilt
+   */
+  private boolean update(
+      Set<String> dimensions,
+      Set<String> changed,
+      Map<Set<String>, RollupTable> built,
+      Map<Set<String>, RollupTable> changedContributions) {
+    if (built.containsKey(dimensions)) {
+      return true;
+    }
+    Set<String> withDataset = withDataset(dimensions);
+    RollupTable table = tables.get(dimensions);
+    RollupTable contributions = tables.get(withDataset);
+    if (table == null || contributions == null) {
+      return false;
+    }
+    if (!changedContributions.containsKey(withDataset)) {
+      changedContributions.put(
+          withDataset,
+          materialize(
+              withDataset,
+              QueryBuilders.termsQuery(EsMetricsService.esField(DATASET_KEY), changed)));
+    }
+    RollupTable delta = changedContributions.get(withDataset);
+    if (delta == null) {
+      return false;
+    }
+
+    if (!built.containsKey(withDataset)) {
+      built.put(withDataset, updateContributions(contributions, delta, changed));
+    }
+    if (!dimensions.contains(DATASET_KEY)) {
+      built.put(dimensions, updateRollup(table, contributions, delta, changed));
+    }
+    return true;
+  }
+
+  /**
+   * @param delta new contributions of the changed datasets, without the removed ones
+   * @return the contributions with the ones of the changed datasets replaced by the delta
+   */
+  static RollupTable updateContributions(
+      RollupTable contributions, RollupTable delta, Set<String> changed) {
+    int datasetIndex = Arrays.binarySearch(contributions.getDimensions(), DATASET_KEY);
+    RollupTable.Builder newContributions =
+        RollupTable.builder(Arrays.asList(contributions.getDimensions()));
+    contributions.forEach(
+        (values, count) -> {
+          if (!changed.contains(values[datasetIndex])) {
+            newContributions.add(values.clone(), count);
+          }
+        });
+    delta.forEach((values, count) -> newContributions.add(values.clone(), count));
+    return newContributions.build();
+  }
+
+  /**
+   * @param delta new contributions of the changed datasets, without the removed ones
+   * @return the rollup plus the new contributions of the changed datasets minus their old ones
+   */
+  static RollupTable updateRollup(
+      RollupTable table, RollupTable contributions, RollupTable delta, Set<String> changed) {
+    int datasetIndex = Arrays.binarySearch(contributions.getDimensions(), DATASET_KEY);
+    RollupTable.Builder newTable = RollupTable.builder(Arrays.asList(table.getDimensions()));
+    table.forEach((values, count) -> newTable.add(values.clone(), count));
+    delta.forEach((values, count) -> newTable.add(without(values, datasetIndex), count));
+    contributions.forEach(
+        (values, count) -> {
+          if (changed.contains(values[datasetIndex])) {
+            newTable.add(without(values, datasetIndex), -count);
+          }
+        });
+    return newTable.build();
+  }
+
+  private static Set<String> withDataset(Set<String> dimensions) {
+    Set<String> withDataset = new TreeSet<>(dimensions);
+    withDataset.add(DATASET_KEY);
+    return withDataset;
+  }
+
+  /** @return a copy of the values without the one at the given index */
+  private static String[] without(String[] values, int index) {
+    String[] projected = new String[values.length - 1];
+    System.arraycopy(values, 0, projected, 0, index);
+    System.arraycopy(values, index + 1, projected, index, values.length - index - 1);
+    return projected;
+  }
+
+  /** @return the datasets whose fingerprint changed, including the new and removed ones */
+  private static Set<String> changedDatasets(
+      Map<String, Long> previous, Map<String, Long> current) {
+    Set<String> changed = new HashSet<>();
+    current.forEach(
+        (datasetKey, fingerprint) -> {
+          if (!fingerprint.equals(previous.get(datasetKey))) {
+            changed.add(datasetKey);
+          }
+        });
+    previous.keySet().stream().filter(k -> !current.containsKey(k)).forEach(changed::add);
+    return changed;
+  }
+
+  /** @return the fingerprint of each dataset: its count and the latest modification */
+  private Map<String, Long> fingerprints() {
+    CompositeAggregationBuilder composite =
+        new CompositeAggregationBuilder(
+                "datasets",
+                Collections.singletonList(
+                    new TermsValuesSourceBuilder(DATASET_KEY)
+                        .field(EsMetricsService.esField(DATASET_KEY))))
+            .size(config.pageSize);
+    boolean modified = config.modifiedField != null && !config.modifiedField.isEmpty();
+    if (modified) {
+      composite.subAggregation(AggregationBuilders.max("modified").field(config.modifiedField));
+    }
+    Map<String, Long> fingerprints = new HashMap<>();
+    forEachBucket(
+        composite,
+        QueryBuilders.matchAllQuery(),
+        bucket -> {
+          long fingerprint = bucket.getDocCount();
+          if (modified) {
+            Max max = bucket.getAggregations().get("modified");
+            fingerprint = fingerprint * 31 + Double.doubleToLongBits(max.getValue());
+          }
+          fingerprints.put(String.valueOf(bucket.getKey().get(DATASET_KEY)), fingerprint);
+          return true;
+        });
+    return fingerprints;
+  }
+
+  /** @return the table of the rollup of the occurrences of a query, or null if too large */
+  private RollupTable materialize(Set<String> dimensions, QueryBuilder query) {
+    RollupTable.Builder builder = RollupTable.builder(new ArrayList<>(dimensions));
+    String[] sortedDimensions = builder.getDimensions();
+    List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>();
+    for (String dimension : sortedDimensions) {
+      sources.add(
+          new TermsValuesSourceBuilder(dimension).field(EsMetricsService.esField(dimension)));
+    }
+    boolean complete =
+        forEachBucket(
+            new CompositeAggregationBuilder("rollup", sources).size(config.pageSize),
+            query,
+            bucket -> {
+              String[] values = new String[sortedDimensions.length];
+              for (int d = 0; d < values.length; d++) {
+                values[d] = String.valueOf(bucket.getKey().get(sortedDimensions[d]));
+              }
+              builder.add(values, bucket.getDocCount());
+              return builder.size() <= config.maxRows;
+            });
+    if (!complete) {
+      LOG.warn("Rollup {} has more than {} rows, not materialized", dimensions, config.maxRows);
+      return null;
+    }
+    return builder.build();
+  }
+
+  /**
+   * Pages through a composite aggregation of the occurrences of a query.
+   *
+   * @param consumer receives each bucket and returns false to stop
+   * @return false if stopped by the consumer
+   * @throws CompletionException caused by a {@link TimeoutException} if a page is not returned
+   *     within the page timeout
+   */
+  private boolean forEachBucket(
+      CompositeAggregationBuilder composite,
+      QueryBuilder query,
+      Predicate<CompositeAggregation.Bucket> consumer) {
+    Map<String, Object> afterKey = null;
+    do {
+      if (afterKey != null) {
+        composite.aggregateAfter(afterKey);
+      }
+      SearchSourceBuilder source =
+          new SearchSourceBuilder().query(query).size(0).aggregation(composite);
+      if (config.pageTimeout > 0) {
+        source.timeout(TimeValue.timeValueMillis(config.pageTimeout));
+      }
+      SearchRequest request = new SearchRequest(esIndex).source(source);
+      SearchResponse response = search.search(request).join();
+      // The buckets of a page that timed out are not all the buckets of its keys
+      if (response.isTimedOut()) {
+        throw new CompletionException(
+            new TimeoutException("Page of " + composite.getName() + " timed out"));
+      }
+      CompositeAggregation page = response.getAggregations().get(composite.getName());
+      for (CompositeAggregation.Bucket bucket : page.getBuckets()) {
+        if (!consumer.test(bucket)) {
+          return false;
+        }
+      }
+      afterKey = page.getBuckets().size() < composite.size() ? null : page.afterKey();
+    } while (afterKey != null);
+    return true;
+  }
+
+  private static boolean isTimeout(RuntimeException ex) {
+    return ex instanceof CompletionException && ex.getCause() instanceof TimeoutException;
+  }
+
+  /**
+   * @return the count of a query from the table of its rollup, or null if there is no such table or
+   *     the query is not an address of it, e.g. a year range
+   */
+  Long cubeCount(CountQuery countQuery) {
+    Set<String> names = new TreeSet<>();
+    countQuery.getParameters().forEach(p -> names.add(p.getName()));
+    RollupTable table = tables.get(names);
+    if (table == null) {
+      return null;
+    }
+    String[] dimensions = table.getDimensions();
+    String[] values = new String[dimensions.length];
+    for (Parameter parameter : countQuery.getParameters()) {
+      if (parameter.getValue() instanceof YearRange) {
+        return null;
+      }
+      values[Arrays.binarySearch(dimensions, parameter.getName())] =
+          String.valueOf(parameter.getValue());
+    }
+    cubeCounts.increment();
+    return table.count(values);
+  }
+
+  @Override
+  public Long count(CountQuery countQuery) {
+    Long count = cubeCount(countQuery);
+    return count != null ? count : metricsService.count(countQuery);
+  }
+
+  @Override
+  public CompletableFuture<Long> countAsync(CountQuery countQuery) {
+    Long count = cubeCount(countQuery);
+    return count != null
+        ? CompletableFuture.completedFuture(count)
+        : metricsService.countAsync(countQuery);
+  }
+
+  @Override
+  public CompletableFuture<List<Long>> countBatchAsync(List<CountQuery> countQueries) {
+    List<Long> counts = new ArrayList<>(countQueries.size());
+    List<CountQuery> misses = new ArrayList<>();
+    for (CountQuery countQuery : countQueries) {
+      Long count = cubeCount(countQuery);
+      counts.add(count);
+      if (count == null) {
+        misses.add(countQuery);
+      }
+    }
+    if (misses.isEmpty()) {
+      return CompletableFuture.completedFuture(counts);
+    }
+    return metricsService
+        .countBatchAsync(misses)
+        .thenApply(
+            loaded -> {
+              int next = 0;
+              for (int i = 0; i < counts.size(); i++) {
+                if (counts.get(i) == null) {
+                  counts.set(i, loaded.get(next++));
+                }
+              }
+              return counts;
+            });
+  }
+
+  @Override
+  public Map<String, Long> countAggregation(AggregationQuery aggregationQuery) {
+    return metricsService.countAggregation(aggregationQuery);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Long>> countAggregationAsync(
+      AggregationQuery aggregationQuery) {
+    return metricsService.countAggregationAsync(aggregationQuery);
+  }
+
+  /** Stops the materialization, the delegate is closed on its own. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+}
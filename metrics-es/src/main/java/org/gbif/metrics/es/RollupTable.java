@@ -0,0 +1,373 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Counts of all the combinations of values of a rollup, read in place from a buffer, on the heap
+ * when just built or memory-mapped from a {@link CubeFile}, without deserializing anything but the
+ * names of the dimensions. The buffer holds one dictionary per dimension, the rows as their
+ * dictionary codes sorted in blocks with a sparse index of the first row of each block, and a count
+ * column. Layout, big-endian:
+ *
+ * <pre>
+ * header     int dimensions, int rows, int blockSize, int blocks,
+ *            int offset of each dictionary, int keysOffset, int indexOffset, int countsOffset
+ * dictionary int nameLength, name, int size, int[size + 1] value offsets, values
+ *            (names and values in UTF-8, values sorted by their bytes, the code of a value is
+ *            its position)
+ * keys       int[rows][dimensions] codes of the rows, sorted
+ * index      int[blocks][dimensions] codes of the first row of each block
+ * counts     long[rows], aligned to 8 bytes
+ * </pre>
+ */
+final class RollupTable {
+
+  private static final int BLOCK_SIZE = 128;
+  private static final int HEADER_INTS = 4;
+
+  private static final Comparator<byte[]> UTF8_ORDER = Arrays::compareUnsigned;
+
+  private final ByteBuffer buffer;
+  // Sorted names of the dimensions, i.e. the parameter names
+  private final String[] dimensions;
+  private final int rows;
+  private final int blockSize;
+  private final int blocks;
+  private final int[] dictionaryOffsets;
+  private final int keysOffset;
+  private final int indexOffset;
+  private final int countsOffset;
+
+  private RollupTable(ByteBuffer buffer) {
+    this.buffer = buffer;
+    int dimensionCount = buffer.getInt(0);
+    rows = buffer.getInt(4);
+    blockSize = buffer.getInt(8);
+    blocks = buffer.getInt(12);
+    dimensions = new String[dimensionCount];
+    dictionaryOffsets = new int[dimensionCount];
+    int position = HEADER_INTS * 4;
+    for (int d = 0; d < dimensionCount; d++, position += 4) {
+      dictionaryOffsets[d] = buffer.getInt(position);
+      byte[] name = new byte[buffer.getInt(dictionaryOffsets[d])];
+      buffer.get(dictionaryOffsets[d] + 4, name);
+      dimensions[d] = new String(name, StandardCharsets.UTF_8);
+    }
+    keysOffset = buffer.getInt(position);
+    indexOffset = buffer.getInt(position + 4);
+    countsOffset = buffer.getInt(position + 8);
+  }
+
+  static Builder builder(List<String> dimensions) {
+    return new Builder(dimensions);
+  }
+
+  /** @return a table over a buffer in the layout of the tables, from position 0 */
+  static RollupTable of(ByteBuffer buffer) {
+    return new RollupTable(buffer);
+  }
+
+  /** @return a read-only view of the whole buffer of the table */
+  ByteBuffer getBuffer() {
+    return buffer.asReadOnlyBuffer().position(0).limit(buffer.capacity());
+  }
+
+  /** @return sorted names of the dimensions */
+  String[] getDimensions() {
+    return dimensions;
+  }
+
+  int size() {
+    return rows;
+  }
+
+  /**
+   * @param values values of the dimensions, in the order of {@link #getDimensions()}
+   * @return count of the combination of values, 0 if it does not exist
+   */
+  long count(String[] values) {
+    int[] codes = new int[dimensions.length];
+    for (int d = 0; d < dimensions.length; d++) {
+      codes[d] = code(d, values[d].getBytes(StandardCharsets.UTF_8));
+      if (codes[d] < 0) {
+        return 0;
+      }
+    }
+    // Last block whose first row is not after the codes
+    int low = 0;
+    int high = blocks - 1;
+    int block = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (compare(indexOffset, mid, codes) <= 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (block < 0) {
+      return 0;
+    }
+    low = block * blockSize;
+    high = Math.min(rows, low + blockSize) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(keysOffset, mid, codes);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return buffer.getLong(countsOffset + mid * 8);
+      }
+    }
+    return 0;
+  }
+
+  /** Receives the rows of a table. */
+  @FunctionalInterface
+  interface RowConsumer {
+    /**
+     * @param values values of the dimensions, in the order of {@link #getDimensions()}, not to be
+     *     kept
+     */
+    void accept(String[] values, long count);
+  }
+
+  /** Decodes all the rows, in order, for tables derived from this one. */
+  void forEach(RowConsumer consumer) {
+    String[][] dictionaries = new String[dimensions.length][];
+    for (int d = 0; d < dimensions.length; d++) {
+      int offset = dictionaryOffsets[d];
+      offset += 4 + buffer.getInt(offset);
+      dictionaries[d] = new String[buffer.getInt(offset)];
+      int valueOffsets = offset + 4;
+      int values = valueOffsets + (dictionaries[d].length + 1) * 4;
+      for (int i = 0; i < dictionaries[d].length; i++) {
+        int start = buffer.getInt(valueOffsets + i * 4);
+        byte[] value = new byte[buffer.getInt(valueOffsets + i * 4 + 4) - start];
+        buffer.get(values + start, value);
+        dictionaries[d][i] = new String(value, StandardCharsets.UTF_8);
+      }
+    }
+    String[] values = new String[dimensions.length];
+    for (int r = 0; r < rows; r++) {
+      for (int d = 0; d < dimensions.length; d++) {
+        values[d] = dictionaries[d][buffer.getInt(keysOffset + (r * dimensions.length + d) * 4)];
+      }
+      consumer.accept(values, buffer.getLong(countsOffset + r * 8));
+    }
+  }
+
+  /** @return the code of a value of a dimension, negative if it is not in the dictionary */
+  private int code(int dimension, byte[] value) {
+    int offset = dictionaryOffsets[dimension];
+    offset += 4 + buffer.getInt(offset);
+    int size = buffer.getInt(offset);
+    int valueOffsets = offset + 4;
+    int values = valueOffsets + (size + 1) * 4;
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int start = values + buffer.getInt(valueOffsets + mid * 4);
+      int end = values + buffer.getInt(valueOffsets + mid * 4 + 4);
+      int cmp = compare(start, end, value);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // Compares the bytes of the buffer between both offsets with a value, unsigned like UTF8_ORDER
+  private int compare(int start, int end, byte[] value) {
+    int length = Math.min(end - start, value.length);
+    for (int i = 0; i < length; i++) {
+      int cmp = Integer.compare(buffer.get(start + i) & 0xff, value[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(end - start, value.length);
+  }
+
+  // Compares the codes of a row of the keys or of the index with the given ones
+  private int compare(int section, int row, int[] codes) {
+    int offset = section + row * codes.length * 4;
+    for (int d = 0; d < codes.length; d++) {
+      int cmp = Integer.compare(buffer.getInt(offset + d * 4), codes[d]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Collects the rows of a table in any order. The counts of rows with the same values are added
+   * up, so that a table can be adjusted with positive and negative deltas, and rows whose counts
+   * add up to 0 are left out.
+   */
+  static final class Builder {
+    private final String[] dimensions;
+    private final List<String[]> rows = new ArrayList<>();
+    private long[] counts = new long[1024];
+
+    private Builder(List<String> dimensions) {
+      this.dimensions = dimensions.stream().sorted().toArray(String[]::new);
+    }
+
+    /**
+     * @param values values of the dimensions, in the order of {@link #getDimensions()}, kept by the
+     *     builder
+     * @param count count of the combination of values, or delta of its count
+     */
+    Builder add(String[] values, long count) {
+      if (rows.size() == counts.length) {
+        counts = Arrays.copyOf(counts, counts.length * 2);
+      }
+      counts[rows.size()] = count;
+      rows.add(values);
+      return this;
+    }
+
+    String[] getDimensions() {
+      return dimensions;
+    }
+
+    int size() {
+      return rows.size();
+    }
+
+    /** @return the table in a heap buffer */
+    RollupTable build() {
+      int added = rows.size();
+      byte[][] names = new byte[dimensions.length][];
+      byte[][][] dictionaries = new byte[dimensions.length][][];
+      int[][] columns = new int[dimensions.length][added];
+      int length = (HEADER_INTS + dimensions.length + 3) * 4;
+      for (int d = 0; d < dimensions.length; d++) {
+        names[d] = dimensions[d].getBytes(StandardCharsets.UTF_8);
+        int dimension = d;
+        dictionaries[d] =
+            rows.stream()
+                .map(row -> row[dimension])
+                .distinct()
+                .map(value -> value.getBytes(StandardCharsets.UTF_8))
+                .sorted(UTF8_ORDER)
+                .toArray(byte[][]::new);
+        for (int r = 0; r < added; r++) {
+          columns[d][r] =
+              Arrays.binarySearch(
+                  dictionaries[d], rows.get(r)[d].getBytes(StandardCharsets.UTF_8), UTF8_ORDER);
+        }
+        length += 8 + names[d].length + (dictionaries[d].length + 1) * 4;
+        for (byte[] value : dictionaries[d]) {
+          length += value.length;
+        }
+        length = align(length, 4);
+      }
+
+      // Sorting the codes sorts the values, since codes follow the order of the values
+      Comparator<Integer> byCodes =
+          (a, b) -> {
+            for (int[] column : columns) {
+              int cmp = Integer.compare(column[a], column[b]);
+              if (cmp != 0) {
+                return cmp;
+              }
+            }
+            return 0;
+          };
+      int[] sorted = IntStream.range(0, added).boxed().sorted(byCodes).mapToInt(i -> i).toArray();
+      // First added row of each distinct combination, and the sum of its counts
+      int[] order = new int[added];
+      long[] sums = new long[added];
+      int size = 0;
+      for (int i : sorted) {
+        if (size > 0 && byCodes.compare(order[size - 1], i) == 0) {
+          sums[size - 1] += counts[i];
+        } else {
+          order[size] = i;
+          sums[size++] = counts[i];
+        }
+      }
+      int nonZero = 0;
+      for (int r = 0; r < size; r++) {
+        if (sums[r] != 0) {
+          order[nonZero] = order[r];
+          sums[nonZero++] = sums[r];
+        }
+      }
+      size = nonZero;
+      int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+      int keysOffset = length;
+      int indexOffset = keysOffset + size * dimensions.length * 4;
+      int countsOffset = align(indexOffset + blocks * dimensions.length * 4, 8);
+      ByteBuffer buffer = ByteBuffer.allocate(countsOffset + size * 8);
+
+      buffer.putInt(dimensions.length).putInt(size).putInt(BLOCK_SIZE).putInt(blocks);
+      int position = (HEADER_INTS + dimensions.length + 3) * 4;
+      for (int d = 0; d < dimensions.length; d++) {
+        buffer.putInt((HEADER_INTS + d) * 4, position);
+        buffer.position(position);
+        buffer.putInt(names[d].length).put(names[d]).putInt(dictionaries[d].length);
+        int valueOffset = 0;
+        for (byte[] value : dictionaries[d]) {
+          buffer.putInt(valueOffset);
+          valueOffset += value.length;
+        }
+        buffer.putInt(valueOffset);
+        for (byte[] value : dictionaries[d]) {
+          buffer.put(value);
+        }
+        position = align(buffer.position(), 4);
+      }
+      int sections = (HEADER_INTS + dimensions.length) * 4;
+      buffer.putInt(sections, keysOffset).putInt(sections + 4, indexOffset);
+      buffer.putInt(sections + 8, countsOffset);
+
+      for (int r = 0; r < size; r++) {
+        for (int d = 0; d < dimensions.length; d++) {
+          int code = columns[d][order[r]];
+          buffer.putInt(keysOffset + (r * dimensions.length + d) * 4, code);
+          if (r % BLOCK_SIZE == 0) {
+            buffer.putInt(indexOffset + (r / BLOCK_SIZE * dimensions.length + d) * 4, code);
+          }
+        }
+        buffer.putLong(countsOffset + r * 8, sums[r]);
+      }
+      return new RollupTable(buffer.position(0));
+    }
+
+    private static int align(int offset, int alignment) {
+      return (offset + alignment - 1) / alignment * alignment;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+/**
+ * A query that the service cannot answer, e.g. one filtering by a checklist that the bitmap index
+ * does not cover, as opposed to a failure of the service.
+ */
+public class UnsupportedQueryException extends RuntimeException {
+
+  public UnsupportedQueryException(String message) {
+    super(message);
+  }
+}
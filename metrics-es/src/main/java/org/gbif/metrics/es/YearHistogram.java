@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Number of occurrences per year of a filter context, as an array indexed by year. Counts of any
+ * year range are computed from its prefix sums and year aggregations of any range are slices of it,
+ * so a single histogram answers all the year queries of a filter context.
+ */
+final class YearHistogram {
+
+  static final String YEAR = "year";
+
+  private final int minYear;
+  private final long[] counts;
+  // prefixSums[i] is the sum of the counts of the years before minYear + i
+  private final long[] prefixSums;
+
+  private YearHistogram(int minYear, long[] counts) {
+    this.minYear = minYear;
+    this.counts = counts;
+    prefixSums = new long[counts.length + 1];
+    for (int i = 0; i < counts.length; i++) {
+      prefixSums[i + 1] = prefixSums[i] + counts[i];
+    }
+  }
+
+  /** Creates a histogram from the counts of the years that have any occurrence. */
+  static YearHistogram of(Map<Integer, Long> yearCounts) {
+    if (yearCounts.isEmpty()) {
+      return new YearHistogram(0, new long[0]);
+    }
+    int min = yearCounts.keySet().stream().mapToInt(Integer::intValue).min().getAsInt();
+    int max = yearCounts.keySet().stream().mapToInt(Integer::intValue).max().getAsInt();
+    long[] counts = new long[max - min + 1];
+    yearCounts.forEach((year, count) -> counts[year - min] = count);
+    return new YearHistogram(min, counts);
+  }
+
+  /** @return true if the parameter is a year or year range the histogram can answer */
+  static boolean isYear(Parameter parameter) {
+    return YEAR.equals(parameter.getName())
+        && (parameter.getValue() instanceof Integer || parameter.getValue() instanceof YearRange);
+  }
+
+  /** @return the number of years spanned by the histogram */
+  int span() {
+    return counts.length;
+  }
+
+  /** @return the count of the given year or year range parameter, or of all years if null */
+  long count(Parameter year) {
+    return year == null ? prefixSums[counts.length] : count(startYear(year), endYear(year));
+  }
+
+  /** @return the count of the years between both bounds, inclusive */
+  long count(int fromYear, int toYear) {
+    int from = index(fromYear);
+    int to = index(toYear + 1);
+    return from < to ? prefixSums[to] - prefixSums[from] : 0;
+  }
+
+  /**
+   * @return the year aggregation of the given year or year range parameter, or of all years if null
+   */
+  AggregationResult slice(Parameter year) {
+    return year == null
+        ? slice(minYear, minYear + counts.length - 1)
+        : slice(startYear(year), endYear(year));
+  }
+
+  /**
+   * @return the counts of the years between both bounds, inclusive, that have any occurrence,
+   *     ordered by count and then by year descending, like the terms aggregations
+   */
+  AggregationResult slice(int fromYear, int toYear) {
+    int[] indexes =
+        IntStream.range(index(fromYear), index(toYear + 1))
+            .filter(i -> counts[i] > 0)
+            .boxed()
+            .sorted(
+                Comparator.<Integer>comparingLong(i -> counts[i])
+                    .thenComparingInt(i -> i)
+                    .reversed())
+            .mapToInt(Integer::intValue)
+            .toArray();
+    AggregationResult.Builder result = AggregationResult.builder(YEAR, indexes.length);
+    for (int i : indexes) {
+      result.add(Integer.toString(minYear + i), counts[i]);
+    }
+    return result.build();
+  }
+
+  // Index of a year, clamped to the bounds of the arrays
+  private int index(int year) {
+    return (int) Math.max(0, Math.min((long) year - minYear, counts.length));
+  }
+
+  private static int startYear(Parameter year) {
+    return year.getValue() instanceof YearRange
+        ? ((YearRange) year.getValue()).getStartYear()
+        : (Integer) year.getValue();
+  }
+
+  private static int endYear(Parameter year) {
+    return year.getValue() instanceof YearRange
+        ? ((YearRange) year.getValue()).getEndYear()
+        : (Integer) year.getValue();
+  }
+}
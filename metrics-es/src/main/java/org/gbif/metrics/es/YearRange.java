@@ -13,6 +13,8 @@
  */
 package org.gbif.metrics.es;
 
+import java.util.Objects;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
@@ -39,4 +41,27 @@ public class YearRange {
       throw new IllegalArgumentException("Invalid year range: " + start + "," + end);
     }
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    YearRange yearRange = (YearRange) o;
+    return startYear == yearRange.startYear && endYear == yearRange.endYear;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(startYear, endYear);
+  }
+
+  /** @return the range in the same "start,end" format accepted by the constructor */
+  @Override
+  public String toString() {
+    return startYear + "," + endYear;
+  }
 }
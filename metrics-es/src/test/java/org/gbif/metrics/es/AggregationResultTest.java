@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AggregationResultTest {
+
+  @Test
+  public void testMapView() {
+    AggregationResult result =
+        AggregationResult.builder("basisOfRecord", 1)
+            .add("OBSERVATION", 30)
+            .add("PRESERVED_SPECIMEN", 20)
+            .add("FOSSIL_SPECIMEN", 10)
+            .build();
+
+    Map<String, Long> expected = new LinkedHashMap<>();
+    expected.put("OBSERVATION", 30L);
+    expected.put("PRESERVED_SPECIMEN", 20L);
+    expected.put("FOSSIL_SPECIMEN", 10L);
+
+    assertEquals(expected, result);
+    assertEquals(
+        Arrays.asList("OBSERVATION", "PRESERVED_SPECIMEN", "FOSSIL_SPECIMEN"),
+        new ArrayList<>(result.keySet()));
+    assertEquals(20L, result.get("PRESERVED_SPECIMEN"));
+    assertNull(result.get("MACHINE_OBSERVATION"));
+    assertFalse(result.containsKey(20L));
+  }
+
+  @Test
+  public void testReadOnly() {
+    AggregationResult result = AggregationResult.builder("country", 0).add("DENMARK", 1).build();
+    assertThrows(UnsupportedOperationException.class, () -> result.put("SPAIN", 2L));
+    assertThrows(UnsupportedOperationException.class, result::clear);
+  }
+
+  @Test
+  public void testSharedDictionary() {
+    AggregationResult countries = AggregationResult.builder("country", 1).add("SPAIN", 1).build();
+    AggregationResult publishingCountries =
+        AggregationResult.builder("publishingCountry", 1).add("SPAIN", 2).build();
+    assertEquals(
+        LabelDictionary.forDimension("country").find("SPAIN"),
+        LabelDictionary.forDimension("publishingCountry").find("SPAIN"));
+    assertEquals(1L, countries.get("SPAIN"));
+    assertEquals(2L, publishingCountries.get("SPAIN"));
+  }
+
+  @Test
+  public void testLookup() {
+    AggregationResult.Builder builder = AggregationResult.builder("lookup", 1);
+    // Bucket positions in the opposite order of the label ids
+    for (int i = 0; i < 1_000; i++) {
+      LabelDictionary.forDimension("lookup").idOf("label" + i);
+    }
+    for (int i = 999; i >= 0; i--) {
+      builder.add("label" + i, i);
+    }
+    AggregationResult result = builder.build();
+
+    for (int i = 0; i < 1_000; i++) {
+      assertEquals(i, result.get("label" + i));
+      assertEquals("label" + i, result.label(999 - i));
+    }
+    assertNull(result.get("label1000"));
+    LabelDictionary.forDimension("lookup").idOf("unused");
+    assertNull(result.get("unused"));
+  }
+
+  @Test
+  public void testDictionaryRollover() {
+    LabelDictionary full = LabelDictionary.forDimension("rollover");
+    AggregationResult.Builder started = AggregationResult.builder("rollover", 1);
+    for (int i = 0; i < LabelDictionary.MAX_LABELS; i++) {
+      full.idOf(Integer.toString(i));
+    }
+    AggregationResult before = started.add("0", 1).add("new", 3).build();
+    AggregationResult after = AggregationResult.builder("rollover", 1).add("0", 2).build();
+
+    assertNotSame(full, LabelDictionary.forDimension("rollover"));
+    assertEquals(LabelDictionary.MAX_LABELS + 1, full.size());
+    assertEquals(1, LabelDictionary.forDimension("rollover").size());
+    // Results built with the full dictionary still resolve their labels with it
+    assertEquals(1L, before.get("0"));
+    assertEquals(3L, before.get("new"));
+    assertEquals(2L, after.get("0"));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CacheSnapshotTest {
+
+  private static final long EXPIRE_AFTER_WRITE = TimeUnit.HOURS.toMillis(1);
+
+  @TempDir Path dir;
+
+  private EsMetricsService.CacheConfig cacheConfig() {
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(EXPIRE_AFTER_WRITE);
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.getSnapshot().setPath(dir.resolve("caches.snapshot").toString());
+    return cacheConfig;
+  }
+
+  /** A service that is never asked to load anything, so Elasticsearch is not needed. */
+  private static EsMetricsService metricsService(EsMetricsService.CacheConfig cacheConfig) {
+    return EsMetricsServiceFixtures.metricsService(cacheConfig, new SimpleMeterRegistry());
+  }
+
+  @Test
+  public void testRoundtrip() throws IOException {
+    long now = System.currentTimeMillis();
+    String longValue = String.join("", Collections.nCopies(70_000, "x"));
+    CountQuery fresh = new CountQuery().withParameter("country", "DK");
+    CountQuery expired = new CountQuery().withParameter("country", "ES");
+    CountQuery longKey = new CountQuery().withParameter("taxonKey", longValue);
+    AggregationQuery basisOfRecord = AggregationQuery.ofBasisOfRecord();
+    AggregationQuery datasets = AggregationQuery.of("datasetKey", Collections.emptySet());
+
+    EsMetricsService.CacheConfig cacheConfig = cacheConfig();
+    EsMetricsService written = metricsService(cacheConfig);
+    written.getCountCache().put(fresh, new CachedValue<>(10L, now - 1_000));
+    written.getCountCache().put(expired, new CachedValue<>(20L, now - EXPIRE_AFTER_WRITE - 1_000));
+    written.getCountCache().put(longKey, new CachedValue<>(30L, now));
+    written
+        .getAggregationsCache()
+        .put(
+            basisOfRecord,
+            new CachedValue<>(
+                AggregationResult.builder("basisOfRecord", 2)
+                    .add("OBSERVATION", 5)
+                    .add("FOSSIL_SPECIMEN", 2)
+                    .build(),
+                now));
+    written
+        .getAggregationsCache()
+        .put(
+            datasets,
+            new CachedValue<>(
+                AggregationResult.builder("datasetKey", 1).add(longValue, 7).build(), now));
+    new CacheSnapshot(written, cacheConfig.getSnapshot(), cacheConfig).write();
+    written.close();
+
+    EsMetricsService restored = metricsService(cacheConfig);
+    new CacheSnapshot(restored, cacheConfig.getSnapshot(), cacheConfig).restore();
+
+    assertEquals(10L, restored.getCountCache().peek(fresh).getValue());
+    assertEquals(now - 1_000, restored.getCountCache().peek(fresh).getLoadedAt());
+    assertNull(restored.getCountCache().peek(expired));
+    assertEquals(30L, restored.getCountCache().peek(longKey).getValue());
+
+    AggregationResult restoredBasisOfRecord =
+        restored.getAggregationsCache().peek(basisOfRecord).getValue();
+    assertEquals(2, restoredBasisOfRecord.size());
+    assertEquals("OBSERVATION", restoredBasisOfRecord.label(0));
+    assertEquals(2L, restoredBasisOfRecord.get("FOSSIL_SPECIMEN"));
+    assertEquals(7L, restored.getAggregationsCache().peek(datasets).getValue().get(longValue));
+    restored.close();
+  }
+
+  @Test
+  public void testYearHistogramRoundtrip() throws IOException {
+    long now = System.currentTimeMillis();
+    CountQuery denmark = new CountQuery().withParameter("country", "DK");
+    CountQuery expired = new CountQuery().withParameter("country", "ES");
+    Map<Integer, Long> yearCounts = new HashMap<>();
+    yearCounts.put(1900, 3L);
+    yearCounts.put(1950, 8L);
+    yearCounts.put(2000, 5L);
+
+    EsMetricsService.CacheConfig cacheConfig = cacheConfig();
+    EsMetricsService written = metricsService(cacheConfig);
+    written
+        .getYearHistogramCache()
+        .put(denmark, new CachedValue<>(YearHistogram.of(yearCounts), now - 1_000));
+    written
+        .getYearHistogramCache()
+        .put(
+            expired,
+            new CachedValue<>(YearHistogram.of(yearCounts), now - EXPIRE_AFTER_WRITE - 1_000));
+    new CacheSnapshot(written, cacheConfig.getSnapshot(), cacheConfig).write();
+    written.close();
+
+    EsMetricsService restored = metricsService(cacheConfig);
+    new CacheSnapshot(restored, cacheConfig.getSnapshot(), cacheConfig).restore();
+
+    CachedValue<YearHistogram> histogram = restored.getYearHistogramCache().peek(denmark);
+    assertEquals(now - 1_000, histogram.getLoadedAt());
+    assertEquals(101, histogram.getValue().span());
+    assertEquals(16L, histogram.getValue().count(null));
+    assertEquals(11L, histogram.getValue().count(1900, 1999));
+    assertEquals("1950", histogram.getValue().slice(null).label(0));
+    assertNull(restored.getYearHistogramCache().peek(expired));
+
+    // Year aggregations of the filter context are answered by the restored histogram
+    assertEquals(
+        8L,
+        restored
+            .countAggregation(
+                AggregationQuery.of(
+                    "year",
+                    Arrays.asList(
+                        new Parameter("country", "DK"), new Parameter("year", "1940,1960"))))
+            .get("1950"));
+    restored.close();
+  }
+
+  @Test
+  public void testMissingSnapshot() {
+    EsMetricsService.CacheConfig cacheConfig = cacheConfig();
+    EsMetricsService metricsService = metricsService(cacheConfig);
+    new CacheSnapshot(metricsService, cacheConfig.getSnapshot(), cacheConfig).restore();
+    assertEquals(0, metricsService.getCountCache().asMap().size());
+    metricsService.close();
+  }
+}
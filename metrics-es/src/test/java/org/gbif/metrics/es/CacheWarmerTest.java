@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CacheWarmerTest {
+
+  @TempDir Path dir;
+
+  // Kept reachable, its gauges only hold weak references
+  private CacheWarmer cacheWarmer;
+
+  @Test
+  public void testWarmUp() {
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(TimeUnit.HOURS.toMillis(1));
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.getBatch().setWindow(0);
+    cacheConfig.getWarmup().setPath(dir.resolve("hot-keys.log").toString());
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // Without a client every load from Elasticsearch fails
+    EsMetricsService metricsService =
+        EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+
+    CountQuery cached = new CountQuery().withParameter("country", "DK");
+    CountQuery notCached = new CountQuery().withParameter("country", "ES");
+    AggregationQuery cachedAggregation = AggregationQuery.ofBasisOfRecord();
+    metricsService.getCountCache().put(cached, CachedValue.loadedNow(1L));
+    metricsService
+        .getAggregationsCache()
+        .put(
+            cachedAggregation,
+            CachedValue.loadedNow(
+                AggregationResult.builder("basisOfRecord", 1).add("OBSERVATION", 1).build()));
+    metricsService.getHotKeyLog().record(cached);
+    metricsService.getHotKeyLog().record(notCached);
+    metricsService.getHotKeyLog().record(cachedAggregation);
+
+    cacheWarmer = new CacheWarmer(metricsService, cacheConfig.getWarmup(), meterRegistry);
+    cacheWarmer.warmUp();
+
+    assertEquals(3, meterRegistry.get("metrics.cache.warmup.keys").gauge().value());
+    assertEquals(2, meterRegistry.get("metrics.cache.warmup.loaded").gauge().value());
+    assertEquals(1, meterRegistry.get("metrics.cache.warmup.failed").gauge().value());
+    metricsService.close();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheWeightsTest {
+
+  private static AggregationResult aggregation(int buckets) {
+    AggregationResult.Builder aggregation = AggregationResult.builder("country", buckets);
+    for (int i = 0; i < buckets; i++) {
+      aggregation.add("C" + i, buckets - i);
+    }
+    return aggregation.build();
+  }
+
+  @Test
+  public void testWeights() {
+    CountQuery denmark = new CountQuery().withParameter("country", "DK");
+    CountQuery observationsOfDenmark = denmark.withParameter("basisOfRecord", "OBSERVATION");
+    CachedValue<Long> count = CachedValue.loadedNow(1L);
+    assertTrue(
+        CacheWeights.weigh(observationsOfDenmark, count) > CacheWeights.weigh(denmark, count));
+
+    // Aggregations grow with their buckets
+    AggregationQuery byCountry = AggregationQuery.of("country", Collections.emptySet());
+    int empty = CacheWeights.weigh(byCountry, CachedValue.loadedNow(aggregation(0)));
+    int ten = CacheWeights.weigh(byCountry, CachedValue.loadedNow(aggregation(10)));
+    int twenty = CacheWeights.weigh(byCountry, CachedValue.loadedNow(aggregation(20)));
+    assertTrue(ten > empty);
+    assertEquals(ten - empty, twenty - ten);
+
+    // Year histograms grow with the years they span, not with the years of any occurrence
+    Map<Integer, Long> yearCounts = new HashMap<>();
+    yearCounts.put(1900, 1L);
+    yearCounts.put(1901, 1L);
+    int twoYears =
+        CacheWeights.weighHistogram(denmark, CachedValue.loadedNow(YearHistogram.of(yearCounts)));
+    yearCounts.put(2000, 1L);
+    int century =
+        CacheWeights.weighHistogram(denmark, CachedValue.loadedNow(YearHistogram.of(yearCounts)));
+    assertEquals(99 * 2 * Long.BYTES, century - twoYears);
+  }
+
+  @Test
+  public void testMaximumBytes() {
+    CountQuery first = new CountQuery().withParameter("datasetKey", "0");
+    long maximumBytes = 10L * CacheWeights.weigh(first, CachedValue.loadedNow(1L));
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(TimeUnit.HOURS.toMillis(1));
+    cacheConfig.setMaximumBytes(maximumBytes);
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    EsMetricsService metricsService =
+        EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+
+    // The cache is bounded by the weight of its entries, not by their number
+    for (int i = 0; i < 100; i++) {
+      metricsService
+          .getCountCache()
+          .put(
+              new CountQuery().withParameter("datasetKey", String.valueOf(i)),
+              CachedValue.loadedNow(1L));
+    }
+    double bytes =
+        meterRegistry.get("metrics.cache.estimated.bytes").tag("cache", "count").gauge().value();
+    double size = meterRegistry.get("metrics.cache.size").tag("cache", "count").gauge().value();
+    assertTrue(bytes > 0 && bytes <= maximumBytes);
+    assertTrue(size < 100);
+    assertEquals(
+        100 - size,
+        meterRegistry
+            .get("metrics.cache.evictions")
+            .tag("cache", "count")
+            .functionCounter()
+            .count());
+    metricsService.close();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircuitBreakerTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+
+  private CircuitBreaker circuitBreaker() {
+    CircuitBreaker.BreakerConfig config = new CircuitBreaker.BreakerConfig();
+    config.setFailureThreshold(2);
+    config.setSlowCallThreshold(1_000);
+    config.setOpenDuration(30_000);
+    return new CircuitBreaker(config, clock::get, meterRegistry);
+  }
+
+  private static void fail(CircuitBreaker circuitBreaker) {
+    circuitBreaker.call(() -> CompletableFuture.failedFuture(new IOException("Unavailable")));
+  }
+
+  private static void succeed(CircuitBreaker circuitBreaker) {
+    circuitBreaker.call(() -> CompletableFuture.completedFuture(1L));
+  }
+
+  @Test
+  public void testOpenAndClose() {
+    CircuitBreaker circuitBreaker = circuitBreaker();
+    fail(circuitBreaker);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    fail(circuitBreaker);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertEquals(1, meterRegistry.get("metrics.es.breaker.state").gauge().value());
+
+    // Rejected without calling Elasticsearch until the open duration has passed
+    CompletableFuture<Long> rejected =
+        circuitBreaker.call(
+            () -> {
+              throw new AssertionError("Called while the breaker is open");
+            });
+    ExecutionException ex = assertThrows(ExecutionException.class, rejected::get);
+    assertInstanceOf(CircuitBreaker.OpenException.class, ex.getCause());
+    assertEquals(1, meterRegistry.get("metrics.es.breaker.rejected").counter().count());
+
+    clock.addAndGet(30_000);
+    CompletableFuture<Long> trial = new CompletableFuture<>();
+    circuitBreaker.call(() -> trial);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    // A single trial call
+    assertTrue(circuitBreaker.call(() -> trial).isCompletedExceptionally());
+    trial.complete(1L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testFailedTrialReopens() {
+    CircuitBreaker circuitBreaker = circuitBreaker();
+    fail(circuitBreaker);
+    fail(circuitBreaker);
+    clock.addAndGet(30_000);
+    fail(circuitBreaker);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+    // The open duration starts again from the failed trial
+    clock.addAndGet(29_999);
+    CompletableFuture<Long> rejected =
+        circuitBreaker.call(() -> CompletableFuture.completedFuture(1L));
+    assertTrue(rejected.isCompletedExceptionally());
+    clock.addAndGet(1);
+    succeed(circuitBreaker);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testSlowCallCountsAsFailure() {
+    CircuitBreaker circuitBreaker = circuitBreaker();
+    for (int i = 0; i < 2; i++) {
+      CompletableFuture<Long> slow = new CompletableFuture<>();
+      circuitBreaker.call(() -> slow);
+      clock.addAndGet(1_001);
+      slow.complete(1L);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testLateSuccessIgnored() {
+    CircuitBreaker circuitBreaker = circuitBreaker();
+    CompletableFuture<Long> late = new CompletableFuture<>();
+    CompletableFuture<Long> later = new CompletableFuture<>();
+    circuitBreaker.call(() -> late);
+    circuitBreaker.call(() -> later);
+    fail(circuitBreaker);
+    fail(circuitBreaker);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+    // Started before the breaker opened, so they neither close it nor decide the trial call
+    late.complete(1L);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    clock.addAndGet(30_000);
+    CompletableFuture<Long> trial = new CompletableFuture<>();
+    circuitBreaker.call(() -> trial);
+    later.complete(1L);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    trial.completeExceptionally(new IOException("Unavailable"));
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+}
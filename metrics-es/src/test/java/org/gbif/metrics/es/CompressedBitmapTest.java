@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CompressedBitmapTest {
+
+  private static final int ROWS = 300_000;
+
+  /** Rows with the given density, so that both arrays and bitsets are used. */
+  private static BitSet rows(Random random, double density) {
+    BitSet rows = new BitSet(ROWS);
+    for (int row = 0; row < ROWS; row++) {
+      if (random.nextDouble() < density) {
+        rows.set(row);
+      }
+    }
+    return rows;
+  }
+
+  private static CompressedBitmap bitmap(BitSet rows) {
+    CompressedBitmap.Builder builder = CompressedBitmap.builder();
+    rows.stream().forEach(builder::add);
+    return builder.build();
+  }
+
+  @Test
+  public void testOperations() {
+    Random random = new Random(42);
+    double[] densities = {0.001, 0.05, 0.5};
+    for (double densityA : densities) {
+      for (double densityB : densities) {
+        BitSet rowsA = rows(random, densityA);
+        BitSet rowsB = rows(random, densityB);
+        CompressedBitmap a = bitmap(rowsA);
+        CompressedBitmap b = bitmap(rowsB);
+
+        BitSet and = (BitSet) rowsA.clone();
+        and.and(rowsB);
+        BitSet or = (BitSet) rowsA.clone();
+        or.or(rowsB);
+
+        assertEquals(rowsA.cardinality(), a.cardinality());
+        assertEquals(and.cardinality(), a.andCardinality(b));
+        assertEquals(and.cardinality(), a.and(b).cardinality());
+        assertEquals(or.cardinality(), a.or(b).cardinality());
+        // Operations on the results of operations
+        assertEquals(and.cardinality(), a.or(b).andCardinality(a.and(b)));
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    CompressedBitmap a = CompressedBitmap.builder().add(1).add(70_000).build();
+    assertEquals(0, a.andCardinality(CompressedBitmap.EMPTY));
+    assertEquals(0, a.and(CompressedBitmap.EMPTY).cardinality());
+    assertEquals(2, a.or(CompressedBitmap.EMPTY).cardinality());
+  }
+
+  @Test
+  public void testUnorderedRows() {
+    assertThrows(IllegalArgumentException.class, () -> CompressedBitmap.builder().add(5).add(5));
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CountBatcherTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final CircuitBreaker.BreakerConfig breakerConfig = new CircuitBreaker.BreakerConfig();
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(breakerConfig, meterRegistry);
+  // Queries of each multi search, answered by the test
+  private final List<Collection<CountQuery>> batches = new ArrayList<>();
+  private final List<CompletableFuture<MultiCountLoader.Counts>> answers = new ArrayList<>();
+  private final CompletableFuture<Void> sent = new CompletableFuture<>();
+  private CountBatcher countBatcher;
+
+  private CountBatcher countBatcher(long window, int maxBatchSize) {
+    CountBatcher.BatchConfig config = new CountBatcher.BatchConfig();
+    config.setWindow(window);
+    config.setMaxBatchSize(maxBatchSize);
+    countBatcher =
+        new CountBatcher(
+            queries -> {
+              CompletableFuture<MultiCountLoader.Counts> answer = new CompletableFuture<>();
+              synchronized (batches) {
+                batches.add(new ArrayList<>(queries));
+                answers.add(answer);
+              }
+              sent.complete(null);
+              return answer;
+            },
+            circuitBreaker,
+            config,
+            meterRegistry);
+    return countBatcher;
+  }
+
+  @AfterEach
+  public void tearDown() {
+    countBatcher.close();
+  }
+
+  private static CountQuery country(String country) {
+    return new CountQuery().withParameter("country", country);
+  }
+
+  @Test
+  public void testWindowFlush() throws Exception {
+    CountBatcher batcher = countBatcher(50, 10);
+    CompletableFuture<Long> dk = batcher.submit(country("DK"));
+    CompletableFuture<Long> es = batcher.submit(country("ES"));
+
+    // Sent by the scheduler at the end of the window
+    sent.get(10, TimeUnit.SECONDS);
+    synchronized (batches) {
+      assertEquals(1, batches.size());
+      assertEquals(2, batches.get(0).size());
+    }
+    MultiCountLoader.Counts counts = new MultiCountLoader.Counts();
+    counts.put(country("DK"), 5L);
+    counts.put(country("ES"), 7L);
+    answers.get(0).complete(counts);
+    assertEquals(5L, dk.get());
+    assertEquals(7L, es.get());
+  }
+
+  @Test
+  public void testSizeFlush() throws Exception {
+    CountBatcher batcher = countBatcher(TimeUnit.HOURS.toMillis(1), 2);
+    CompletableFuture<Long> dk = batcher.submit(country("DK"));
+    assertTrue(batches.isEmpty());
+    CompletableFuture<Long> es = batcher.submit(country("ES"));
+    CompletableFuture<Long> ar = batcher.submit(country("AR"));
+
+    // The first two are sent at once, the third waits for the window
+    assertEquals(1, batches.size());
+    assertEquals(List.of(country("DK"), country("ES")), batches.get(0));
+    MultiCountLoader.Counts counts = new MultiCountLoader.Counts();
+    counts.put(country("DK"), 5L);
+    counts.put(country("ES"), 7L);
+    answers.get(0).complete(counts);
+    assertEquals(5L, dk.get());
+    assertEquals(7L, es.get());
+    assertFalse(ar.isDone());
+  }
+
+  @Test
+  public void testResultsSplit() throws Exception {
+    CountBatcher batcher = countBatcher(TimeUnit.HOURS.toMillis(1), 4);
+    CompletableFuture<Long> dk = batcher.submit(country("DK"));
+    CompletableFuture<Long> duplicate = batcher.submit(country("DK"));
+    CompletableFuture<Long> es = batcher.submit(country("ES"));
+    CompletableFuture<Long> ar = batcher.submit(country("AR"));
+
+    // Duplicated queries are searched once
+    assertEquals(3, batches.get(0).size());
+    MultiCountLoader.Counts counts = new MultiCountLoader.Counts();
+    counts.put(country("DK"), 5L);
+    counts.putPartial(country("ES"), 3L);
+    answers.get(0).complete(counts);
+
+    assertEquals(5L, dk.get());
+    assertEquals(5L, duplicate.get());
+    ExecutionException partial = assertThrows(ExecutionException.class, es::get);
+    assertInstanceOf(PartialResultException.class, partial.getCause());
+    // Its search failed alone
+    ExecutionException failed = assertThrows(ExecutionException.class, ar::get);
+    assertInstanceOf(IOException.class, failed.getCause());
+  }
+
+  @Test
+  public void testFailureSpread() {
+    breakerConfig.setFailureThreshold(2);
+    CountBatcher batcher = countBatcher(TimeUnit.HOURS.toMillis(1), 3);
+    List<CompletableFuture<Long>> results = new ArrayList<>();
+    for (String country : List.of("DK", "ES", "AR")) {
+      results.add(batcher.submit(country(country)));
+    }
+    answers.get(0).completeExceptionally(new IOException("Unavailable"));
+
+    for (CompletableFuture<Long> result : results) {
+      ExecutionException ex = assertThrows(ExecutionException.class, result::get);
+      assertInstanceOf(IOException.class, ex.getCause());
+    }
+    // A failed batch is a single failure of the breaker
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testSynchronousFailure() {
+    breakerConfig.setFailureThreshold(0);
+    CountBatcher.BatchConfig config = new CountBatcher.BatchConfig();
+    config.setWindow(TimeUnit.HOURS.toMillis(1));
+    config.setMaxBatchSize(2);
+    countBatcher =
+        new CountBatcher(
+            queries -> {
+              throw new IllegalStateException("Client closed");
+            },
+            circuitBreaker,
+            config,
+            meterRegistry);
+    CompletableFuture<Long> dk = countBatcher.submit(country("DK"));
+    CompletableFuture<Long> es = countBatcher.submit(country("ES"));
+
+    for (CompletableFuture<Long> result : List.of(dk, es)) {
+      ExecutionException ex = assertThrows(ExecutionException.class, result::get);
+      assertInstanceOf(IllegalStateException.class, ex.getCause());
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CountDeriverTest {
+
+  private final Cache<AggregationQuery, CachedValue<AggregationResult>> cache =
+      new Cache2kBuilder<AggregationQuery, CachedValue<AggregationResult>>() {}.build();
+  private final Cache<CountQuery, CachedValue<YearHistogram>> yearCache =
+      new Cache2kBuilder<CountQuery, CachedValue<YearHistogram>>() {}.build();
+
+  @AfterEach
+  public void close() {
+    cache.close();
+    yearCache.close();
+  }
+
+  @Test
+  public void testDeriveFromAggregation() {
+    cache.put(
+        AggregationQuery.of(
+            "country", Collections.singleton(new Parameter("publishingCountry", "DK"))),
+        CachedValue.loadedNow(
+            AggregationResult.builder("country", 2).add("DENMARK", 10).add("SWEDEN", 5).build()));
+    CountDeriver deriver = new CountDeriver(cache, yearCache, 10, Collections.emptySet());
+
+    CountQuery base = new CountQuery().withParameter("publishingCountry", "DK");
+    assertEquals(10L, deriver.derive(base.withParameter("country", "Denmark")));
+    assertEquals(5L, deriver.derive(base.withParameter("country", "SE")));
+    // Absent buckets of complete aggregations are zero counts
+    assertEquals(0L, deriver.derive(base.withParameter("country", "NO")));
+    // Other filter contexts are not derivable
+    assertNull(deriver.derive(new CountQuery().withParameter("country", "DK")));
+    assertNull(deriver.derive(base));
+  }
+
+  @Test
+  public void testTruncatedAggregationIsNotUsed() {
+    cache.put(
+        AggregationQuery.of("basisOfRecord", Collections.emptySet()),
+        CachedValue.loadedNow(
+            AggregationResult.builder("basisOfRecord", 1).add("OBSERVATION", 10).build()));
+    CountDeriver deriver = new CountDeriver(cache, yearCache, 1, Collections.emptySet());
+
+    assertNull(deriver.derive(new CountQuery().withParameter("basisOfRecord", "OBSERVATION")));
+  }
+
+  @Test
+  public void testExactDimensionIsUsedWhateverItsSize() {
+    String datasetKey = "4fa7b334-ce0d-4e88-aaae-2e0c138d049e";
+    cache.put(
+        AggregationQuery.ofDatasets(Collections.emptySet()),
+        CachedValue.loadedNow(
+            AggregationResult.builder("datasetKey", 1).add(datasetKey, 10).build()));
+    CountDeriver deriver =
+        new CountDeriver(cache, yearCache, 1, Collections.singleton("datasetKey"));
+
+    assertEquals(10L, deriver.derive(new CountQuery().withParameter("datasetKey", datasetKey)));
+  }
+
+  @Test
+  public void testDeriveFromYearHistogram() {
+    Map<Integer, Long> years = new HashMap<>();
+    years.put(1990, 4L);
+    years.put(2000, 6L);
+    yearCache.put(
+        new CountQuery().withParameter("country", "DK"),
+        CachedValue.loadedNow(YearHistogram.of(years)));
+    CountDeriver deriver = new CountDeriver(cache, yearCache, 10, Collections.emptySet());
+
+    CountQuery base = new CountQuery().withParameter("country", "DK");
+    assertEquals(6L, deriver.derive(base.withParameter("year", "2000")));
+    assertEquals(10L, deriver.derive(base.withParameter("year", "1900,2020")));
+    assertEquals(4L, deriver.derive(base.withParameter("year", "1980,1999")));
+    assertEquals(0L, deriver.derive(base.withParameter("year", "2001,2020")));
+    assertNull(deriver.derive(new CountQuery().withParameter("year", "2000")));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Tests the canonical keys of count and aggregation queries. */
+public class CountQueryTest {
+
+  @Test
+  public void testEquivalentParametersProduceTheSameKey() {
+    CountQuery byName =
+        new CountQuery().withParameter("country", "Denmark").withParameter("year", "2000");
+    CountQuery byCode =
+        new CountQuery().withParameter("year", "2000,2000").withParameter("country", "DK");
+
+    assertEquals(byName, byCode);
+    assertEquals(byName.hashCode(), byCode.hashCode());
+    assertEquals("country=DK&year=2000", byName.getKey());
+  }
+
+  @Test
+  public void testYearRanges() {
+    assertEquals(
+        new CountQuery().withParameter("year", "1900,2000"),
+        new CountQuery().withParameter("year", "1900, 2000"));
+    assertNotEquals(
+        new CountQuery().withParameter("year", "1900,2000"),
+        new CountQuery().withParameter("year", "1900,2001"));
+    assertEquals(
+        AggregationQuery.ofYearRange(1900, 2000), AggregationQuery.ofYearRange(1900, 2000));
+  }
+
+  @Test
+  public void testImmutability() {
+    CountQuery countQuery = new CountQuery().withParameter("country", "DK");
+    CountQuery extended = countQuery.withParameter("basisOfRecord", "OBSERVATION");
+
+    assertEquals(1, countQuery.getParameters().size());
+    assertEquals(2, extended.getParameters().size());
+    assertThrows(
+        UnsupportedOperationException.class,
+        () -> countQuery.getParameters().add(new Parameter("year", "2000")));
+  }
+
+  @Test
+  public void testEncodingRoundTrip() {
+    CountQuery countQuery =
+        new CountQuery()
+            .withParameter("basisOfRecord", "OBSERVATION")
+            .withParameter("isGeoreferenced", "true")
+            .withParameter("year", "1981,1991");
+    assertEquals(countQuery, QueryCodec.decodeCountQuery(QueryCodec.encode(countQuery)));
+
+    AggregationQuery aggregationQuery = AggregationQuery.ofCountriesOfPublishingCountry("DK");
+    AggregationQuery decoded =
+        QueryCodec.decodeAggregationQuery(QueryCodec.encode(aggregationQuery));
+    assertEquals(aggregationQuery, decoded);
+    assertEquals("DENMARK", decoded.getKeyLabelTransform().apply("DK"));
+    assertTrue(QueryCodec.decodeCountQuery("").getParameters().isEmpty());
+    assertEquals(
+        AggregationQuery.ofDatasets(Collections.emptySet()),
+        QueryCodec.decodeAggregationQuery("datasetKey?"));
+  }
+}
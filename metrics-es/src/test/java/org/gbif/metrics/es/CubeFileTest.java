@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CubeFileTest {
+
+  @TempDir Path dir;
+
+  @Test
+  public void testRoundtrip() throws IOException {
+    RollupTable.Builder years = RollupTable.builder(Arrays.asList("year", "country"));
+    // More rows than a block of the sparse index
+    for (int year = 1700; year < 2025; year++) {
+      years.add(new String[] {"DK", Integer.toString(year)}, year);
+      years.add(new String[] {"AR", Integer.toString(year)}, year * 10L);
+    }
+    RollupTable basisOfRecord =
+        RollupTable.builder(Collections.singletonList("basisOfRecord"))
+            .add(new String[] {"PRESERVED_SPECIMEN"}, 7)
+            .add(new String[] {"\u00c6r\u00f8"}, 3)
+            .add(new String[] {"Z"}, 1)
+            .build();
+    Path file = dir.resolve("rollups.cube");
+    CubeFile.write(file, Arrays.asList(years.build(), basisOfRecord));
+
+    List<RollupTable> tables = CubeFile.open(file);
+    assertEquals(2, tables.size());
+    RollupTable mappedYears = tables.get(0);
+    assertArrayEquals(new String[] {"country", "year"}, mappedYears.getDimensions());
+    assertEquals(650, mappedYears.size());
+    assertEquals(1700, mappedYears.count(new String[] {"DK", "1700"}));
+    assertEquals(19_990, mappedYears.count(new String[] {"AR", "1999"}));
+    assertEquals(2024, mappedYears.count(new String[] {"DK", "2024"}));
+    assertEquals(0, mappedYears.count(new String[] {"DK", "2025"}));
+    assertEquals(0, mappedYears.count(new String[] {"ES", "2000"}));
+
+    RollupTable mappedBasisOfRecord = tables.get(1);
+    assertEquals(7, mappedBasisOfRecord.count(new String[] {"PRESERVED_SPECIMEN"}));
+    assertEquals(3, mappedBasisOfRecord.count(new String[] {"\u00c6r\u00f8"}));
+    assertEquals(1, mappedBasisOfRecord.count(new String[] {"Z"}));
+  }
+
+  @Test
+  public void testNotACubeFile() throws IOException {
+    Path file = dir.resolve("other");
+    Files.write(file, new byte[] {1, 2, 3});
+    assertThrows(IOException.class, () -> CubeFile.open(file));
+  }
+}
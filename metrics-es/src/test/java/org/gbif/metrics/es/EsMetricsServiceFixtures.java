@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/** Services of the tests, without Elasticsearch. */
+final class EsMetricsServiceFixtures {
+
+  private EsMetricsServiceFixtures() {}
+
+  /** @return a client without any Elasticsearch client behind, so every call fails */
+  static HedgingClient hedgingClient(MeterRegistry meterRegistry) {
+    return new HedgingClient(null, null, null, new HedgingClient.HedgeConfig(), meterRegistry);
+  }
+
+  /** @return a service of the occurrence index whose loads from Elasticsearch all fail */
+  static EsMetricsService metricsService(
+      EsMetricsService.CacheConfig cacheConfig, MeterRegistry meterRegistry) {
+    return new EsMetricsService(
+        "occurrence", cacheConfig, hedgingClient(meterRegistry), "checklist", meterRegistry);
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EsMetricsServiceTest {
+
+  private static final long EXPIRE_AFTER_WRITE = TimeUnit.HOURS.toMillis(1);
+
+  private static final String COUNT_RESPONSE =
+      "{\"took\":5,\"timed_out\":false,"
+          + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+          + "\"hits\":{\"total\":{\"value\":42,\"relation\":\"eq\"},\"hits\":[]}}";
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+  private final CountDownLatch released = new CountDownLatch(1);
+  private EsMetricsService metricsService;
+  private HttpServer server;
+  private RestHighLevelClient esClient;
+
+  @BeforeEach
+  public void setUp() {
+    cacheConfig.setExpireAfterWrite(EXPIRE_AFTER_WRITE);
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.getBatch().setWindow(0);
+  }
+
+  @AfterEach
+  public void close() throws IOException {
+    released.countDown();
+    if (metricsService != null) {
+      metricsService.close();
+    }
+    if (esClient != null) {
+      esClient.close();
+    }
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Starts a server that stands in for Elasticsearch, answering each search with a count once the
+   * test releases it.
+   *
+   * @return the client of the server
+   */
+  private HedgingClient elasticsearch(AtomicInteger searches) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/occurrence/_search",
+        exchange -> {
+          searches.incrementAndGet();
+          try {
+            released.await(1, TimeUnit.MINUTES);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+          byte[] body = COUNT_RESPONSE.getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().add("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    esClient =
+        new RestHighLevelClient(
+            RestClient.builder(new HttpHost("127.0.0.1", server.getAddress().getPort())));
+    return new HedgingClient(esClient, null, null, new HedgingClient.HedgeConfig(), meterRegistry);
+  }
+
+  private long expiryTime(CountQuery countQuery) {
+    return metricsService.getCountCache().invoke(countQuery, e -> e.getExpiryTime());
+  }
+
+  private long expiryTime(AggregationQuery aggregationQuery) {
+    return metricsService.getAggregationsCache().invoke(aggregationQuery, e -> e.getExpiryTime());
+  }
+
+  @Test
+  public void testCountAsync() throws Exception {
+    AtomicInteger searches = new AtomicInteger();
+    metricsService =
+        new EsMetricsService(
+            "occurrence", cacheConfig, elasticsearch(searches), "checklist", meterRegistry);
+    CountQuery denmark = new CountQuery().withParameter("country", "DK");
+
+    // Returned while Elasticsearch has not answered yet, so no thread waits for the load
+    CompletableFuture<Long> count = metricsService.countAsync(denmark);
+    assertFalse(count.isDone());
+    released.countDown();
+    assertEquals(42L, count.get(1, TimeUnit.MINUTES));
+
+    // Then answered at once from the cache
+    CompletableFuture<Long> cached = metricsService.countAsync(denmark);
+    assertTrue(cached.isDone());
+    assertEquals(42L, cached.join());
+    assertEquals(1, searches.get());
+  }
+
+  @Test
+  public void testFailedLoadAsync() {
+    metricsService = EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+
+    // Failures complete the futures, they are never thrown to the caller
+    CompletableFuture<Long> count =
+        metricsService.countAsync(new CountQuery().withParameter("country", "DK"));
+    CompletableFuture<?> aggregation =
+        metricsService.countAggregationAsync(
+            AggregationQuery.of("country", Collections.emptySet()));
+    assertInstanceOf(
+        IOException.class, assertThrows(CompletionException.class, count::join).getCause());
+    assertInstanceOf(
+        IOException.class, assertThrows(CompletionException.class, aggregation::join).getCause());
+  }
+
+  @Test
+  public void testRefreshDatasets() {
+    metricsService = EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+    long loadedAt = System.currentTimeMillis();
+    CountQuery spain = new CountQuery().withParameter("country", "ES");
+    CountQuery changedDataset = new CountQuery().withParameter("datasetKey", "changed");
+    CountQuery otherDataset =
+        new CountQuery().withParameter("datasetKey", "other").withParameter("country", "ES");
+    CountQuery outsideRollups = new CountQuery().withParameter("taxonKey", "1");
+    AggregationQuery byCountry = AggregationQuery.of("country", Collections.emptySet());
+    AggregationQuery byCountryOfObservations =
+        AggregationQuery.of(
+            "country", Collections.singleton(new Parameter("basisOfRecord", "OBSERVATION")));
+    AggregationQuery byKingdom = AggregationQuery.of("kingdom", Collections.emptySet());
+    for (CountQuery countQuery :
+        Arrays.asList(spain, changedDataset, otherDataset, outsideRollups)) {
+      metricsService.getCountCache().put(countQuery, new CachedValue<>(1L, loadedAt));
+    }
+    for (AggregationQuery aggregationQuery :
+        Arrays.asList(byCountry, byCountryOfObservations, byKingdom)) {
+      metricsService
+          .getAggregationsCache()
+          .put(
+              aggregationQuery,
+              new CachedValue<>(AggregationResult.builder("country", 0).build(), loadedAt));
+    }
+    metricsService
+        .getYearHistogramCache()
+        .put(spain, new CachedValue<>(YearHistogram.of(Collections.emptyMap()), loadedAt));
+
+    Set<String> byCountryAndBasisOfRecord =
+        new TreeSet<>(Arrays.asList("basisOfRecord", "country"));
+    Set<String> byCountryAndYear = new TreeSet<>(Arrays.asList("country", "year"));
+    assertEquals(
+        5,
+        metricsService.refreshDatasets(
+            Collections.singleton("changed"),
+            Arrays.asList(byCountryAndBasisOfRecord, byCountryAndYear)));
+
+    // Refreshed: the queries of the changed dataset and the ones of no dataset within a rollup
+    long expiry = loadedAt + EXPIRE_AFTER_WRITE;
+    assertTrue(expiryTime(spain) < expiry);
+    assertTrue(expiryTime(changedDataset) < expiry);
+    assertTrue(expiryTime(byCountry) < expiry);
+    assertTrue(expiryTime(byCountryOfObservations) < expiry);
+    assertTrue(
+        metricsService.getYearHistogramCache().invoke(spain, e -> e.getExpiryTime()) < expiry);
+    // Unchanged: the queries of other datasets and the ones outside the rollups
+    assertEquals(expiry, expiryTime(otherDataset));
+    assertEquals(expiry, expiryTime(outsideRollups));
+    assertEquals(expiry, expiryTime(byKingdom));
+  }
+}
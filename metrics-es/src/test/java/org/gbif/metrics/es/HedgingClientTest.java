@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class HedgingClientTest {
+
+  private static final long SLOW = 300;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final HedgingClient.HedgeConfig config = new HedgingClient.HedgeConfig();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final AtomicInteger slowRequests = new AtomicInteger();
+  // Call header and host of the slow requests
+  private final Queue<String[]> slowHosts = new ConcurrentLinkedQueue<>();
+  private final HedgeRouter router = new HedgeRouter();
+  private final List<RestHighLevelClient> clients = new ArrayList<>();
+  private HttpServer server;
+  private HedgingClient hedgingClient;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    // Stands in for two Elasticsearch nodes, one per host name
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/fast", exchange -> respond(exchange));
+    server.createContext(
+        "/slow",
+        exchange -> {
+          slowHosts.add(
+              new String[] {
+                exchange.getRequestHeaders().getFirst(HedgeRouter.CALL_HEADER),
+                exchange.getRequestHeaders().getFirst("Host")
+              });
+          slowRequests.incrementAndGet();
+          await(SLOW);
+          respond(exchange);
+        });
+    server.createContext(
+        "/hang",
+        exchange -> {
+          await(TimeUnit.MINUTES.toMillis(1));
+          respond(exchange);
+        });
+    server.start();
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    stopped.countDown();
+    if (hedgingClient != null) {
+      hedgingClient.close();
+    }
+    for (RestHighLevelClient client : clients) {
+      client.close();
+    }
+    server.stop(0);
+  }
+
+  private void await(long millis) {
+    try {
+      stopped.await(millis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void respond(HttpExchange exchange) throws IOException {
+    byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * @param hedge whether the client sends the hedged requests, otherwise it sends the original ones
+   */
+  private RestHighLevelClient client(boolean hedge) {
+    int port = server.getAddress().getPort();
+    NodeSelector nodeSelector =
+        hedge ? router.avoidingOriginal(NodeSelector.ANY) : NodeSelector.ANY;
+    RestHighLevelClient client =
+        new RestHighLevelClient(
+            RestClient.builder(new HttpHost("127.0.0.1", port), new HttpHost("localhost", port))
+                .setNodeSelector(nodeSelector)
+                .setHttpClientConfigCallback(b -> hedge ? b : b.addInterceptorLast(router)));
+    clients.add(client);
+    return client;
+  }
+
+  private static HedgingClient.Call<Response> get(
+      String endpoint, CompletableFuture<Exception> failure) {
+    return (client, options, listener) -> {
+      Request request = new Request("GET", endpoint);
+      request.setOptions(options);
+      return client
+          .getLowLevelClient()
+          .performRequestAsync(
+              request,
+              new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                  listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception ex) {
+                  failure.complete(ex);
+                  listener.onFailure(ex);
+                }
+              });
+    };
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    hedgingClient = new HedgingClient(client(false), null, null, config, meterRegistry);
+    CompletableFuture<Exception> failure = new CompletableFuture<>();
+
+    CompletableFuture<Response> response = hedgingClient.call(get("/hang", failure), 100);
+    ExecutionException ex =
+        assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+    assertInstanceOf(TimeoutException.class, ex.getCause());
+    // The request is cancelled
+    assertInstanceOf(CancellationException.class, failure.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testBudget() throws Exception {
+    config.setEnabled(true);
+    config.setPercentile(0.5);
+    config.setMinDelay(50);
+    config.setBudget(0.05);
+    hedgingClient = new HedgingClient(client(false), client(true), router, config, meterRegistry);
+
+    // Not hedging until the delay is computed from enough latencies, saving up the budget
+    for (int i = 0; i < 128; i++) {
+      hedgingClient.call(get("/fast", new CompletableFuture<>()), 0).get(10, TimeUnit.SECONDS);
+    }
+    assertEquals(0, meterRegistry.get("metrics.es.hedge.sent").counter().count());
+    assertEquals(50, meterRegistry.get("metrics.es.hedge.delay").gauge().value());
+
+    List<CompletableFuture<Response>> responses = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      responses.add(hedgingClient.call(get("/slow", new CompletableFuture<>()), 0));
+    }
+    for (CompletableFuture<Response> response : responses) {
+      assertEquals(200, response.get(10, TimeUnit.SECONDS).getStatusLine().getStatusCode());
+    }
+    // 138 requests of a budget of 0.05 hedge 6 of them
+    assertEquals(6, meterRegistry.get("metrics.es.hedge.sent").counter().count());
+    assertEquals(16, slowRequests.get());
+  }
+
+  @Test
+  public void testOtherHost() throws Exception {
+    config.setEnabled(true);
+    config.setPercentile(0.5);
+    config.setMinDelay(50);
+    hedgingClient = new HedgingClient(client(false), client(true), router, config, meterRegistry);
+    for (int i = 0; i < 128; i++) {
+      hedgingClient.call(get("/fast", new CompletableFuture<>()), 0).get(10, TimeUnit.SECONDS);
+    }
+
+    // Either host could be taken by both requests of a call without the router
+    for (int i = 1; i <= 5; i++) {
+      hedgingClient.call(get("/slow", new CompletableFuture<>()), 0).get(10, TimeUnit.SECONDS);
+      for (int wait = 0; wait < 500 && slowHosts.size() < 2; wait++) {
+        Thread.sleep(10);
+      }
+      String[] first = slowHosts.poll();
+      String[] second = slowHosts.poll();
+      assertNotNull(second);
+      // The original request carries the call header, the hedge does not
+      assertNotNull(first[0] != null ? first[0] : second[0]);
+      assertNull(first[0] != null ? second[0] : first[0]);
+      assertNotEquals(first[1], second[1]);
+      assertEquals(i, meterRegistry.get("metrics.es.hedge.sent").counter().count());
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HotKeyLogTest {
+
+  private static final CountQuery DENMARK = new CountQuery().withParameter("country", "DK");
+  private static final CountQuery SPAIN = new CountQuery().withParameter("country", "ES");
+  private static final AggregationQuery BASIS_OF_RECORD = AggregationQuery.ofBasisOfRecord();
+
+  @TempDir Path dir;
+
+  private HotKeyLog hotKeyLog(int maxKeys) {
+    CacheWarmer.WarmupConfig warmupConfig = new CacheWarmer.WarmupConfig();
+    warmupConfig.setPath(dir.resolve("hot-keys.log").toString());
+    warmupConfig.setMaxKeys(maxKeys);
+    // Only written when closed
+    warmupConfig.setLogInterval(0);
+    return new HotKeyLog(warmupConfig);
+  }
+
+  private static void record(HotKeyLog hotKeyLog, CountQuery countQuery, int hits) {
+    for (int i = 0; i < hits; i++) {
+      hotKeyLog.record(countQuery);
+    }
+  }
+
+  @Test
+  public void testHottest() {
+    HotKeyLog hotKeyLog = hotKeyLog(10);
+    record(hotKeyLog, DENMARK, 3);
+    record(hotKeyLog, SPAIN, 1);
+    hotKeyLog.record(BASIS_OF_RECORD);
+    hotKeyLog.record(BASIS_OF_RECORD);
+
+    List<HotKeyLog.HotKey> hottest = hotKeyLog.hottest(2);
+    assertEquals(2, hottest.size());
+    assertEquals(DENMARK, hottest.get(0).getCountQuery());
+    assertEquals(3, hottest.get(0).getHits());
+    assertNull(hottest.get(1).getCountQuery());
+    assertEquals(BASIS_OF_RECORD, hottest.get(1).getAggregationQuery());
+  }
+
+  @Test
+  public void testDecay() {
+    HotKeyLog hotKeyLog = hotKeyLog(10);
+    record(hotKeyLog, DENMARK, 100);
+    record(hotKeyLog, SPAIN, 1);
+
+    hotKeyLog.decay();
+    // Queries without hits left are dropped
+    assertEquals(1, hotKeyLog.size());
+    assertEquals(50, hotKeyLog.hottest(1).get(0).getHits());
+
+    // A query that became popular later outranks the old traffic once it has faded
+    for (int i = 0; i < 3; i++) {
+      record(hotKeyLog, SPAIN, 30);
+      hotKeyLog.decay();
+    }
+    assertEquals(SPAIN, hotKeyLog.hottest(1).get(0).getCountQuery());
+  }
+
+  @Test
+  public void testPrunedInBackground() throws InterruptedException {
+    HotKeyLog hotKeyLog = hotKeyLog(2);
+    hotKeyLog.start();
+    record(hotKeyLog, DENMARK, 3);
+    record(hotKeyLog, SPAIN, 2);
+    for (int year = 2000; year < 2010; year++) {
+      hotKeyLog.record(new CountQuery().withParameter("year", Integer.toString(year)));
+    }
+
+    // Pruned back to the capacity whenever it holds more than twice as many keys, so keys
+    // recorded after the last pruning may remain
+    for (int i = 0; i < 500 && hotKeyLog.size() > 4; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(hotKeyLog.size() <= 4);
+    List<HotKeyLog.HotKey> hottest = hotKeyLog.hottest(2);
+    assertEquals(DENMARK, hottest.get(0).getCountQuery());
+    assertEquals(SPAIN, hottest.get(1).getCountQuery());
+    hotKeyLog.close();
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    HotKeyLog hotKeyLog = hotKeyLog(10);
+    hotKeyLog.start();
+    record(hotKeyLog, DENMARK, 8);
+    hotKeyLog.record(BASIS_OF_RECORD);
+    hotKeyLog.record(BASIS_OF_RECORD);
+    hotKeyLog.close();
+
+    HotKeyLog reloaded = hotKeyLog(10);
+    reloaded.start();
+    List<HotKeyLog.HotKey> hottest = reloaded.hottest(10);
+    assertEquals(2, hottest.size());
+    // Hits are halved when reloaded
+    assertEquals(DENMARK, hottest.get(0).getCountQuery());
+    assertEquals(4, hottest.get(0).getHits());
+    assertEquals(BASIS_OF_RECORD, hottest.get(1).getAggregationQuery());
+    assertEquals(1, hottest.get(1).getHits());
+    assertTrue(reloaded.isEnabled());
+    reloaded.close();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IndexGenerationWatcherTest {
+
+  private static final long EXPIRE_AFTER_WRITE = TimeUnit.HOURS.toMillis(1);
+  private static final long MAX_EXPIRE_AFTER_WRITE = TimeUnit.DAYS.toMillis(7);
+  private static final long REFRESH_SPREAD = TimeUnit.MINUTES.toMillis(1);
+  private static final String FAILURE = "failure";
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+  private final Deque<String> generations = new ArrayDeque<>();
+  private EsMetricsService metricsService;
+  private IndexGenerationWatcher watcher;
+
+  private void setUp(String... polledGenerations) {
+    cacheConfig.setExpireAfterWrite(EXPIRE_AFTER_WRITE);
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.getGeneration().setPollInterval(60_000);
+    cacheConfig.getGeneration().setMaxExpireAfterWrite(MAX_EXPIRE_AFTER_WRITE);
+    cacheConfig.getGeneration().setRefreshSpread(REFRESH_SPREAD);
+    cacheConfig.getGeneration().setMaxPollFailures(2);
+    metricsService = EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+    generations.addAll(Arrays.asList(polledGenerations));
+    // Polled by the test instead of a scheduler
+    watcher =
+        new IndexGenerationWatcher(
+            () -> {
+              String generation = generations.pop();
+              if (FAILURE.equals(generation)) {
+                throw new IOException("Elasticsearch unavailable");
+              }
+              return generation;
+            },
+            "occurrence",
+            metricsService,
+            cacheConfig.getGeneration(),
+            meterRegistry);
+  }
+
+  private long expiryTime(CountQuery countQuery) {
+    return metricsService.getCountCache().invoke(countQuery, e -> e.getExpiryTime());
+  }
+
+  @Test
+  public void testLifetimeExtendedOnceWatched() {
+    setUp("occurrence-1:a", "occurrence-1:a");
+    assertEquals(EXPIRE_AFTER_WRITE, metricsService.getEntryLifetime());
+    watcher.check();
+    assertEquals("occurrence-1:a", watcher.getGeneration());
+    assertEquals(MAX_EXPIRE_AFTER_WRITE, metricsService.getEntryLifetime());
+
+    CountQuery countQuery = new CountQuery().withParameter("country", "DK");
+    long loadedAt = System.currentTimeMillis();
+    metricsService.getCountCache().put(countQuery, new CachedValue<>(1L, loadedAt));
+    assertEquals(loadedAt + MAX_EXPIRE_AFTER_WRITE, expiryTime(countQuery));
+
+    watcher.check();
+    assertEquals(0, meterRegistry.get("metrics.cache.generation.changes").counter().count());
+  }
+
+  @Test
+  public void testRefreshedOnChange() {
+    setUp("occurrence-1:a", "occurrence-2:b");
+    watcher.check();
+    CountQuery countQuery = new CountQuery().withParameter("country", "DK");
+    metricsService.getCountCache().put(countQuery, CachedValue.loadedNow(1L));
+
+    watcher.check();
+    assertEquals("occurrence-2:b", watcher.getGeneration());
+    assertEquals(1, meterRegistry.get("metrics.cache.generation.changes").counter().count());
+    assertTrue(expiryTime(countQuery) <= System.currentTimeMillis() + REFRESH_SPREAD);
+  }
+
+  @Test
+  public void testLifetimeShortenedAfterFailures() {
+    setUp("occurrence-1:a", FAILURE, FAILURE, "occurrence-1:a");
+    watcher.check();
+    long now = System.currentTimeMillis();
+    CountQuery recent = new CountQuery().withParameter("country", "DK");
+    CountQuery old = new CountQuery().withParameter("country", "ES");
+    metricsService.getCountCache().put(recent, new CachedValue<>(1L, now - 1_000));
+    metricsService.getCountCache().put(old, new CachedValue<>(2L, now - TimeUnit.DAYS.toMillis(1)));
+
+    // A single failure keeps the long lifetime
+    watcher.check();
+    assertEquals(MAX_EXPIRE_AFTER_WRITE, metricsService.getEntryLifetime());
+
+    watcher.check();
+    assertEquals(EXPIRE_AFTER_WRITE, metricsService.getEntryLifetime());
+    assertEquals(now - 1_000 + EXPIRE_AFTER_WRITE, expiryTime(recent));
+    assertTrue(expiryTime(old) <= System.currentTimeMillis() + REFRESH_SPREAD);
+
+    // Extended again by the next successful poll
+    watcher.check();
+    assertEquals(MAX_EXPIRE_AFTER_WRITE, metricsService.getEntryLifetime());
+  }
+}
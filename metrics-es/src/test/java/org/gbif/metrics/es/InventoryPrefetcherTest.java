@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InventoryPrefetcherTest {
+
+  private static final NamedXContentRegistry AGGREGATIONS =
+      new NamedXContentRegistry(
+          Arrays.asList(
+              new NamedXContentRegistry.Entry(
+                  Aggregation.class,
+                  new ParseField(StringTerms.NAME),
+                  (p, c) -> ParsedStringTerms.fromXContent(p, (String) c)),
+              new NamedXContentRegistry.Entry(
+                  Aggregation.class,
+                  new ParseField(HistogramAggregationBuilder.NAME),
+                  (p, c) -> ParsedHistogram.fromXContent(p, (String) c))));
+
+  private static final String RESPONSE =
+      "{\"took\":5,\"timed_out\":%s,"
+          + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+          + "\"hits\":{\"total\":{\"value\":10,\"relation\":\"eq\"},\"hits\":[]},"
+          + "\"aggregations\":{"
+          + "\"sterms#basisOfRecord\":{\"buckets\":["
+          + "{\"key\":\"OBSERVATION\",\"doc_count\":7},"
+          + "{\"key\":\"PRESERVED_SPECIMEN\",\"doc_count\":3}]},"
+          + "\"sterms#country\":{\"buckets\":[{\"key\":\"DK\",\"doc_count\":10}]},"
+          + "\"sterms#publishingCountry\":{\"buckets\":[{\"key\":\"ES\",\"doc_count\":10}]},"
+          + "\"sterms#kingdom\":{\"buckets\":[]},"
+          + "\"histogram#year\":{\"buckets\":["
+          + "{\"key\":2019.0,\"doc_count\":4},{\"key\":2020.0,\"doc_count\":6}]}}}";
+
+  private final InventoryPrefetcher.PrefetchConfig config =
+      new InventoryPrefetcher.PrefetchConfig();
+  // Searches sent, answered by the test
+  private final List<CompletableFuture<SearchResponse>> searches = new ArrayList<>();
+  private final CompletableFuture<SearchResponse> fetched = new CompletableFuture<>();
+
+  private static SearchResponse response(boolean timedOut) throws IOException {
+    try (XContentParser parser =
+        JsonXContent.jsonXContent.createParser(
+            AGGREGATIONS,
+            DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+            String.format(RESPONSE, timedOut))) {
+      return SearchResponse.fromXContent(parser);
+    }
+  }
+
+  private InventoryPrefetcher inventoryPrefetcher() {
+    config.setEnabled(true);
+    return new InventoryPrefetcher(
+        request -> {
+          CompletableFuture<SearchResponse> search = new CompletableFuture<>();
+          searches.add(search);
+          return search;
+        },
+        "occurrence",
+        config,
+        a -> AggregationBuilders.terms(a.getDimension()),
+        AggregationBuilders.histogram(YearHistogram.YEAR),
+        0,
+        fetched::complete);
+  }
+
+  @Test
+  public void testCovers() {
+    InventoryPrefetcher inventoryPrefetcher = inventoryPrefetcher();
+    assertTrue(inventoryPrefetcher.covers(AggregationQuery.ofBasisOfRecord()));
+    assertTrue(inventoryPrefetcher.covers(new CountQuery()));
+    assertFalse(inventoryPrefetcher.covers(AggregationQuery.ofKingdom("checklist")));
+    config.setEnabled(false);
+    assertFalse(inventoryPrefetcher.covers(AggregationQuery.ofBasisOfRecord()));
+  }
+
+  @Test
+  public void testShared() throws Exception {
+    InventoryPrefetcher inventoryPrefetcher = inventoryPrefetcher();
+    CompletableFuture<SearchResponse> first = inventoryPrefetcher.fetch();
+    CompletableFuture<SearchResponse> second = inventoryPrefetcher.fetch();
+    assertEquals(1, searches.size());
+
+    SearchResponse response = response(false);
+    searches.get(0).complete(response);
+    assertSame(response, first.get());
+    assertSame(response, second.get());
+    assertSame(response, fetched.get(10, TimeUnit.SECONDS));
+
+    // Reused within the window
+    assertSame(response, inventoryPrefetcher.fetch().get());
+    assertEquals(1, searches.size());
+  }
+
+  @Test
+  public void testTimedOutNotShared() throws Exception {
+    InventoryPrefetcher inventoryPrefetcher = inventoryPrefetcher();
+    CompletableFuture<SearchResponse> partial = inventoryPrefetcher.fetch();
+    searches.get(0).complete(response(true));
+    assertTrue(partial.get().isTimedOut());
+
+    inventoryPrefetcher.fetch();
+    assertEquals(2, searches.size());
+    searches.get(1).complete(response(false));
+    // Only the complete response is handed over
+    assertFalse(fetched.get(10, TimeUnit.SECONDS).isTimedOut());
+  }
+
+  @Test
+  public void testFailedRetried() {
+    InventoryPrefetcher inventoryPrefetcher = inventoryPrefetcher();
+    CompletableFuture<SearchResponse> failed = inventoryPrefetcher.fetch();
+    searches.get(0).completeExceptionally(new IOException("Unavailable"));
+    assertTrue(failed.isCompletedExceptionally());
+
+    inventoryPrefetcher.fetch();
+    assertEquals(2, searches.size());
+  }
+
+  @Test
+  public void testPutInventory() throws IOException {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(TimeUnit.HOURS.toMillis(1));
+    cacheConfig.setEntryCapacity(100);
+    EsMetricsService metricsService =
+        EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+
+    metricsService.putInventory(response(false));
+
+    AggregationResult basisOfRecord =
+        metricsService.getAggregationsCache().peek(AggregationQuery.ofBasisOfRecord()).getValue();
+    assertEquals(2, basisOfRecord.size());
+    assertEquals(7L, basisOfRecord.get("OBSERVATION"));
+    assertEquals(
+        10L,
+        metricsService
+            .getAggregationsCache()
+            .peek(AggregationQuery.ofCountriesOfPublishingCountry(null))
+            .getValue()
+            .get("DENMARK"));
+    AggregationResult kingdom =
+        metricsService.getAggregationsCache().peek(AggregationQuery.ofKingdom(null)).getValue();
+    assertEquals(0, kingdom.size());
+    YearHistogram years =
+        metricsService.getYearHistogramCache().peek(InventoryPrefetcher.YEAR_CONTEXT).getValue();
+    assertEquals(6L, years.count(2020, 2020));
+  }
+}
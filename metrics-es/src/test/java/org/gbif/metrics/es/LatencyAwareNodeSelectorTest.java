@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.Node;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LatencyAwareNodeSelectorTest {
+
+  private static final HttpHost FAST = new HttpHost("fast", 9200);
+  private static final HttpHost SLOW = new HttpHost("slow", 9200);
+  private static final HttpHost NEW = new HttpHost("new", 9200);
+
+  private final AtomicLong nanoClock = new AtomicLong();
+
+  private LatencyAwareNodeSelector selector(int probeInterval) {
+    LatencyAwareNodeSelector.SelectorConfig config = new LatencyAwareNodeSelector.SelectorConfig();
+    config.setProbeInterval(probeInterval);
+    return new LatencyAwareNodeSelector(config, 100_000, nanoClock::get, new SimpleMeterRegistry());
+  }
+
+  private static HttpContext start(LatencyAwareNodeSelector selector, HttpHost host) {
+    HttpContext context = new BasicHttpContext();
+    context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, host);
+    selector.process(new BasicHttpRequest("GET", "/"), context);
+    return context;
+  }
+
+  private void request(LatencyAwareNodeSelector selector, HttpHost host, long millis) {
+    HttpContext context = start(selector, host);
+    nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    selector.process(new BasicHttpResponse(null, 200, "OK"), context);
+  }
+
+  private static List<HttpHost> select(LatencyAwareNodeSelector selector, HttpHost... hosts) {
+    List<Node> nodes = new ArrayList<>();
+    Arrays.stream(hosts).forEach(host -> nodes.add(new Node(host)));
+    selector.select(nodes);
+    List<HttpHost> selected = new ArrayList<>();
+    nodes.forEach(node -> selected.add(node.getHost()));
+    return selected;
+  }
+
+  @Test
+  public void testSelectFastest() {
+    LatencyAwareNodeSelector selector = selector(3);
+    request(selector, FAST, 1);
+    request(selector, SLOW, 50);
+
+    assertEquals(Arrays.asList(FAST, NEW), select(selector, FAST, SLOW, NEW));
+    assertEquals(Arrays.asList(FAST), select(selector, SLOW, FAST));
+    // probe
+    assertEquals(Arrays.asList(SLOW, FAST), select(selector, SLOW, FAST));
+  }
+
+  @Test
+  public void testInFlight() {
+    LatencyAwareNodeSelector selector = selector(0);
+    request(selector, FAST, 10);
+    request(selector, SLOW, 12);
+
+    // A request in flight doubles the latency of its node
+    start(selector, FAST);
+    assertEquals(Arrays.asList(SLOW), select(selector, FAST, SLOW));
+
+    // Until it is forgotten without a response
+    nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100_001));
+    assertEquals(Arrays.asList(FAST, SLOW), select(selector, FAST, SLOW));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LeanAggregationLoaderTest {
+
+  private static AggregationResult parse(AggregationQuery query, String json) throws IOException {
+    return LeanAggregationLoader.parse(
+        query, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testParse() throws IOException {
+    // buckets as filtered and ordered by ascending count
+    String json =
+        "{\"aggregations\":{\"country\":{\"buckets\":["
+            + "{\"key\":\"DK\",\"doc_count\":3},"
+            + "{\"key\":\"ES\",\"doc_count\":10}]}}}";
+
+    AggregationResult result = parse(AggregationQuery.ofCountriesOfPublishingCountry(null), json);
+
+    assertEquals(2, result.size());
+    assertEquals("SPAIN", result.label(0));
+    assertEquals(10L, result.count(0));
+    assertEquals("DENMARK", result.label(1));
+    assertEquals(3L, result.get("DENMARK"));
+  }
+
+  @Test
+  public void testParseEmpty() throws IOException {
+    // filter_path removes the whole aggregation when there are no buckets
+    assertEquals(0, parse(AggregationQuery.ofBasisOfRecord(), "{}").size());
+  }
+
+  @Test
+  public void testParseTimedOut() {
+    String json =
+        "{\"timed_out\":true,\"aggregations\":{\"basisOfRecord\":{\"buckets\":["
+            + "{\"key\":\"OBSERVATION\",\"doc_count\":7}]}}}";
+
+    PartialResultException ex =
+        assertThrows(
+            PartialResultException.class, () -> parse(AggregationQuery.ofBasisOfRecord(), json));
+    assertEquals(7L, ((AggregationResult) ex.getPartialResult()).get("OBSERVATION"));
+  }
+}
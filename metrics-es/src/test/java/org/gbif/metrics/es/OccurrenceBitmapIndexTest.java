@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class OccurrenceBitmapIndexTest {
+
+  private static final String CHECKLIST_KEY = "d7dddbf4-2cf0-4f39-9b2a-bb099caae36c";
+
+  private static final String SNAPSHOT =
+      "{\"basisOfRecord\":\"PRESERVED_SPECIMEN\",\"country\":\"DK\",\"year\":1998,"
+          + "\"issue\":[\"ZERO_COORDINATE\",\"COUNTRY_INVALID\"],\"taxonKey\":[\"1\",\"44\"]}\n"
+          + "{\"basisOfRecord\":\"HUMAN_OBSERVATION\",\"country\":\"DK\",\"year\":2001,"
+          + "\"isGeoreferenced\":true,\"taxonKey\":[\"1\",\"52\"],\"ignored\":{\"a\":[1]}}\n"
+          + "{\"basisOfRecord\":\"HUMAN_OBSERVATION\",\"country\":\"AR\",\"year\":2005,"
+          + "\"isGeoreferenced\":true,\"taxonKey\":[\"6\"]}\n"
+          + "{\"basisOfRecord\":\"HUMAN_OBSERVATION\",\"country\":\"DK\",\"year\":null}\n";
+
+  private static OccurrenceBitmapIndex index() throws IOException {
+    return OccurrenceSnapshotLoader.read(
+        new ByteArrayInputStream(SNAPSHOT.getBytes(StandardCharsets.UTF_8)), CHECKLIST_KEY);
+  }
+
+  private static CountQuery query(Parameter... parameters) {
+    return new CountQuery(new HashSet<>(Arrays.asList(parameters)));
+  }
+
+  @Test
+  public void testCount() throws IOException {
+    OccurrenceBitmapIndex index = index();
+    assertEquals(4, index.rows());
+    assertEquals(4, index.count(query().getParameters()));
+    assertEquals(3, index.count(query(new Parameter("country", "DK")).getParameters()));
+    assertEquals(
+        2,
+        index.count(
+            query(
+                    new Parameter("country", "DK"),
+                    new Parameter("basisOfRecord", "HUMAN_OBSERVATION"))
+                .getParameters()));
+    assertEquals(1, index.count(query(new Parameter("issue", "ZERO_COORDINATE")).getParameters()));
+    assertEquals(2, index.count(query(new Parameter("isGeoreferenced", "true")).getParameters()));
+    assertEquals(2, index.count(query(new Parameter("taxonKey", "1")).getParameters()));
+    assertEquals(2, index.count(query(new Parameter("year", "2000,2010")).getParameters()));
+    assertEquals(1, index.count(query(new Parameter("year", "1998")).getParameters()));
+    assertEquals(0, index.count(query(new Parameter("country", "ES")).getParameters()));
+    assertEquals(
+        2,
+        index.count(
+            query(new Parameter("checklistKey", CHECKLIST_KEY), new Parameter("taxonKey", "1"))
+                .getParameters()));
+  }
+
+  @Test
+  public void testOtherChecklist() throws IOException {
+    OccurrenceBitmapIndex index = index();
+    assertThrows(
+        UnsupportedQueryException.class,
+        () -> index.count(Collections.singleton(new Parameter("checklistKey", "other"))));
+  }
+
+  @Test
+  public void testAggregate() throws IOException {
+    AggregationResult result =
+        index()
+            .aggregate(
+                "country",
+                Collections.singleton(new Parameter("basisOfRecord", "HUMAN_OBSERVATION")));
+    assertEquals(2, result.size());
+    assertEquals("DK", result.label(0));
+    assertEquals(2, result.count(0));
+    assertEquals("AR", result.label(1));
+    assertEquals(1, result.count(1));
+  }
+
+  @Test
+  public void testAggregateTies() throws IOException {
+    // Values with the same count by value ascending, like the _key order of Elasticsearch
+    AggregationResult result = index().aggregate("year", Collections.emptySet());
+    assertEquals(3, result.size());
+    assertEquals("1998", result.label(0));
+    assertEquals("2001", result.label(1));
+    assertEquals("2005", result.label(2));
+  }
+}
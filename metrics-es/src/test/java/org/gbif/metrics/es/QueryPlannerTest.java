@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.cache2k.io.CacheLoaderException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class QueryPlannerTest {
+
+  @TempDir Path dir;
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final QueryPlanner.PlannerConfig config = new QueryPlanner.PlannerConfig();
+  private EsMetricsService metricsService;
+  private RollupCubeMetricsService cubeService;
+
+  /** @return a planner whose loads from Elasticsearch all fail, as there is no client */
+  private QueryPlanner planner() throws IOException {
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(TimeUnit.HOURS.toMillis(1));
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.getBatch().setWindow(0);
+    metricsService = EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+
+    // A rollup by basis of record, restored from a cube file
+    Path file = dir.resolve("cube");
+    CubeFile.write(
+        file,
+        Collections.singletonList(
+            RollupTable.builder(Collections.singletonList("basisOfRecord"))
+                .add(new String[] {"OBSERVATION"}, 5)
+                .build()));
+    RollupCubeMetricsService.CubeConfig cubeConfig = new RollupCubeMetricsService.CubeConfig();
+    cubeConfig.setEnabled(true);
+    cubeConfig.setFile(file.toString());
+    cubeService =
+        new RollupCubeMetricsService(
+            metricsService,
+            EsMetricsServiceFixtures.hedgingClient(meterRegistry),
+            "occurrence",
+            cubeConfig,
+            meterRegistry);
+    cubeService.start();
+    return new QueryPlanner(metricsService, cubeService, config, meterRegistry);
+  }
+
+  @AfterEach
+  public void close() throws IOException {
+    cubeService.close();
+    metricsService.close();
+  }
+
+  private double plans(String plan, String reason) {
+    Counter counter =
+        meterRegistry.find("metrics.plan").tag("plan", plan).tag("reason", reason).counter();
+    return counter != null ? counter.count() : 0;
+  }
+
+  /** @return the checked exception a synchronous query failed with */
+  private static Throwable cause(Runnable query) {
+    return assertThrows(CacheLoaderException.class, query::run).getCause();
+  }
+
+  @Test
+  public void testPlans() throws IOException {
+    QueryPlanner planner = planner();
+    AggregationQuery byBasisOfRecord = AggregationQuery.of("basisOfRecord", Collections.emptySet());
+    AggregationQuery byCountry = AggregationQuery.of("country", Collections.emptySet());
+    metricsService
+        .getAggregationsCache()
+        .put(
+            byBasisOfRecord,
+            CachedValue.loadedNow(
+                AggregationResult.builder("basisOfRecord", 1).add("OBSERVATION", 7).build()));
+    metricsService
+        .getAggregationsCache()
+        .put(
+            byCountry,
+            CachedValue.loadedNow(
+                AggregationResult.builder("country", 1).add("DENMARK", 3).build()));
+
+    // The rollup is cheaper than a derivation from the cached aggregation
+    CountQuery observations = new CountQuery().withParameter("basisOfRecord", "OBSERVATION");
+    assertEquals(5, planner.count(observations));
+    assertEquals(1, plans("precomputed", "rollup"));
+
+    // Without a rollup, derived from the cached aggregation
+    assertEquals(3, planner.count(new CountQuery().withParameter("country", "DK")));
+    assertEquals(1, plans("derived", "cached aggregation"));
+
+    // The cached count comes first
+    metricsService.getCountCache().put(observations, CachedValue.loadedNow(9L));
+    assertEquals(9, planner.count(observations));
+    assertEquals(1, plans("cache_hit", "cached"));
+
+    assertEquals(7, planner.countAggregation(byBasisOfRecord).get("OBSERVATION"));
+    assertEquals(2, plans("cache_hit", "cached"));
+    assertEquals(0, plans("elasticsearch", "cache miss"));
+  }
+
+  @Test
+  public void testRefreshStorm() throws IOException {
+    config.setThrottle(true);
+    config.setExpensiveLoad(1);
+    config.setRefreshStorm(0);
+    QueryPlanner planner = planner();
+    AggregationQuery byCountry = AggregationQuery.of("country", Collections.emptySet());
+
+    // Rejected like the synchronous methods of the service fail, not wrapped by the future
+    assertThrows(QueryRejectedException.class, () -> planner.countAggregation(byCountry));
+    assertEquals(1, plans("rejected", "refresh storm"));
+
+    // Cached values are still answered
+    metricsService
+        .getAggregationsCache()
+        .put(
+            byCountry,
+            CachedValue.loadedNow(
+                AggregationResult.builder("country", 1).add("DENMARK", 3).build()));
+    assertEquals(3, planner.countAggregation(byCountry).get("DENMARK"));
+  }
+
+  @Test
+  public void testReleaseOnFailure() throws IOException {
+    config.setThrottle(true);
+    config.setExpensiveLoad(1);
+    config.setMaxExpensiveLoads(1);
+    config.setRefreshStorm(Integer.MAX_VALUE);
+    QueryPlanner planner = planner();
+    AggregationQuery byCountry = AggregationQuery.of("country", Collections.emptySet());
+
+    // The permit of a failed load is released for the next one
+    for (int i = 0; i < 3; i++) {
+      assertInstanceOf(IOException.class, cause(() -> planner.countAggregation(byCountry)));
+    }
+    assertEquals(3, plans("elasticsearch", "expensive cache miss"));
+    assertEquals(0, plans("rejected", "too many expensive loads"));
+  }
+
+  @Test
+  public void testLatencies() throws IOException {
+    config.setThrottle(true);
+    config.setRefreshStorm(0);
+    QueryPlanner planner = planner();
+    CountQuery spain = new CountQuery().withParameter("country", "ES");
+    AggregationQuery years = AggregationQuery.ofYearRange(1900, 2000);
+
+    // Failed loads never reach Elasticsearch, so they do not change the estimates
+    assertInstanceOf(IOException.class, cause(() -> planner.count(spain)));
+    assertInstanceOf(IOException.class, cause(() -> planner.count(spain)));
+    assertInstanceOf(IOException.class, cause(() -> planner.countAggregation(years)));
+    assertEquals(0, plans("rejected", "refresh storm"));
+
+    // Slow loads reported by the loaders make the next ones of the same shape expensive
+    planner.loaded("count", new CountQuery().withParameter("country", "DK"), 20_000);
+    assertThrows(QueryRejectedException.class, () -> planner.count(spain));
+    planner.loaded("years", EsMetricsService.yearContext(years), 20_000);
+    assertThrows(QueryRejectedException.class, () -> planner.countAggregation(years));
+    assertEquals(2, plans("rejected", "refresh storm"));
+  }
+}
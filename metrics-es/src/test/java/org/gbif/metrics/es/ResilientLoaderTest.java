@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.cache2k.io.CacheLoaderException;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResilientLoaderTest {
+
+  private static final long EXPIRE_AFTER_WRITE = TimeUnit.HOURS.toMillis(1);
+  private static final long MAX_STALENESS = TimeUnit.HOURS.toMillis(2);
+  private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final EsMetricsService metricsService;
+
+  public ResilientLoaderTest() {
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(EXPIRE_AFTER_WRITE);
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.setMaxStaleness(MAX_STALENESS);
+    cacheConfig.getBreaker().setOpenDuration(RETRY_INTERVAL);
+    cacheConfig.getBatch().setWindow(0);
+    // Without an Elasticsearch client every load fails
+    metricsService = EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+  }
+
+  private double staleServed() {
+    return meterRegistry.get("metrics.cache.stale.served").tag("cache", "count").counter().count();
+  }
+
+  private void reload(CountQuery countQuery) throws Exception {
+    metricsService.getCountCache().reloadAll(Collections.singleton(countQuery)).get();
+  }
+
+  @Test
+  public void testStaleServed() throws Exception {
+    CountQuery countQuery = new CountQuery().withParameter("country", "DK");
+    long loadedAt = System.currentTimeMillis() - EXPIRE_AFTER_WRITE - MAX_STALENESS / 2;
+    metricsService.getCountCache().put(countQuery, new CachedValue<>(5L, loadedAt));
+
+    long start = System.currentTimeMillis();
+    reload(countQuery);
+    CachedValue<Long> stale = metricsService.getCountCache().peek(countQuery);
+    assertEquals(5L, stale.getValue());
+    assertEquals(loadedAt, stale.getLoadedAt());
+    assertEquals(1, staleServed());
+
+    // Retried after the retry interval rather than at every access
+    long expiry = metricsService.getCountCache().invoke(countQuery, e -> e.getExpiryTime());
+    assertTrue(expiry >= start + RETRY_INTERVAL);
+    assertTrue(expiry <= System.currentTimeMillis() + RETRY_INTERVAL);
+  }
+
+  @Test
+  public void testTooStaleFails() throws Exception {
+    CountQuery countQuery = new CountQuery().withParameter("country", "DK");
+    long loadedAt = System.currentTimeMillis() - EXPIRE_AFTER_WRITE - MAX_STALENESS - 1_000;
+    metricsService.getCountCache().put(countQuery, new CachedValue<>(5L, loadedAt));
+
+    ExecutionException ex = assertThrows(ExecutionException.class, () -> reload(countQuery));
+    assertInstanceOf(CacheLoaderException.class, ex.getCause());
+    assertEquals(0, staleServed());
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.ParsedComposite;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RollupCubeMetricsServiceTest {
+
+  private static final NamedXContentRegistry AGGREGATIONS =
+      new NamedXContentRegistry(
+          Arrays.asList(
+              new NamedXContentRegistry.Entry(
+                  Aggregation.class,
+                  new ParseField(CompositeAggregationBuilder.NAME),
+                  (p, c) -> ParsedComposite.fromXContent(p, (String) c))));
+
+  private static final String RESPONSE =
+      "{\"took\":5,\"timed_out\":false,"
+          + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+          + "\"hits\":{\"total\":{\"value\":10,\"relation\":\"eq\"},\"hits\":[]},"
+          + "\"aggregations\":{\"composite#rollup\":{\"buckets\":[%s]}}}";
+
+  private final RollupCubeMetricsService.CubeConfig config =
+      new RollupCubeMetricsService.CubeConfig();
+  // Pages of buckets of each rollup by its sorted dimensions, the following ones are empty
+  private final Map<String, Deque<String>> pages = new HashMap<>();
+  // Searches sent for each rollup by its sorted dimensions
+  private final Map<String, List<String>> searches = new HashMap<>();
+  private EsMetricsService metricsService;
+  private RollupCubeMetricsService cubeService;
+
+  /** @return a cube service whose searches are answered with the pages of the test */
+  private RollupCubeMetricsService cubeService() {
+    EsMetricsService.CacheConfig cacheConfig = new EsMetricsService.CacheConfig();
+    cacheConfig.setExpireAfterWrite(TimeUnit.HOURS.toMillis(1));
+    cacheConfig.setEntryCapacity(100);
+    cacheConfig.getBatch().setWindow(0);
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    metricsService = EsMetricsServiceFixtures.metricsService(cacheConfig, meterRegistry);
+    config.setEnabled(true);
+    cubeService =
+        new RollupCubeMetricsService(
+            metricsService, this::search, "occurrence", config, meterRegistry);
+    return cubeService;
+  }
+
+  @AfterEach
+  public void close() {
+    if (cubeService != null) {
+      cubeService.close();
+      metricsService.close();
+    }
+  }
+
+  private CompletableFuture<SearchResponse> search(SearchRequest request) {
+    CompositeAggregationBuilder composite =
+        (CompositeAggregationBuilder)
+            request.source().aggregations().getAggregatorFactories().iterator().next();
+    String dimensions =
+        composite.sources().stream()
+            .map(CompositeValuesSourceBuilder::name)
+            .collect(Collectors.joining(","));
+    searches.computeIfAbsent(dimensions, k -> new ArrayList<>()).add(request.source().toString());
+    String page = pages.getOrDefault(dimensions, new ArrayDeque<>()).poll();
+    try (XContentParser parser =
+        JsonXContent.jsonXContent.createParser(
+            AGGREGATIONS,
+            DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+            String.format(RESPONSE, page != null ? page : ""))) {
+      return CompletableFuture.completedFuture(SearchResponse.fromXContent(parser));
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /** Adds a page of buckets of a rollup of a single dimension. */
+  private void page(String dimension, Object... valuesAndCounts) {
+    List<String> buckets = new ArrayList<>();
+    for (int i = 0; i < valuesAndCounts.length; i += 2) {
+      buckets.add(
+          String.format(
+              "{\"key\":{\"%s\":\"%s\"},\"doc_count\":%d}",
+              dimension, valuesAndCounts[i], valuesAndCounts[i + 1]));
+    }
+    pages.computeIfAbsent(dimension, k -> new ArrayDeque<>()).add(String.join(",", buckets));
+  }
+
+  @Test
+  public void testPaging() {
+    config.setPageSize(2);
+    RollupCubeMetricsService cubeService = cubeService();
+    page("basisOfRecord", "OBSERVATION", 5, "FOSSIL_SPECIMEN", 2);
+    page("basisOfRecord", "PRESERVED_SPECIMEN", 1);
+    assertNull(
+        cubeService.cubeCount(new CountQuery().withParameter("basisOfRecord", "OBSERVATION")));
+
+    cubeService.materializeAll();
+    assertEquals(
+        5, cubeService.cubeCount(new CountQuery().withParameter("basisOfRecord", "OBSERVATION")));
+    assertEquals(
+        1,
+        cubeService.cubeCount(
+            new CountQuery().withParameter("basisOfRecord", "PRESERVED_SPECIMEN")));
+    assertEquals(
+        0,
+        cubeService.cubeCount(
+            new CountQuery().withParameter("basisOfRecord", "HUMAN_OBSERVATION")));
+
+    // The second page follows the last bucket of the first one, and the short page is the last
+    List<String> sent = searches.get("basisOfRecord");
+    assertEquals(2, sent.size());
+    assertFalse(sent.get(0).contains("\"after\""));
+    assertTrue(sent.get(1).contains("\"after\":{\"basisOfRecord\":\"FOSSIL_SPECIMEN\"}"));
+  }
+
+  @Test
+  public void testMaxRows() {
+    config.setPageSize(2);
+    RollupCubeMetricsService cubeService = cubeService();
+    CountQuery denmark = new CountQuery().withParameter("country", "DK");
+    page("country", "DK", 5, "ES", 2);
+    page("country", "AR", 1);
+    cubeService.materializeAll();
+    assertEquals(5, cubeService.cubeCount(denmark));
+
+    // Stops paging once the rollup has too many rows, and drops its previous table
+    config.setMaxRows(1);
+    page("country", "DK", 6, "ES", 2);
+    page("country", "AR", 1);
+    cubeService.materializeAll();
+    assertEquals(3, searches.get("country").size());
+    assertNull(cubeService.cubeCount(denmark));
+  }
+
+  @Test
+  public void testDelegated() {
+    RollupCubeMetricsService cubeService = cubeService();
+    CountQuery taxon = new CountQuery().withParameter("taxonKey", "1");
+    CountQuery years = new CountQuery().withParameter("year", "1900,2000");
+    CountQuery observations = new CountQuery().withParameter("basisOfRecord", "OBSERVATION");
+    page("taxonKey", "1", 5);
+    page("basisOfRecord", "OBSERVATION", 5);
+    cubeService.materializeAll();
+
+    // Excluded dimensions are never materialized
+    assertFalse(searches.containsKey("taxonKey"));
+    assertEquals(5, cubeService.count(observations));
+
+    // Queries the tables cannot address are answered by the service
+    metricsService.getCountCache().put(taxon, CachedValue.loadedNow(7L));
+    metricsService.getCountCache().put(years, CachedValue.loadedNow(9L));
+    assertNull(cubeService.cubeCount(taxon));
+    assertNull(cubeService.cubeCount(years));
+    assertEquals(7, cubeService.count(taxon));
+    assertEquals(9, cubeService.count(years));
+  }
+
+  @Test
+  public void testUpdate() {
+    RollupTable contributions =
+        RollupTable.builder(Arrays.asList("country", "datasetKey"))
+            .add(new String[] {"DK", "a"}, 5)
+            .add(new String[] {"AR", "a"}, 2)
+            .add(new String[] {"DK", "b"}, 4)
+            .add(new String[] {"DK", "c"}, 1)
+            .add(new String[] {"AR", "c"}, 3)
+            .build();
+    RollupTable table =
+        RollupTable.builder(Arrays.asList("country"))
+            .add(new String[] {"DK"}, 10)
+            .add(new String[] {"AR"}, 5)
+            .build();
+    // Dataset a changed and dataset b was removed, so it has no new contributions
+    RollupTable delta =
+        RollupTable.builder(Arrays.asList("country", "datasetKey"))
+            .add(new String[] {"DK", "a"}, 6)
+            .add(new String[] {"ES", "a"}, 1)
+            .build();
+    Set<String> changed = new HashSet<>(Arrays.asList("a", "b"));
+
+    RollupTable newContributions =
+        RollupCubeMetricsService.updateContributions(contributions, delta, changed);
+    assertEquals(4, newContributions.size());
+    assertEquals(6, newContributions.count(new String[] {"DK", "a"}));
+    assertEquals(1, newContributions.count(new String[] {"ES", "a"}));
+    assertEquals(0, newContributions.count(new String[] {"AR", "a"}));
+    assertEquals(0, newContributions.count(new String[] {"DK", "b"}));
+    assertEquals(1, newContributions.count(new String[] {"DK", "c"}));
+    assertEquals(3, newContributions.count(new String[] {"AR", "c"}));
+
+    RollupTable newTable =
+        RollupCubeMetricsService.updateRollup(table, contributions, delta, changed);
+    assertEquals(3, newTable.size());
+    assertEquals(7, newTable.count(new String[] {"DK"}));
+    assertEquals(3, newTable.count(new String[] {"AR"}));
+    assertEquals(1, newTable.count(new String[] {"ES"}));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RollupTableTest {
+
+  @Test
+  public void testCount() {
+    RollupTable.Builder builder = RollupTable.builder(Arrays.asList("year", "country"));
+    assertArrayEquals(new String[] {"country", "year"}, builder.getDimensions());
+    RollupTable table =
+        builder
+            .add(new String[] {"DK", "2001"}, 5)
+            .add(new String[] {"AR", "2001"}, 3)
+            .add(new String[] {"DK", "1999"}, 7)
+            .add(new String[] {"AR", "2020"}, 1)
+            .build();
+
+    assertEquals(4, table.size());
+    assertEquals(5, table.count(new String[] {"DK", "2001"}));
+    assertEquals(3, table.count(new String[] {"AR", "2001"}));
+    assertEquals(7, table.count(new String[] {"DK", "1999"}));
+    assertEquals(1, table.count(new String[] {"AR", "2020"}));
+    // Known values in a combination that does not exist
+    assertEquals(0, table.count(new String[] {"DK", "2020"}));
+    // Unknown value
+    assertEquals(0, table.count(new String[] {"ES", "2001"}));
+  }
+
+  @Test
+  public void testDeltas() {
+    RollupTable table =
+        RollupTable.builder(Arrays.asList("country"))
+            .add(new String[] {"DK"}, 5)
+            .add(new String[] {"AR"}, 3)
+            .add(new String[] {"DK"}, 2)
+            .add(new String[] {"AR"}, -3)
+            .build();
+    // Counts of the same values added up, and rows adding up to 0 left out
+    assertEquals(1, table.size());
+    assertEquals(7, table.count(new String[] {"DK"}));
+    assertEquals(0, table.count(new String[] {"AR"}));
+
+    List<String> rows = new ArrayList<>();
+    table.forEach((values, count) -> rows.add(values[0] + "=" + count));
+    assertEquals(Collections.singletonList("DK=7"), rows);
+  }
+
+  @Test
+  public void testEmpty() {
+    RollupTable table = RollupTable.builder(Arrays.asList("basisOfRecord")).build();
+    assertEquals(0, table.size());
+    assertEquals(0, table.count(new String[] {"PRESERVED_SPECIMEN"}));
+  }
+}
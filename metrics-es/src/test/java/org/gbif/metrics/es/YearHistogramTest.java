@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.es;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class YearHistogramTest {
+
+  private static YearHistogram histogram() {
+    Map<Integer, Long> years = new HashMap<>();
+    years.put(1981, 5L);
+    years.put(1985, 20L);
+    years.put(1991, 5L);
+    years.put(2000, 1L);
+    return YearHistogram.of(years);
+  }
+
+  @Test
+  public void testCounts() {
+    YearHistogram histogram = histogram();
+
+    assertEquals(31, histogram.count(null));
+    assertEquals(30, histogram.count(1981, 1991));
+    assertEquals(25, histogram.count(1900, 1990));
+    assertEquals(20, histogram.count(1985, 1985));
+    assertEquals(0, histogram.count(2001, 2020));
+    assertEquals(0, histogram.count(1991, 1981));
+    assertEquals(5, histogram.count(new Parameter("year", "1991")));
+    assertEquals(31, histogram.count(new Parameter("year", "1500,2100")));
+  }
+
+  @Test
+  public void testSlices() {
+    YearHistogram histogram = histogram();
+
+    // ordered by count and then by year, descending
+    AggregationResult slice = histogram.slice(new Parameter("year", "1981,1991"));
+    assertEquals(Arrays.asList("1985", "1991", "1981"), Arrays.asList(labels(slice)));
+    assertEquals(20L, slice.get("1985"));
+    assertEquals(4, histogram.slice(null).size());
+    assertEquals(0, YearHistogram.of(Collections.emptyMap()).slice(1900, 2000).size());
+  }
+
+  private static String[] labels(AggregationResult result) {
+    String[] labels = new String[result.size()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = result.label(i);
+    }
+    return labels;
+  }
+}
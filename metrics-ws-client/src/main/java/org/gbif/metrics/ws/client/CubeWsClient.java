@@ -26,6 +26,8 @@ import java.util.Map.Entry;
 import org.springframework.cloud.openfeign.SpringQueryMap;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 
 import com.google.common.base.Preconditions;
 
@@ -45,6 +47,18 @@ public interface CubeWsClient extends CubeService {
   @GetMapping(value = "occurrence/count", produces = MediaType.APPLICATION_JSON_VALUE)
   Long count(@SpringQueryMap Map<String, String> params);
 
+  /**
+   * Counts several queries with a single request.
+   *
+   * @param params the dimensions and values of each query
+   * @return the count of each query, in the same order
+   */
+  @PostMapping(
+      value = "occurrence/count/batch",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  List<Long> countBatch(@RequestBody List<Map<String, String>> params);
+
   @GetMapping(value = "occurrence/count/schema", produces = MediaType.APPLICATION_JSON_VALUE)
   @Override
   List<Rollup> getSchema();
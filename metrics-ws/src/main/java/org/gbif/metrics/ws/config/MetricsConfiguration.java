@@ -13,9 +13,17 @@
  */
 package org.gbif.metrics.ws.config;
 
-import org.gbif.metrics.MetricsService;
+import org.gbif.metrics.es.BitmapMetricsService;
+import org.gbif.metrics.es.CacheSnapshot;
+import org.gbif.metrics.es.CacheWarmer;
 import org.gbif.metrics.es.EsConfig;
 import org.gbif.metrics.es.EsMetricsService;
+import org.gbif.metrics.es.HedgeRouter;
+import org.gbif.metrics.es.HedgingClient;
+import org.gbif.metrics.es.IndexGenerationWatcher;
+import org.gbif.metrics.es.LatencyAwareNodeSelector;
+import org.gbif.metrics.es.QueryPlanner;
+import org.gbif.metrics.es.RollupCubeMetricsService;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -29,9 +37,13 @@ import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.sniff.SniffOnFailureListener;
 import org.elasticsearch.client.sniff.Sniffer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
 @Configuration
 public class MetricsConfiguration {
@@ -48,40 +60,242 @@ public class MetricsConfiguration {
     return new EsMetricsService.CacheConfig();
   }
 
+  @ConfigurationProperties(prefix = "bitmap")
+  @Bean
+  public BitmapMetricsService.BitmapConfig bitmapConfig() {
+    return new BitmapMetricsService.BitmapConfig();
+  }
+
+  /** Caches of the Elasticsearch queries, unless the bitmap index answers them instead. */
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
   @Bean
-  public MetricsService metricsService(
+  public EsMetricsService metricsService(
       EsMetricsService.CacheConfig cacheConfig,
       @Value("${es.index}") String esIndex,
-      RestHighLevelClient esClient,
+      HedgingClient hedgingClient,
       @Value("${defaultChecklistKey:d7dddbf4-2cf0-4f39-9b2a-bb099caae36c}")
-          String defaultChecklistKey) {
-    return new EsMetricsService(esIndex, cacheConfig, esClient, defaultChecklistKey);
+          String defaultChecklistKey,
+      MeterRegistry meterRegistry) {
+    return new EsMetricsService(
+        esIndex, cacheConfig, hedgingClient, defaultChecklistKey, meterRegistry);
+  }
+
+  /**
+   * Answers the count queries of the published rollups from memory once they are materialized, if
+   * enabled.
+   */
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean(destroyMethod = "close")
+  public RollupCubeMetricsService rollupCubeMetricsService(
+      EsMetricsService metricsService,
+      HedgingClient hedgingClient,
+      @Value("${es.index}") String esIndex,
+      EsMetricsService.CacheConfig cacheConfig,
+      MeterRegistry meterRegistry) {
+    RollupCubeMetricsService cubeService =
+        new RollupCubeMetricsService(
+            metricsService, hedgingClient, esIndex, cacheConfig.getCube(), meterRegistry);
+    cubeService.start();
+    return cubeService;
   }
 
+  /**
+   * Service of the resources, choosing for each query between the caches, the rollups and
+   * Elasticsearch.
+   */
+  @Primary
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
   @Bean
-  public RestHighLevelClient buildClient(EsConfig esConfig) {
+  public QueryPlanner queryPlanner(
+      EsMetricsService metricsService,
+      RollupCubeMetricsService cubeService,
+      EsMetricsService.CacheConfig cacheConfig,
+      MeterRegistry meterRegistry) {
+    return new QueryPlanner(metricsService, cubeService, cacheConfig.getPlanner(), meterRegistry);
+  }
+
+  /**
+   * Service of the resources instead of the Elasticsearch one when enabled, answering every query
+   * from a local snapshot of the occurrences, loaded while the context starts.
+   */
+  @Primary
+  @ConditionalOnProperty(prefix = "bitmap", name = "enabled")
+  @Bean(destroyMethod = "close")
+  public BitmapMetricsService bitmapMetricsService(
+      BitmapMetricsService.BitmapConfig bitmapConfig,
+      @Value("${defaultChecklistKey:d7dddbf4-2cf0-4f39-9b2a-bb099caae36c}")
+          String defaultChecklistKey,
+      MeterRegistry meterRegistry) {
+    BitmapMetricsService bitmapService =
+        new BitmapMetricsService(bitmapConfig, defaultChecklistKey, meterRegistry);
+    bitmapService.start();
+    return bitmapService;
+  }
+
+  /**
+   * Restores the caches from the last snapshot while the context starts, i.e. before the
+   * application reports itself as ready, and writes a final snapshot on shutdown.
+   */
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean(destroyMethod = "close")
+  public CacheSnapshot cacheSnapshot(
+      EsMetricsService metricsService, EsMetricsService.CacheConfig cacheConfig) {
+    CacheSnapshot cacheSnapshot =
+        new CacheSnapshot(metricsService, cacheConfig.getSnapshot(), cacheConfig);
+    cacheSnapshot.restore();
+    cacheSnapshot.start();
+    return cacheSnapshot;
+  }
+
+  /**
+   * Replays the hot keys of the previous run once the snapshot has been restored, blocking the
+   * startup, and therefore the readiness of the application, until it finishes or times out.
+   */
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean
+  public CacheWarmer cacheWarmer(
+      EsMetricsService metricsService,
+      EsMetricsService.CacheConfig cacheConfig,
+      CacheSnapshot cacheSnapshot,
+      MeterRegistry meterRegistry) {
+    CacheWarmer cacheWarmer =
+        new CacheWarmer(metricsService, cacheConfig.getWarmup(), meterRegistry);
+    cacheWarmer.warmUp();
+    return cacheWarmer;
+  }
+
+  /** Polls the generation of the occurrence index to refresh the caches when it changes. */
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean(destroyMethod = "close")
+  public IndexGenerationWatcher indexGenerationWatcher(
+      RestHighLevelClient esClient,
+      @Value("${es.index}") String esIndex,
+      EsMetricsService metricsService,
+      EsMetricsService.CacheConfig cacheConfig,
+      MeterRegistry meterRegistry) {
+    IndexGenerationWatcher watcher =
+        new IndexGenerationWatcher(
+            esClient, esIndex, metricsService, cacheConfig.getGeneration(), meterRegistry);
+    watcher.start();
+    return watcher;
+  }
+
+  /**
+   * Sends the requests of the caches, and the hedged requests through a second client when hedging
+   * is enabled. Both clients share the node selector, and the second one leaves out the host of the
+   * original request, as noted by the router.
+   */
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean(destroyMethod = "close")
+  public HedgingClient hedgingClient(
+      EsConfig esConfig,
+      RestHighLevelClient esClient,
+      NodeSelector nodeSelector,
+      HedgeRouter hedgeRouter,
+      MeterRegistry meterRegistry) {
+    if (!esConfig.getHedge().isEnabled()) {
+      return new HedgingClient(esClient, null, null, esConfig.getHedge(), meterRegistry);
+    }
+    RestHighLevelClient hedgeClient = newClient(esConfig, nodeSelector, hedgeRouter, true);
+    return new HedgingClient(
+        esClient, hedgeClient, hedgeRouter, esConfig.getHedge(), meterRegistry);
+  }
+
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean
+  public HedgeRouter hedgeRouter() {
+    return new HedgeRouter();
+  }
+
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean
+  public NodeSelector nodeSelector(EsConfig esConfig, MeterRegistry meterRegistry) {
+    if (esConfig.getNodeSelector().isEnabled()) {
+      return new LatencyAwareNodeSelector(
+          esConfig.getNodeSelector(), esConfig.getSocketTimeout(), meterRegistry);
+    }
+    return NodeSelector.SKIP_DEDICATED_MASTERS;
+  }
+
+  @ConditionalOnProperty(
+      prefix = "bitmap",
+      name = "enabled",
+      havingValue = "false",
+      matchIfMissing = true)
+  @Bean
+  public RestHighLevelClient buildClient(
+      EsConfig esConfig, NodeSelector nodeSelector, HedgeRouter hedgeRouter) {
+    return newClient(
+        esConfig, nodeSelector, esConfig.getHedge().isEnabled() ? hedgeRouter : null, false);
+  }
+
+  /**
+   * Builds a client of all the hosts, with its own sniffer if enabled.
+   *
+   * @param hedgeRouter router noting the hosts of the requests that may be hedged, or null
+   * @param hedge whether the client sends the hedged requests, to other hosts than the original
+   *     requests noted by the router
+   */
+  private static RestHighLevelClient newClient(
+      EsConfig esConfig, NodeSelector nodeSelector, HedgeRouter hedgeRouter, boolean hedge) {
     HttpHost[] hosts = new HttpHost[esConfig.getHosts().length];
     int i = 0;
     for (String host : esConfig.getHosts()) {
-      try {
-        URL url = new URL(host);
-        hosts[i] = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
-        i++;
-      } catch (MalformedURLException e) {
-        throw new IllegalArgumentException(e.getMessage(), e);
-      }
+      hosts[i] = toHttpHost(host);
+      i++;
     }
 
     SniffOnFailureListener sniffOnFailureListener = new SniffOnFailureListener();
 
     RestClientBuilder builder =
-        RestClient.builder(hosts)
-            .setRequestConfigCallback(
-                requestConfigBuilder ->
-                    requestConfigBuilder
-                        .setConnectTimeout(esConfig.getConnectTimeout())
-                        .setSocketTimeout(esConfig.getSocketTimeout()))
-            .setNodeSelector(NodeSelector.SKIP_DEDICATED_MASTERS);
+        withTimeouts(RestClient.builder(hosts), esConfig)
+            .setNodeSelector(hedge ? hedgeRouter.avoidingOriginal(nodeSelector) : nodeSelector)
+            .setHttpClientConfigCallback(
+                httpClientBuilder -> {
+                  if (nodeSelector instanceof LatencyAwareNodeSelector) {
+                    ((LatencyAwareNodeSelector) nodeSelector).track(httpClientBuilder);
+                  }
+                  if (hedgeRouter != null && !hedge) {
+                    httpClientBuilder.addInterceptorLast(hedgeRouter);
+                  }
+                  return httpClientBuilder;
+                });
 
     if (esConfig.getSniffInterval() > 0) {
       builder.setFailureListener(sniffOnFailureListener);
@@ -111,4 +325,21 @@ public class MetricsConfiguration {
     }
     return highLevelClient;
   }
+
+  private static HttpHost toHttpHost(String host) {
+    try {
+      URL url = new URL(host);
+      return new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  private static RestClientBuilder withTimeouts(RestClientBuilder builder, EsConfig esConfig) {
+    return builder.setRequestConfigCallback(
+        requestConfigBuilder ->
+            requestConfigBuilder
+                .setConnectTimeout(esConfig.getConnectTimeout())
+                .setSocketTimeout(esConfig.getSocketTimeout()));
+  }
 }
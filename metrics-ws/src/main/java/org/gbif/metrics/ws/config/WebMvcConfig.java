@@ -13,6 +13,7 @@
  */
 package org.gbif.metrics.ws.config;
 
+import org.gbif.metrics.ws.provider.AggregationResultSerializer;
 import org.gbif.metrics.ws.provider.CountQueryArgumentResolver;
 import org.gbif.ws.json.JacksonJsonObjectMapperProvider;
 
@@ -37,6 +38,8 @@ public class WebMvcConfig implements WebMvcConfigurer {
   @Primary
   @Bean
   public ObjectMapper metricsObjectMapper() {
-    return JacksonJsonObjectMapperProvider.getObjectMapper();
+    // Aggregations are written from their arrays instead of as maps
+    return JacksonJsonObjectMapperProvider.getObjectMapper()
+        .registerModule(AggregationResultSerializer.module());
   }
 }
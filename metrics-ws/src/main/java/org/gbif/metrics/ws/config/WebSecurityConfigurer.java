@@ -13,11 +13,16 @@
  */
 package org.gbif.metrics.ws.config;
 
+import org.gbif.metrics.ws.resources.MetricsCacheEndpoint;
+
 import java.util.Arrays;
 import java.util.Collections;
 
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
@@ -31,6 +36,23 @@ import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 @EnableWebSecurity
 public class WebSecurityConfigurer {
 
+  /**
+   * The cache management endpoint requires the ADMIN role, with the credentials configured in
+   * {@code spring.security.user}.
+   */
+  @Bean
+  @Order(1)
+  public SecurityFilterChain managementFilterChain(HttpSecurity http) throws Exception {
+    http.securityMatcher(EndpointRequest.to(MetricsCacheEndpoint.class))
+        .httpBasic(Customizer.withDefaults())
+        .csrf(AbstractHttpConfigurer::disable)
+        .sessionManagement(
+            session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+        .authorizeHttpRequests(auth -> auth.anyRequest().hasRole("ADMIN"));
+
+    return http.build();
+  }
+
   @Bean
   public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
     http.httpBasic(AbstractHttpConfigurer::disable)
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.provider;
+
+import org.gbif.metrics.es.AggregationResult;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.type.MapType;
+
+/**
+ * Writes an aggregation as a JSON object straight from the arrays of the cached {@link
+ * AggregationResult}, without creating map entries. The generator streams the object to the
+ * response through its fixed size buffer, so even aggregations with tens of thousands of buckets do
+ * not allocate anything per request in proportion to their size.
+ *
+ * <p>Resources declare their aggregations as maps, for which Jackson picks its map serializer from
+ * the declared type. The {@link #module()} wraps that serializer so that it hands the aggregations
+ * over to this one.
+ */
+public class AggregationResultSerializer extends StdSerializer<AggregationResult> {
+
+  public AggregationResultSerializer() {
+    super(AggregationResult.class);
+  }
+
+  /** @return a module writing the aggregations with this serializer, also when declared as maps */
+  public static SimpleModule module() {
+    AggregationResultSerializer serializer = new AggregationResultSerializer();
+    return new SimpleModule()
+        .addSerializer(AggregationResult.class, serializer)
+        .setSerializerModifier(
+            new BeanSerializerModifier() {
+              @Override
+              public JsonSerializer<?> modifyMapSerializer(
+                  SerializationConfig config,
+                  MapType valueType,
+                  BeanDescription beanDesc,
+                  JsonSerializer<?> mapSerializer) {
+                return new MapSerializer(serializer, mapSerializer);
+              }
+            });
+  }
+
+  @Override
+  public void serialize(
+      AggregationResult result, JsonGenerator generator, SerializerProvider provider)
+      throws IOException {
+    generator.writeStartObject(result, result.size());
+    for (int i = 0; i < result.size(); i++) {
+      generator.writeFieldName(result.label(i));
+      generator.writeNumber(result.count(i));
+    }
+    generator.writeEndObject();
+  }
+
+  /** Map serializer writing the aggregations with the serializer of aggregations. */
+  @SuppressWarnings("unchecked")
+  private static class MapSerializer extends StdSerializer<Map<?, ?>>
+      implements ContextualSerializer, ResolvableSerializer {
+
+    private final AggregationResultSerializer aggregationSerializer;
+    private final JsonSerializer<Object> mapSerializer;
+
+    private MapSerializer(
+        AggregationResultSerializer aggregationSerializer, JsonSerializer<?> mapSerializer) {
+      super(Map.class, false);
+      this.aggregationSerializer = aggregationSerializer;
+      this.mapSerializer = (JsonSerializer<Object>) mapSerializer;
+    }
+
+    @Override
+    public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property)
+        throws JsonMappingException {
+      if (mapSerializer instanceof ContextualSerializer) {
+        return new MapSerializer(
+            aggregationSerializer,
+            ((ContextualSerializer) mapSerializer).createContextual(provider, property));
+      }
+      return this;
+    }
+
+    @Override
+    public void resolve(SerializerProvider provider) throws JsonMappingException {
+      if (mapSerializer instanceof ResolvableSerializer) {
+        ((ResolvableSerializer) mapSerializer).resolve(provider);
+      }
+    }
+
+    @Override
+    public boolean isEmpty(SerializerProvider provider, Map<?, ?> value) {
+      return mapSerializer.isEmpty(provider, value);
+    }
+
+    @Override
+    public void serialize(Map<?, ?> value, JsonGenerator generator, SerializerProvider provider)
+        throws IOException {
+      if (value instanceof AggregationResult) {
+        aggregationSerializer.serialize((AggregationResult) value, generator, provider);
+      } else {
+        mapSerializer.serialize(value, generator, provider);
+      }
+    }
+
+    @Override
+    public void serializeWithType(
+        Map<?, ?> value,
+        JsonGenerator generator,
+        SerializerProvider provider,
+        TypeSerializer typeSerializer)
+        throws IOException {
+      mapSerializer.serializeWithType(value, generator, provider, typeSerializer);
+    }
+  }
+}
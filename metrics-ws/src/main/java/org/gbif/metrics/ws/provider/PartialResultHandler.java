@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.provider;
+
+import org.gbif.metrics.es.PartialResultException;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ * Answers the requests whose results are partial, because Elasticsearch reached the deadline of
+ * their load, with those results flagged by the {@value #PARTIAL_RESULTS_HEADER} header. It takes
+ * precedence over the generic exception handlers, which would otherwise match the exceptions
+ * wrapping it.
+ */
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@RestControllerAdvice
+public class PartialResultHandler {
+
+  public static final String PARTIAL_RESULTS_HEADER = "X-Partial-Results";
+
+  @ExceptionHandler(PartialResultException.class)
+  public ResponseEntity<Object> partialResult(PartialResultException ex) {
+    return ResponseEntity.ok().header(PARTIAL_RESULTS_HEADER, "true").body(ex.getPartialResult());
+  }
+}
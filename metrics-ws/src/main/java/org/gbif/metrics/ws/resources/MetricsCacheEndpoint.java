@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.resources;
+
+import org.gbif.metrics.MetricsCacheService;
+import org.gbif.metrics.es.CacheStats;
+import org.gbif.metrics.es.Parameter;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Management endpoint of the metrics caches, exposed at {@code /actuator/metricsCache} and only
+ * accessible to administrators. There are no caches when the bitmap index answers the queries.
+ *
+ * <ul>
+ *   <li>GET: statistics of each cache.
+ *   <li>POST {@code {"parameter": "datasetKey", "value": "..."}}: refreshes the cached queries with
+ *       the parameter.
+ *   <li>DELETE: flushes all the caches, or only the cached queries with the {@code parameter} and
+ *       {@code value} given as query parameters.
+ * </ul>
+ */
+@Component
+@ConditionalOnProperty(
+    prefix = "bitmap",
+    name = "enabled",
+    havingValue = "false",
+    matchIfMissing = true)
+@Endpoint(id = "metricsCache")
+public class MetricsCacheEndpoint {
+
+  private final MetricsCacheService metricsCacheService;
+
+  public MetricsCacheEndpoint(MetricsCacheService metricsCacheService) {
+    this.metricsCacheService = metricsCacheService;
+  }
+
+  @ReadOperation
+  public Map<String, CacheStats> stats() {
+    return metricsCacheService.stats();
+  }
+
+  @WriteOperation
+  public Map<String, Integer> refresh(String parameter, String value) {
+    return Collections.singletonMap(
+        "refreshed", metricsCacheService.refresh(toParameter(parameter, value)));
+  }
+
+  @DeleteOperation
+  public Map<String, Object> flush(@Nullable String parameter, @Nullable String value) {
+    if (parameter == null) {
+      metricsCacheService.flush();
+      return Collections.singletonMap("flushed", "all");
+    }
+    return Collections.singletonMap(
+        "flushed", metricsCacheService.flush(toParameter(parameter, value)));
+  }
+
+  private static Parameter toParameter(String name, String value) {
+    if (value == null) {
+      throw new InvalidEndpointRequestException(
+          "A value is required for parameter " + name, "Missing value");
+    }
+    try {
+      return new Parameter(name, value);
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidEndpointRequestException(ex.getMessage(), "Invalid parameter");
+    }
+  }
+}
@@ -19,22 +19,27 @@ import org.gbif.api.vocabulary.Country;
 import org.gbif.api.vocabulary.EndpointType;
 import org.gbif.api.vocabulary.OccurrenceIssue;
 import org.gbif.api.vocabulary.TypeStatus;
-import org.gbif.metrics.MetricsService;
+import org.gbif.metrics.AsyncMetricsService;
 import org.gbif.metrics.es.AggregationQuery;
 import org.gbif.metrics.es.CountQuery;
 import org.gbif.metrics.es.Parameter;
 import org.gbif.metrics.ws.provider.ProvidedCountQuery;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -67,9 +72,13 @@ public class OccurrenceCubeResource {
 
   private static final Logger LOG = LoggerFactory.getLogger(OccurrenceCubeResource.class);
 
-  private final MetricsService metricsService;
+  private static final int MAX_BATCH_SIZE = 1_000;
 
-  public OccurrenceCubeResource(MetricsService metricsService) {
+  // Results are returned asynchronously, so that loads from Elasticsearch do not hold the
+  // servlet threads
+  private final AsyncMetricsService metricsService;
+
+  public OccurrenceCubeResource(AsyncMetricsService metricsService) {
     this.metricsService = metricsService;
   }
 
@@ -158,8 +167,46 @@ public class OccurrenceCubeResource {
         @ApiResponse(responseCode = "400", description = "Invalid query.", content = @Content)
       })
   @GetMapping("count")
-  public Long count(@ProvidedCountQuery CountQuery countQuery) {
-    return metricsService.count(countQuery);
+  public CompletableFuture<Long> count(@ProvidedCountQuery CountQuery countQuery) {
+    return metricsService.countAsync(countQuery);
+  }
+
+  /** Looks up several addressable counts from the cube at once. */
+  @Tag(name = "Occurrence metrics")
+  @Operation(
+      operationId = "getOccurrenceCountBatch",
+      summary = "Batch of occurrence counts",
+      description =
+          "Returns the occurrence counts of a list of queries, in the same order.\n\n"
+              + "Each query is an object with the dimensions of the "
+              + "[/occurrence/count](#operation/getOccurrenceCount) service as keys, e.g. "
+              + "`[{\"country\": \"CA\"}, {\"country\": \"CA\", \"basisOfRecord\": "
+              + "\"OBSERVATION\"}]`. At most "
+              + MAX_BATCH_SIZE
+              + " queries are accepted.",
+      extensions =
+          @Extension(
+              name = "Order",
+              properties = @ExtensionProperty(name = "Order", value = "0110")))
+  @ApiResponses(
+      value = {
+        @ApiResponse(responseCode = "200", description = "Counts returned."),
+        @ApiResponse(responseCode = "400", description = "Invalid query.", content = @Content)
+      })
+  @PostMapping(value = "count/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public CompletableFuture<List<Long>> countBatch(
+      @RequestBody List<Map<String, String>> countQueries) {
+    if (countQueries.size() > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException(
+          "At most " + MAX_BATCH_SIZE + " queries are accepted in a batch");
+    }
+    List<CountQuery> queries = new ArrayList<>(countQueries.size());
+    for (Map<String, String> countQuery : countQueries) {
+      Set<Parameter> parameters = new HashSet<>();
+      countQuery.forEach((name, value) -> parameters.add(new Parameter(name, value)));
+      queries.add(new CountQuery(parameters));
+    }
+    return metricsService.countBatchAsync(queries);
   }
 
   @Tag(name = "Occurrence metrics")
@@ -191,8 +238,8 @@ public class OccurrenceCubeResource {
   @ApiResponses(
       value = {@ApiResponse(responseCode = "200", description = "Inventory counts returned.")})
   @GetMapping("counts/basisOfRecord")
-  public Map<String, Long> getBasisOfRecordCounts() {
-    return metricsService.countAggregation(AggregationQuery.ofBasisOfRecord());
+  public CompletableFuture<Map<String, Long>> getBasisOfRecordCounts() {
+    return metricsService.countAggregationAsync(AggregationQuery.ofBasisOfRecord());
   }
 
   @Tag(name = "Occurrence inventories")
@@ -215,9 +262,9 @@ public class OccurrenceCubeResource {
         @ApiResponse(responseCode = "400", description = "Invalid query.", content = @Content)
       })
   @GetMapping("counts/countries")
-  public Map<String, Long> getCountries(
+  public CompletableFuture<Map<String, Long>> getCountries(
       @RequestParam(value = "publishingCountry", required = false) String publishingCountry) {
-    return metricsService.countAggregation(
+    return metricsService.countAggregationAsync(
         AggregationQuery.ofCountriesOfPublishingCountry(publishingCountry));
   }
 
@@ -249,7 +296,7 @@ public class OccurrenceCubeResource {
         @ApiResponse(responseCode = "400", description = "Invalid query.", content = @Content)
       })
   @GetMapping("counts/datasets")
-  public Map<String, Long> getDatasets(
+  public CompletableFuture<Map<String, Long>> getDatasets(
       @RequestParam(value = "country", required = false) String country,
       @RequestParam(value = "nubKey", required = false) Integer nubKey,
       @RequestParam(value = "taxonKey", required = false) String taxonKey,
@@ -270,7 +317,7 @@ public class OccurrenceCubeResource {
     if (nubKey != null && taxonKey == null) {
       parameters.add(new Parameter("taxonKey", nubKey.toString()));
     }
-    return metricsService.countAggregation(AggregationQuery.ofDatasets(parameters));
+    return metricsService.countAggregationAsync(AggregationQuery.ofDatasets(parameters));
   }
 
   @Hidden
@@ -288,9 +335,9 @@ public class OccurrenceCubeResource {
   @ApiResponses(
       value = {@ApiResponse(responseCode = "200", description = "Inventory counts returned.")})
   @GetMapping("counts/kingdom")
-  public Map<String, Long> getKingdomCounts(
+  public CompletableFuture<Map<String, Long>> getKingdomCounts(
       @RequestParam(value = "checklistKey", required = false) String checklistKey) {
-    return metricsService.countAggregation(AggregationQuery.ofKingdom(checklistKey));
+    return metricsService.countAggregationAsync(AggregationQuery.ofKingdom(checklistKey));
   }
 
   @Tag(name = "Occurrence inventories")
@@ -313,9 +360,9 @@ public class OccurrenceCubeResource {
         @ApiResponse(responseCode = "400", description = "Invalid query.", content = @Content)
       })
   @GetMapping("counts/publishingCountries")
-  public Map<String, Long> getPublishingCountries(
+  public CompletableFuture<Map<String, Long>> getPublishingCountries(
       @RequestParam(value = "country", required = false) String country) {
-    return metricsService.countAggregation(
+    return metricsService.countAggregationAsync(
         AggregationQuery.ofPublishingCountriesOfCountry(country));
   }
 
@@ -338,10 +385,10 @@ public class OccurrenceCubeResource {
         @ApiResponse(responseCode = "400", description = "Invalid query.", content = @Content)
       })
   @GetMapping("counts/year")
-  public Map<String, Long> getYearCounts(
+  public CompletableFuture<Map<String, Long>> getYearCounts(
       @RequestParam(value = "year", required = false) String year) {
     Range<Integer> range = parseYearRange(year);
-    return metricsService.countAggregation(
+    return metricsService.countAggregationAsync(
         AggregationQuery.ofYearRange(range.lowerEndpoint(), range.upperEndpoint()));
   }
 
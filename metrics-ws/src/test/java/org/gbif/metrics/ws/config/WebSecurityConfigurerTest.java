@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.endpoint.Access;
+import org.springframework.boot.actuate.endpoint.EndpointId;
+import org.springframework.boot.actuate.endpoint.ExposableEndpoint;
+import org.springframework.boot.actuate.endpoint.Operation;
+import org.springframework.boot.actuate.endpoint.web.PathMappedEndpoint;
+import org.springframework.boot.actuate.endpoint.web.PathMappedEndpoints;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.provisioning.InMemoryUserDetailsManager;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import jakarta.servlet.Filter;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class WebSecurityConfigurerTest {
+
+  /** The cache management endpoint as mapped by the actuator. */
+  static class MappedMetricsCacheEndpoint
+      implements ExposableEndpoint<Operation>, PathMappedEndpoint {
+
+    @Override
+    public EndpointId getEndpointId() {
+      return EndpointId.of("metricsCache");
+    }
+
+    @Override
+    public boolean isEnableByDefault() {
+      return true;
+    }
+
+    @Override
+    public Access getDefaultAccess() {
+      return Access.UNRESTRICTED;
+    }
+
+    @Override
+    public Collection<Operation> getOperations() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public String getRootPath() {
+      return "metricsCache";
+    }
+  }
+
+  /** Answers the endpoint and a resource, whatever the security lets through. */
+  @RestController
+  static class Resources {
+    @GetMapping({"/actuator/metricsCache", "/occurrence/count"})
+    public String get() {
+      return "ok";
+    }
+  }
+
+  @Configuration
+  @EnableWebMvc
+  static class TestConfig {
+
+    @Bean
+    PathMappedEndpoints pathMappedEndpoints() {
+      return new PathMappedEndpoints(
+          "/actuator", () -> Collections.singletonList(new MappedMetricsCacheEndpoint()));
+    }
+
+    @Bean
+    UserDetailsService userDetailsService() {
+      return new InMemoryUserDetailsManager(
+          User.withUsername("admin").password("{noop}secret").roles("ADMIN").build(),
+          User.withUsername("user").password("{noop}secret").roles("USER").build());
+    }
+
+    @Bean
+    Resources resources() {
+      return new Resources();
+    }
+  }
+
+  private AnnotationConfigWebApplicationContext context;
+  private MockMvc mockMvc;
+
+  @BeforeEach
+  public void setUp() {
+    context = new AnnotationConfigWebApplicationContext();
+    context.setServletContext(new MockServletContext());
+    context.register(TestConfig.class, WebSecurityConfigurer.class);
+    context.refresh();
+    mockMvc =
+        MockMvcBuilders.webAppContextSetup(context)
+            .addFilters(context.getBean("springSecurityFilterChain", Filter.class))
+            .build();
+  }
+
+  @AfterEach
+  public void close() {
+    context.close();
+  }
+
+  private static MockHttpServletRequestBuilder as(String path, String user) {
+    String credentials = user + ":secret";
+    return get(path)
+        .header(
+            HttpHeaders.AUTHORIZATION,
+            "Basic "
+                + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testMetricsCacheRequiresAdmin() throws Exception {
+    mockMvc.perform(get("/actuator/metricsCache")).andExpect(status().isUnauthorized());
+    mockMvc.perform(as("/actuator/metricsCache", "user")).andExpect(status().isForbidden());
+    mockMvc.perform(as("/actuator/metricsCache", "admin")).andExpect(status().isOk());
+  }
+
+  @Test
+  public void testResourcesArePublic() throws Exception {
+    mockMvc.perform(get("/occurrence/count")).andExpect(status().isOk());
+  }
+}
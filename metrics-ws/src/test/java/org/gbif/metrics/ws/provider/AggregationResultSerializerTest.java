@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.provider;
+
+import org.gbif.metrics.AsyncMetricsService;
+import org.gbif.metrics.es.AggregationQuery;
+import org.gbif.metrics.es.AggregationResult;
+import org.gbif.metrics.ws.config.WebMvcConfig;
+import org.gbif.metrics.ws.resources.OccurrenceCubeResource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class AggregationResultSerializerTest {
+
+  private final AsyncMetricsService metricsService = mock(AsyncMetricsService.class);
+  private MockMvc mockMvc;
+
+  @BeforeEach
+  public void setUp() {
+    // Maps are written sorted by key, aggregations keep the order of their buckets
+    ObjectMapper objectMapper =
+        new WebMvcConfig()
+            .metricsObjectMapper()
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+    mockMvc =
+        MockMvcBuilders.standaloneSetup(new OccurrenceCubeResource(metricsService))
+            .setMessageConverters(new MappingJackson2HttpMessageConverter(objectMapper))
+            .build();
+  }
+
+  private void assertResponse(Map<String, Long> aggregation, String expected) throws Exception {
+    when(metricsService.countAggregationAsync(any(AggregationQuery.class)))
+        .thenReturn(CompletableFuture.completedFuture(aggregation));
+    MvcResult result =
+        mockMvc
+            .perform(get("/occurrence/counts/basisOfRecord"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(content().string(expected));
+  }
+
+  @Test
+  public void testSerializeInBucketOrder() throws Exception {
+    AggregationResult aggregation =
+        AggregationResult.builder("basisOfRecord", 2)
+            .add("OBSERVATION", 30)
+            .add("HUMAN_OBSERVATION", 20)
+            .build();
+    assertResponse(aggregation, "{\"OBSERVATION\":30,\"HUMAN_OBSERVATION\":20}");
+    assertResponse(AggregationResult.builder("basisOfRecord", 0).build(), "{}");
+  }
+
+  @Test
+  public void testSerializeMap() throws Exception {
+    Map<String, Long> aggregation = new HashMap<>();
+    aggregation.put("OBSERVATION", 30L);
+    aggregation.put("HUMAN_OBSERVATION", 20L);
+    assertResponse(aggregation, "{\"HUMAN_OBSERVATION\":20,\"OBSERVATION\":30}");
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.provider;
+
+import org.gbif.metrics.AsyncMetricsService;
+import org.gbif.metrics.es.CountQuery;
+import org.gbif.metrics.es.Parameter;
+import org.gbif.metrics.ws.config.WebMvcConfig;
+import org.gbif.metrics.ws.resources.OccurrenceCubeResource;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class CountBatchTest {
+
+  /** Answers invalid queries like the advice of gbif-common-ws does in the service. */
+  @RestControllerAdvice
+  static class IllegalArgumentHandler {
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Object> illegalArgument(IllegalArgumentException ex) {
+      return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(ex.getMessage());
+    }
+  }
+
+  private final AsyncMetricsService metricsService = mock(AsyncMetricsService.class);
+  private MockMvc mockMvc;
+
+  @BeforeEach
+  public void setUp() {
+    mockMvc =
+        MockMvcBuilders.standaloneSetup(new OccurrenceCubeResource(metricsService))
+            .setMessageConverters(
+                new MappingJackson2HttpMessageConverter(new WebMvcConfig().metricsObjectMapper()))
+            .setControllerAdvice(new IllegalArgumentHandler())
+            .build();
+  }
+
+  @Test
+  public void testRequestOrder() throws Exception {
+    // Each count is the number of the dataset, so the order of the results is visible
+    when(metricsService.countBatchAsync(anyList()))
+        .thenAnswer(
+            invocation -> {
+              List<CountQuery> countQueries = invocation.getArgument(0);
+              return CompletableFuture.completedFuture(
+                  countQueries.stream()
+                      .map(q -> q.getParameters().iterator().next())
+                      .map(Parameter::getValue)
+                      .map(v -> Long.valueOf(String.valueOf(v).substring(1)))
+                      .collect(Collectors.toList()));
+            });
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                post("/occurrence/count/batch")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(
+                        "[{\"datasetKey\":\"d3\"},{\"datasetKey\":\"d1\"},"
+                            + "{\"datasetKey\":\"d2\"}]"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(content().string("[3,1,2]"));
+  }
+
+  @Test
+  public void testMaxBatchSize() throws Exception {
+    // One more query than accepted in a batch
+    String countQueries = String.join(",", Collections.nCopies(1_001, "{\"datasetKey\":\"d1\"}"));
+    mockMvc
+        .perform(
+            post("/occurrence/count/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[" + countQueries + "]"))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("\"At most 1000 queries are accepted in a batch\""));
+    verify(metricsService, never()).countBatchAsync(anyList());
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.metrics.ws.provider;
+
+import org.gbif.metrics.AsyncMetricsService;
+import org.gbif.metrics.es.AggregationQuery;
+import org.gbif.metrics.es.UnsupportedQueryException;
+import org.gbif.metrics.ws.resources.OccurrenceCubeResource;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class UnsupportedQueryHandlerTest {
+
+  @Test
+  public void testBadRequest() throws Exception {
+    AsyncMetricsService metricsService = mock(AsyncMetricsService.class);
+    when(metricsService.countAggregationAsync(any(AggregationQuery.class)))
+        .thenReturn(
+            CompletableFuture.supplyAsync(
+                () -> {
+                  throw new UnsupportedQueryException("Only the checklist a is indexed, not b");
+                }));
+    MockMvc mockMvc =
+        MockMvcBuilders.standaloneSetup(new OccurrenceCubeResource(metricsService))
+            .setControllerAdvice(new UnsupportedQueryHandler())
+            .build();
+
+    MvcResult result =
+        mockMvc.perform(get("/occurrence/counts/kingdom").param("checklistKey", "b")).andReturn();
+    mockMvc
+        .perform(asyncDispatch(result))
+        .andExpect(status().isBadRequest())
+        .andExpect(content().string("Only the checklist a is indexed, not b"));
+  }
+}